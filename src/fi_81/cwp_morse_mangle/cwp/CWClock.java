@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Time source for input, output and decoders. Injected so that tests and
+ * simulations can run on virtual time instead of system clock.
+ */
+public abstract class CWClock {
+	/*
+	 * System wall-clock, used by default so that connection start times taken
+	 * from System.currentTimeMillis() stay valid. Use CWMonotonicClock where
+	 * start time is taken from clock itself.
+	 */
+	public static final CWClock SYSTEM = new CWClock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/* Current time in milliseconds, same scale as System.currentTimeMillis() */
+	public abstract long currentTimeMillis();
+
+	/* Current time in nanoseconds, for measuring intervals */
+	public abstract long nanoTime();
+
+	/* Clock that follows current time, for use from other threads */
+	public CWClock getLiveClock() {
+		return this;
+	}
+}
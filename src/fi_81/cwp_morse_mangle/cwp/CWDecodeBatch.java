@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.Arrays;
+
+/*
+ * Decode details of last morse code returned by decoder. Holds decoded
+ * symbols (waves) and characters with confidence scores in primitive arrays
+ * that are reused between morse codes, so nothing is allocated per character.
+ * 
+ * Confidence is in range 0..1, 1 being wave exactly at expected width and 0 at
+ * threshold of other symbol. Character confidence is the lowest confidence of
+ * its symbols.
+ */
+public class CWDecodeBatch {
+	public static final byte SYMBOL_DIT = 1;
+	public static final byte SYMBOL_DAH = 2;
+	public static final byte SYMBOL_INTRA_GAP = 3;
+	public static final byte SYMBOL_CHAR_GAP = 4;
+	public static final byte SYMBOL_WORD_GAP = 5;
+
+	private static final int INITIAL_CAPACITY = 32;
+
+	private byte symbolTypes[] = new byte[INITIAL_CAPACITY];
+	private float symbolConfidences[] = new float[INITIAL_CAPACITY];
+	private int numSymbols;
+
+	private char characters[] = new char[INITIAL_CAPACITY];
+	private float charConfidences[] = new float[INITIAL_CAPACITY];
+	private float charWidths[] = new float[INITIAL_CAPACITY];
+	private int charSymbolEnds[] = new int[INITIAL_CAPACITY];
+	private int numCharacters;
+
+	/* Symbols after last completed character */
+	private int pendingStart;
+	private float pendingConfidence;
+
+	private boolean endOfMessage;
+	private boolean forcedFlush;
+	private boolean completed;
+
+	public CWDecodeBatch() {
+		clear();
+	}
+
+	public void clear() {
+		numSymbols = 0;
+		numCharacters = 0;
+		pendingStart = 0;
+		pendingConfidence = 1.0f;
+		endOfMessage = false;
+		forcedFlush = false;
+		completed = false;
+	}
+
+	/*
+	 * Mark batch to match returned morse code. Batch is kept readable until
+	 * decoder adds first symbol of next code.
+	 */
+	public void complete() {
+		completed = true;
+	}
+
+	private void startNew() {
+		if (completed)
+			clear();
+	}
+
+	public void addSymbol(byte type, double confidence) {
+		startNew();
+
+		if (numSymbols == symbolTypes.length) {
+			symbolTypes = Arrays.copyOf(symbolTypes, numSymbols * 2);
+			symbolConfidences = Arrays.copyOf(symbolConfidences,
+					numSymbols * 2);
+		}
+
+		float conf = (float) Math.max(0.0, Math.min(1.0, confidence));
+
+		symbolTypes[numSymbols] = type;
+		symbolConfidences[numSymbols] = conf;
+		numSymbols++;
+
+		if (conf < pendingConfidence)
+			pendingConfidence = conf;
+	}
+
+	/* End character with symbols added after previous character */
+	public void endCharacter(char ch, double width) {
+		startNew();
+
+		if (numCharacters == characters.length) {
+			int len = numCharacters * 2;
+
+			characters = Arrays.copyOf(characters, len);
+			charConfidences = Arrays.copyOf(charConfidences, len);
+			charWidths = Arrays.copyOf(charWidths, len);
+			charSymbolEnds = Arrays.copyOf(charSymbolEnds, len);
+		}
+
+		characters[numCharacters] = ch;
+		charConfidences[numCharacters] = pendingConfidence;
+		charWidths[numCharacters] = (float) width;
+		charSymbolEnds[numCharacters] = numSymbols;
+		numCharacters++;
+
+		pendingStart = numSymbols;
+		pendingConfidence = 1.0f;
+	}
+
+	public boolean hasPendingSymbols() {
+		return !completed && pendingStart < numSymbols;
+	}
+
+	public void setEndOfMessage(boolean forced) {
+		startNew();
+
+		endOfMessage = true;
+		forcedFlush = forced;
+	}
+
+	public int getNumSymbols() {
+		return numSymbols;
+	}
+
+	public byte getSymbolType(int index) {
+		return symbolTypes[index];
+	}
+
+	public float getSymbolConfidence(int index) {
+		return symbolConfidences[index];
+	}
+
+	public int getNumCharacters() {
+		return numCharacters;
+	}
+
+	public char getCharacter(int index) {
+		return characters[index];
+	}
+
+	public float getCharacterConfidence(int index) {
+		return charConfidences[index];
+	}
+
+	/* Estimated signal width when character was decoded */
+	public float getCharacterWidth(int index) {
+		return charWidths[index];
+	}
+
+	/* Symbols of character are getCharacterSymbolStart() .. End() - 1 */
+	public int getCharacterSymbolStart(int index) {
+		return index == 0 ? 0 : charSymbolEnds[index - 1];
+	}
+
+	public int getCharacterSymbolEnd(int index) {
+		return charSymbolEnds[index];
+	}
+
+	/* Number of waves consumed by character, including gap after it */
+	public int getCharacterWaves(int index) {
+		return getCharacterSymbolEnd(index) - getCharacterSymbolStart(index);
+	}
+
+	/* Lowest character confidence in batch, 1 if no characters */
+	public float getMinConfidence() {
+		float min = 1.0f;
+
+		for (int i = 0; i < numCharacters; i++)
+			if (charConfidences[i] < min)
+				min = charConfidences[i];
+
+		return min;
+	}
+
+	/* Morse code ended with SPECIAL_STOP_MESSAGE */
+	public boolean isEndOfMessage() {
+		return endOfMessage;
+	}
+
+	/* Message was ended by flush or width mismatch, not by long pause */
+	public boolean isForcedFlush() {
+		return forcedFlush;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Work budget for single decode round on IO thread. Decoder charges waves it
+ * examines and stops when budget runs out, leaving rest of queue for next
+ * round. Budget can be limited by number of waves, by time or both, zero
+ * meaning no limit.
+ * 
+ * First charge of round is always allowed, so decoding makes progress with
+ * any budget.
+ */
+public class CWDecodeBudget {
+	private final int maxWaves;
+	private final long maxNanos;
+
+	private CWClock clock = CWClock.SYSTEM;
+
+	private int wavesLeft;
+	private long deadline;
+	private boolean exhausted;
+
+	/* Statistics of rounds */
+	private long roundStart;
+	private long lastRoundNanos;
+	private long maxRoundNanos;
+	private int lastRoundWaves;
+	private long exhaustedRounds;
+
+	/* Budget without limits */
+	public CWDecodeBudget() {
+		this(0, 0);
+	}
+
+	public CWDecodeBudget(int maxWaves, long maxNanos) {
+		this.maxWaves = maxWaves;
+		this.maxNanos = maxNanos;
+
+		wavesLeft = maxWaves;
+		deadline = 0;
+		exhausted = false;
+	}
+
+	/* Start new decode round with full budget */
+	public void start() {
+		roundStart = clock.nanoTime();
+		deadline = maxNanos > 0 ? roundStart + maxNanos : 0;
+		wavesLeft = maxWaves;
+		lastRoundWaves = 0;
+		exhausted = false;
+	}
+
+	/*
+	 * Charge 'waves' units of work. Returns false if budget was already used
+	 * up and work should not be done.
+	 */
+	public boolean consume(int waves) {
+		if (exhausted)
+			return false;
+
+		lastRoundWaves += waves;
+
+		if (maxWaves > 0) {
+			wavesLeft -= waves;
+			if (wavesLeft <= 0)
+				exhausted = true;
+		}
+
+		if (deadline != 0 && clock.nanoTime() - deadline >= 0)
+			exhausted = true;
+
+		return true;
+	}
+
+	public boolean isExhausted() {
+		return exhausted;
+	}
+
+	/* End decode round and update statistics */
+	public void finish() {
+		lastRoundNanos = clock.nanoTime() - roundStart;
+		if (lastRoundNanos > maxRoundNanos)
+			maxRoundNanos = lastRoundNanos;
+
+		if (exhausted)
+			exhaustedRounds++;
+	}
+
+	public void setClock(CWClock clock) {
+		this.clock = clock;
+	}
+
+	public int getMaxWaves() {
+		return maxWaves;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public long getLastRoundNanos() {
+		return lastRoundNanos;
+	}
+
+	/* Worst-case duration of decode round */
+	public long getMaxRoundNanos() {
+		return maxRoundNanos;
+	}
+
+	public int getLastRoundWaves() {
+		return lastRoundWaves;
+	}
+
+	/* Number of rounds that left work for next round */
+	public long getExhaustedRounds() {
+		return exhaustedRounds;
+	}
+}
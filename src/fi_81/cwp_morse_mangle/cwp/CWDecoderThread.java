@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import fi_81.cwp_morse_mangle.morse.BitString;
+
+/*
+ * Runs morse decoder on its own thread. IO thread publishes received state
+ * changes to lock-free ring, decoder thread replays them into its own
+ * CWInputQueue, decodes and passes morse codes back on second ring. IO thread
+ * never waits for decoding; forced flush is queued as event and its morse
+ * codes are collected from result ring like others. Only flush(timeout)
+ * waits, for callers that can block.
+ * 
+ * Methods marked 'IO thread' may only be called from single thread that
+ * created the rings' producer side.
+ */
+public class CWDecoderThread extends Thread {
+	public static final int DEFAULT_RING_CAPACITY = 4096;
+
+	/* Event types, stored in upper half of ring value */
+	private static final int EVENT_STATE_UP = 1;
+	private static final int EVENT_STATE_DOWN = 2;
+	private static final int EVENT_FLUSH = 3;
+	private static final int EVENT_RESYNC_UP = 4;
+	private static final int EVENT_RESYNC_DOWN = 5;
+
+	private static final int DRAIN_BATCH = 256;
+
+	/* Wait for space in result ring or for flush to complete */
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/* Longest sleep without events, in case wake-up was missed */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final CWaveDecoder decoder;
+	private final CWSpscLongRing events;
+	private final CWSpscRing<BitString> results;
+	private final Runnable resultListener;
+	private final long drainBuffer[] = new long[DRAIN_BATCH];
+
+	/* Decoder thread state */
+	private CWInputQueue queue;
+
+	/*
+	 * Time of last state change, queued waves are decoded by force after
+	 * flush timeout as CWInput does
+	 */
+	private long lastEventNanos;
+	private boolean stallFlushArmed = false;
+
+	private volatile boolean running = true;
+	private volatile boolean waiting = false;
+	private volatile boolean pendingBits = false;
+	private final AtomicLong flushesDone = new AtomicLong(0);
+
+	/* IO thread state */
+	private long flushesRequested = 0;
+	private boolean flushQueued = false;
+	private boolean resyncNeeded = false;
+	private long droppedEvents = 0;
+	private byte ioState = CWave.TYPE_DOWN;
+	private int ioTimestamp = 0;
+
+	/*
+	 * 'resultListener' is run on decoder thread when new morse code is
+	 * available, for example to wake up selector of IO thread. Can be null.
+	 */
+	public CWDecoderThread(CWaveDecoder decoder, int ringCapacity,
+			Runnable resultListener) {
+		super("CWDecoderThread");
+
+		this.decoder = decoder;
+		this.resultListener = resultListener;
+
+		queue = new CWInputQueue();
+		events = new CWSpscLongRing(ringCapacity);
+		results = new CWSpscRing<BitString>(ringCapacity);
+
+		setDaemon(true);
+	}
+
+	/* IO thread: state changed to up at 'timestamp' */
+	public void publishStateUp(int timestamp) {
+		ioState = CWave.TYPE_UP;
+		ioTimestamp = timestamp;
+
+		publishEvent(EVENT_STATE_UP, timestamp);
+	}
+
+	/* IO thread: state changed to down after 'duration' */
+	public void publishStateDown(int duration) {
+		ioState = CWave.TYPE_DOWN;
+		ioTimestamp += duration;
+
+		publishEvent(EVENT_STATE_DOWN, duration);
+	}
+
+	/*
+	 * IO thread: decode all waves and flush pending bits. Does not wait,
+	 * returns false if event ring is full and request should be retried.
+	 */
+	public boolean requestFlush() {
+		/* No waves published since last flush request */
+		if (flushQueued)
+			return true;
+
+		flushQueued = publishEvent(EVENT_FLUSH, 0);
+		return flushQueued;
+	}
+
+	/* IO thread: published flush has not yet been done by decoder */
+	public boolean isFlushPending() {
+		return flushesDone.get() < flushesRequested;
+	}
+
+	/*
+	 * IO thread: request flush and wait until decoder has done it. Returns
+	 * false on timeout.
+	 */
+	public boolean flush(long timeoutMillis) {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		/* Wait for space in full ring */
+		while (!requestFlush()) {
+			if (System.nanoTime() - deadline >= 0 || !isAlive())
+				return false;
+
+			LockSupport.parkNanos(RETRY_NANOS);
+		}
+
+		/* Wait for decoder to reach flush */
+		while (flushesDone.get() < flushesRequested) {
+			if (System.nanoTime() - deadline >= 0 || !isAlive())
+				return false;
+
+			LockSupport.parkNanos(RETRY_NANOS);
+		}
+
+		return true;
+	}
+
+	/* IO thread: next decoded morse code, null if none */
+	public BitString pollMorseMessage() {
+		return results.poll();
+	}
+
+	public boolean hadPendingBits() {
+		return pendingBits;
+	}
+
+	/* IO thread: events lost because decoder did not keep up */
+	public long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	/*
+	 * Stop without waiting for decoder to finish its current work. Decoder
+	 * stays owned by exiting thread.
+	 */
+	public void requestShutdown() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	public void shutdown() {
+		requestShutdown();
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean publishEvent(int type, int value) {
+		/*
+		 * Events were lost, restart decoder queue from current state instead,
+		 * so that waves on both sides of gap are not decoded together.
+		 */
+		if (resyncNeeded) {
+			type = ioState == CWave.TYPE_UP ? EVENT_RESYNC_UP
+					: EVENT_RESYNC_DOWN;
+			value = ioTimestamp;
+		}
+
+		flushQueued = false;
+
+		if (!events.offer(((long) type << 32) | (value & 0xffffffffL))) {
+			droppedEvents++;
+			resyncNeeded = true;
+			return false;
+		}
+
+		resyncNeeded = false;
+		if (type >= EVENT_FLUSH)
+			flushesRequested++;
+
+		if (waiting)
+			LockSupport.unpark(this);
+
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			int count = events.drain(drainBuffer, drainBuffer.length);
+
+			for (int i = 0; i < count; i++)
+				handleEvent(drainBuffer[i]);
+
+			if (count > 0)
+				continue;
+
+			/* Flush bits of stalled message on timeout */
+			publishResult(decoder.flushStalled(false));
+
+			/* Decode waves left in queue once no more are coming */
+			long timeToFlush = timeToStallFlush();
+			if (timeToFlush == 0) {
+				flushAll();
+				timeToFlush = Long.MAX_VALUE;
+			}
+
+			pendingBits = decoder.hadPendingBits() || queue.queueLength() > 0;
+
+			/* Sleep until new events or until next flush check */
+			waiting = true;
+			if (events.isEmpty() && running) {
+				long sleep = Math.min(IDLE_NANOS, timeToFlush);
+
+				if (decoder.hadPendingBits() && decoder.getFlushTimeout() >= 0)
+					sleep = Math.min(sleep, TimeUnit.MILLISECONDS
+							.toNanos(decoder.getFlushTimeout()));
+
+				LockSupport.parkNanos(sleep);
+			}
+			waiting = false;
+		}
+	}
+
+	private void handleEvent(long event) {
+		int type = (int) (event >>> 32);
+		int value = (int) event;
+
+		switch (type) {
+		case EVENT_STATE_UP:
+			queue.pushStateUp(value);
+			break;
+		case EVENT_STATE_DOWN:
+			queue.pushStateDown(value);
+			break;
+		case EVENT_FLUSH:
+			flushAll();
+			flushesDone.incrementAndGet();
+			return;
+		default:
+			flushAll();
+			resync(type == EVENT_RESYNC_UP, value);
+			flushesDone.incrementAndGet();
+			return;
+		}
+
+		pendingBits = true;
+		lastEventNanos = System.nanoTime();
+		stallFlushArmed = true;
+
+		/* Decode after each state change, as CWInput does */
+		BitString morseBits;
+		while ((morseBits = decoder.tryDecode(queue, false)) != null)
+			publishResult(morseBits);
+
+		/* Waves were dropped from full queue, pending bits are stale */
+		if (queue.takeOverflowFlushRequest())
+			flushAll();
+	}
+
+	/* Restart queue at state of IO thread */
+	private void resync(boolean isUp, int timestamp) {
+		queue = new CWInputQueue();
+
+		queue.pushStateUp(timestamp);
+		if (!isUp)
+			queue.pushStateDown(0);
+
+		queue.completeAllWaves(0);
+	}
+
+	/* Nanoseconds until queued waves are decoded by force */
+	private long timeToStallFlush() {
+		if (!stallFlushArmed)
+			return Long.MAX_VALUE;
+
+		if (queue.queueLength() == 0 && !decoder.hadPendingBits()) {
+			stallFlushArmed = false;
+			return Long.MAX_VALUE;
+		}
+
+		long flushTimeout = decoder.getFlushTimeout();
+		if (flushTimeout < 0)
+			return Long.MAX_VALUE;
+
+		long timeToFlush = lastEventNanos
+				+ TimeUnit.MILLISECONDS.toNanos(flushTimeout)
+				- System.nanoTime();
+
+		return timeToFlush > 0 ? timeToFlush : 0;
+	}
+
+	private void flushAll() {
+		BitString morseBits;
+
+		stallFlushArmed = false;
+
+		while ((morseBits = decoder.tryDecode(queue, true)) != null)
+			publishResult(morseBits);
+
+		publishResult(decoder.flushStalled(true));
+
+		pendingBits = decoder.hadPendingBits();
+	}
+
+	private void publishResult(BitString morseBits) {
+		if (morseBits == null)
+			return;
+
+		/* Decoded bits are not dropped, wait for IO thread to catch up */
+		while (!results.offer(morseBits)) {
+			if (!running)
+				return;
+
+			if (resultListener != null)
+				resultListener.run();
+
+			LockSupport.parkNanos(RETRY_NANOS);
+		}
+
+		if (resultListener != null)
+			resultListener.run();
+	}
+}
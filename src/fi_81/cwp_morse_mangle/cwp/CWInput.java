@@ -41,6 +41,14 @@ public class CWInput {
 		public abstract void morseMessage(BitString morseBits);
 	}
 
+	/*
+	 * Extended callback, receives decode confidence after each morse message.
+	 * Batch is owned by decoder and valid until next call to decoder.
+	 */
+	public interface CWInputDecodeNotification extends CWInputNotification {
+		public abstract void morseDecodeInfo(CWDecodeBatch batch);
+	}
+
 	public static class NotificationNone implements CWInputNotification {
 		public void frequencyChange(long newFreq) {
 		}
@@ -54,11 +62,19 @@ public class CWInput {
 
 	private final int MAX_BUFFER_PAST = 100000; /* 100 sec */
 
+	/* Size of input buffer, one read can take this much */
+	public static final int DEFAULT_BUFFER_SIZE = 128;
+	public static final int MIN_BUFFER_SIZE = 16;
+
+	/* Decoding work allowed per processInput() round */
+	public static final int DEFAULT_DECODE_BUDGET_WAVES = 256;
+	public static final long DEFAULT_DECODE_BUDGET_NANOS = 5000000; /* 5 ms */
+
 	private long currFreq = 1;
 	private ByteBuffer inBuf;
 	private CWInputQueue morseQueue;
 	private ArrayDeque<CWStateChange> bufferQueue;
-	private final CWaveQueueToMorseCode morseDecoder = new CWaveQueueToMorseCode();
+	private final CWaveDecoder morseDecoder;
 	private long lastReceivedWaveTime;
 
 	private int lastStateUpValue;
@@ -67,7 +83,43 @@ public class CWInput {
 	private int bufferLength;
 	private long connStartTime;
 
+	/* Retry of forced flush refused by full decoder thread ring */
+	private static final long DECODER_FLUSH_RETRY_DELAY = 1; /* ms */
+
+	private CWClock clock = CWClock.SYSTEM;
+	private CWDecodeBudget decodeBudget;
+	private CWDecoderThread decoderThread;
+	private boolean decoderFlushPending;
+	private boolean decodePending;
+	private boolean forceDecodePending;
+
+	/* Input parsed by receiveInput() but not yet decoded */
+	private boolean receivedPending;
+
+	/* Parsing stopped at high water, rest of input left in buffer */
+	private boolean inputBacklogged;
+
 	public CWInput(CWInputQueue queue, ByteBuffer bb) {
+		this(queue, new CWaveQueueToMorseCode(), bb);
+	}
+
+	public CWInput(CWInputQueue queue, CWaveDecoder decoder, ByteBuffer bb) {
+		this(queue, decoder, bb, DEFAULT_BUFFER_SIZE);
+	}
+
+	private CWInput(CWInputQueue queue, CWaveDecoder decoder, ByteBuffer bb,
+			int bufferSize) {
+		if (bb == null && bufferSize < MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("bufferSize: " + bufferSize);
+
+		morseDecoder = decoder;
+		decodeBudget = new CWDecodeBudget(DEFAULT_DECODE_BUDGET_WAVES,
+				DEFAULT_DECODE_BUDGET_NANOS);
+		decoderFlushPending = false;
+		decodePending = false;
+		forceDecodePending = false;
+		receivedPending = false;
+		inputBacklogged = false;
 		maxBufferLength = 0;
 		bufferLength = 0;
 		lastStateUpValue = 0;
@@ -79,7 +131,7 @@ public class CWInput {
 
 		if (bb == null) {
 			/* Allocate IO buffer and set it to big-endian byteorder */
-			inBuf = ByteBuffer.allocateDirect(128);
+			inBuf = ByteBuffer.allocateDirect(bufferSize);
 			inBuf.order(ByteOrder.BIG_ENDIAN);
 		} else {
 			inBuf = bb;
@@ -96,66 +148,170 @@ public class CWInput {
 	}
 
 	public CWInput(int maxBufferLen, long connectionStartTime) {
-		this(new CWInputQueue(), null);
+		this(new CWaveQueueToMorseCode(), maxBufferLen, connectionStartTime);
+	}
+
+	public CWInput(int maxBufferLen, long connectionStartTime, int bufferSize) {
+		this(new CWaveQueueToMorseCode(), maxBufferLen, connectionStartTime,
+				bufferSize);
+	}
+
+	public CWInput(CWaveDecoder decoder, int maxBufferLen,
+			long connectionStartTime) {
+		this(decoder, maxBufferLen, connectionStartTime, DEFAULT_BUFFER_SIZE);
+	}
+
+	/* Latency management disabled with zero 'maxBufferLen' */
+	public CWInput(CWaveDecoder decoder, int maxBufferLen,
+			long connectionStartTime, int bufferSize) {
+		this(new CWInputQueue(), decoder, null, bufferSize);
 
 		connStartTime = connectionStartTime;
 		maxBufferLength = maxBufferLen;
 	}
 
+	public CWInputQueue getMorseQueue() {
+		return morseQueue;
+	}
+
 	public ByteBuffer getInBuffer() {
 		return inBuf;
 	}
 
-	public void processInput(final CWInputNotification notify) {
+	/*
+	 * Clock must be on same time scale as connection start time. Also used by
+	 * decoder and decode budget, so set before startDecoderThread().
+	 */
+	public void setClock(CWClock clock) {
+		this.clock = clock;
+
+		if (decoderThread == null)
+			morseDecoder.setClock(clock);
+		decodeBudget.setClock(clock);
+	}
+
+	public CWClock getClock() {
+		return clock;
+	}
+
+	/* Limit decoding work done on IO thread per processInput() */
+	public void setDecodeBudget(CWDecodeBudget budget) {
+		decodeBudget = budget;
+		decodeBudget.setClock(clock);
+	}
+
+	public CWDecodeBudget getDecodeBudget() {
+		return decodeBudget;
+	}
+
+	/*
+	 * Run morse decoder on separate thread, received waves are passed to it
+	 * and morse codes back through lock-free rings. Must be called before
+	 * input is processed. 'resultListener' is run on decoder thread when
+	 * morse code is ready for processInput(), can be null.
+	 * 
+	 * Decoder is then owned by decoder thread, so CWInputDecodeNotification
+	 * does not receive decode batches.
+	 */
+	public void startDecoderThread(Runnable resultListener) {
+		if (decoderThread != null || morseQueue.queueLength() > 0
+				|| morseQueue.getCurrentState() != CWave.TYPE_DOWN)
+			throw new IllegalStateException();
+
+		/* Decoder thread cannot use time sampled by IO thread */
+		morseDecoder.setClock(clock.getLiveClock());
+
+		decoderThread = new CWDecoderThread(morseDecoder,
+				CWDecoderThread.DEFAULT_RING_CAPACITY, resultListener);
+		decoderThread.start();
+	}
+
+	/*
+	 * Stop decoder thread without waiting for it. Decoder is left to exiting
+	 * thread, so input must not be processed after this. Codes not yet
+	 * decoded are discarded.
+	 */
+	public void stopDecoderThread() {
+		if (decoderThread == null)
+			return;
+
+		decoderThread.requestShutdown();
+	}
+
+	public CWDecoderThread getDecoderThread() {
+		return decoderThread;
+	}
+
+	/*
+	 * Wave queue is filled to high water mark. Rest of input is left in
+	 * buffer and socket until decoding has caught up, instead of dropping
+	 * waves from full queue.
+	 */
+	public boolean isBacklogged() {
+		return morseQueue.queueLength() >= morseQueue.getMaxCapacity() / 2;
+	}
+
+	/*
+	 * Parse complete state changes from input buffer into wave queue,
+	 * without decoding them. Can be called when input buffer is full and
+	 * more is to be read, processInput() then decodes whole batch at once.
+	 * Parsing stops when queue is backlogged.
+	 */
+	public void receiveInput(final CWInputNotification notify) {
+		inputBacklogged = false;
 		inBuf.flip();
 
 		while (inBuf.remaining() > 0) {
-			boolean out = false;
+			if (morseQueue.getCurrentState() == CWave.TYPE_DOWN) {
+				/* Stop between waves, decoder cannot read queue in up state */
+				inputBacklogged = isBacklogged();
+				if (inputBacklogged)
+					break;
 
-			switch (morseQueue.getCurrentState()) {
-			case CWave.TYPE_DOWN:
 				/* In down state, expect 4 bytes integer input */
-				if (inBuf.remaining() < 4) {
-					out = true;
+				if (inBuf.remaining() < 4)
 					break;
-				}
 
 				processInputDown(notify);
-				break;
-			case CWave.TYPE_UP:
+			} else {
 				/* In up state, expect 2 bytes integer input */
-				if (inBuf.remaining() < 2) {
-					out = true;
+				if (inBuf.remaining() < 2)
 					break;
-				}
 
 				processInputUp(notify);
-				break;
 			}
 
-			if (out)
-				break;
+			receivedPending = true;
 
-			/*
-			 * Process new buffered state changes before morse decoding, as
-			 * morse decoding induces more latency and jitter.
-			 */
-			processBufferedStateChanges(notify);
-
-			/*
-			 * After receiving data, decode buffered wave-form to morse code.
-			 * Decode after each received message, as this enforces same
-			 * behavior in test-cases as in real world.
-			 */
-			BitString morseBits;
-			do {
-				morseBits = morseDecoder.tryDecode(morseQueue, false);
-				if (morseBits != null)
-					notify.morseMessage(morseBits);
-			} while (morseBits != null);
+			/* Waves were dropped from full queue, pending bits are stale */
+			if (morseQueue.takeOverflowFlushRequest()) {
+				forceDecodePending = true;
+				decodeQueuedWaves(notify);
+			}
 		}
 
 		inBuf.compact();
+	}
+
+	public void processInput(final CWInputNotification notify) {
+		decodeBudget.start();
+
+		receiveInput(notify);
+
+		/*
+		 * Process new buffered state changes before morse decoding, as
+		 * morse decoding induces more latency and jitter.
+		 */
+		processBufferedStateChanges(notify);
+
+		/*
+		 * Decode all waves received on this round in one pass, also continues
+		 * decoding left from previous round.
+		 */
+		if (receivedPending || decodePending) {
+			receivedPending = false;
+			decodeQueuedWaves(notify);
+		}
 
 		/*
 		 * Process buffered state changes (this is here in case there was no new
@@ -163,12 +319,29 @@ public class CWInput {
 		 */
 		processBufferedStateChanges(notify);
 
+		/*
+		 * Backlogged queue that decoder cannot shrink without forcing, such
+		 * as long run of waves not forming morse codes.
+		 */
+		if (isBacklogged() && !decodeBudget.isExhausted())
+			forceDecodePending = true;
+
+		/*
+		 * Budget used before queue was decoded, continue on next round instead
+		 * of flushing.
+		 */
+		decodePending = forceDecodePending || inputBacklogged
+				|| (decodeBudget.isExhausted() && morseQueue.queueLength() > 0);
+		decodeBudget.finish();
+		if (decodePending)
+			return;
+
 		/*
 		 * Let morseDecoder to flush too old stale morse bits
 		 */
 		boolean forceFlush = false;
 
-		if (morseQueue.getQueue().size() > MorseCodec.endSequence.length())
+		if (morseQueue.queueLength() > MorseCodec.endSequence.length())
 			forceFlush = true;
 		else if (timeToNextWork() == 0)
 			forceFlush = true;
@@ -198,10 +371,16 @@ public class CWInput {
 				currFreq = newFreq;
 			}
 		} else {
-			long currTime = System.currentTimeMillis();
+			long currTime = clock.currentTimeMillis();
 
 			morseQueue.pushStateUp(value);
 
+			/* Queue only tracks input state, waves go to decoder thread */
+			if (decoderThread != null) {
+				decoderThread.publishStateUp(value);
+				morseQueue.completeAllWaves(0);
+			}
+
 			/* Latency management for visualizing received state changes */
 			if (maxBufferLength > 0) {
 				adjustBufferLength(value, currTime);
@@ -221,7 +400,7 @@ public class CWInput {
 	}
 
 	private void processInputUp(final CWInputNotification notify) {
-		long currTime = System.currentTimeMillis();
+		long currTime = clock.currentTimeMillis();
 		int value = inBuf.getShort();
 
 		/*
@@ -233,6 +412,11 @@ public class CWInput {
 		/* At up state, so this must be state-change:down */
 		morseQueue.pushStateDown(value);
 
+		if (decoderThread != null) {
+			decoderThread.publishStateDown(value);
+			morseQueue.completeAllWaves(0);
+		}
+
 		/* Latency management for visualizing received state changes */
 		if (maxBufferLength > 0) {
 			adjustBufferLength(lastStateUpValue + value, currTime);
@@ -286,15 +470,59 @@ public class CWInput {
 			bufferLength = maxBufferLength;
 	}
 
+	private void decodeQueuedWaves(final CWInputNotification notify) {
+		BitString morseBits;
+
+		/* Pass morse codes decoded by decoder thread */
+		if (decoderThread != null) {
+			if (decoderFlushPending && decoderThread.requestFlush())
+				decoderFlushPending = false;
+
+			while ((morseBits = decoderThread.pollMorseMessage()) != null)
+				notifyMorseMessage(notify, morseBits);
+			return;
+		}
+
+		while (!decodeBudget.isExhausted()
+				&& (morseBits = morseDecoder.tryDecode(morseQueue,
+						forceDecodePending, decodeBudget)) != null)
+			notifyMorseMessage(notify, morseBits);
+
+		/* Forced decoding of queue completed, flush pending bits */
+		if (forceDecodePending && !decodeBudget.isExhausted()) {
+			forceDecodePending = false;
+
+			morseBits = morseDecoder.flushStalled(true);
+			if (morseBits != null)
+				notifyMorseMessage(notify, morseBits);
+		}
+	}
+
 	public void flushStaleMorseBits(CWInputNotification notify, boolean force) {
 		BitString morseBits;
 
-		/* Force decoding */
+		/*
+		 * Decoder thread flushes stalled bits by itself. Forced flush is
+		 * queued after received waves without waiting, its codes are passed
+		 * once decoder thread has woken IO thread.
+		 */
+		if (decoderThread != null) {
+			if (force)
+				decoderFlushPending = true;
+
+			decodeQueuedWaves(notify);
+			return;
+		}
+
+		/* Force decoding, all queued waves regardless of budget */
 		if (force) {
+			decodePending = false;
+			forceDecodePending = false;
+
 			do {
 				morseBits = morseDecoder.tryDecode(morseQueue, true);
 				if (morseBits != null) {
-					notify.morseMessage(morseBits);
+					notifyMorseMessage(notify, morseBits);
 					continue;
 				}
 			} while (morseBits != null);
@@ -303,10 +531,29 @@ public class CWInput {
 		/* Flush morse buffer, either by force or by timeout */
 		morseBits = morseDecoder.flushStalled(force);
 		if (morseBits != null)
-			notify.morseMessage(morseBits);
+			notifyMorseMessage(notify, morseBits);
+	}
+
+	private void notifyMorseMessage(CWInputNotification notify,
+			BitString morseBits) {
+		notify.morseMessage(morseBits);
+
+		if (decoderThread == null
+				&& notify instanceof CWInputDecodeNotification)
+			((CWInputDecodeNotification) notify).morseDecodeInfo(morseDecoder
+					.getDecodeBatch());
+	}
+
+	/* Forced flush has not yet been done by decoder thread */
+	public boolean isDecoderFlushPending() {
+		return decoderFlushPending
+				|| (decoderThread != null && decoderThread.isFlushPending());
 	}
 
 	public boolean hadPendingBits() {
+		if (decoderThread != null)
+			return decoderThread.hadPendingBits();
+
 		return morseDecoder.hadPendingBits();
 	}
 
@@ -315,7 +562,7 @@ public class CWInput {
 		if (maxBufferLength <= 0 || bufferQueue.isEmpty())
 			return Long.MAX_VALUE;
 
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.currentTimeMillis();
 		long timeSinceConnCreation = currentTime - connStartTime;
 		long timeToNext = bufferQueue.peek().getOutTime()
 				- timeSinceConnCreation;
@@ -328,6 +575,11 @@ public class CWInput {
 
 	/* Time to next morse decoder delayed work */
 	private long timeToNextMorseWork() {
+		/* Decoder thread does flushing */
+		if (decoderThread != null)
+			return decoderFlushPending ? DECODER_FLUSH_RETRY_DELAY
+					: Long.MAX_VALUE;
+
 		/* If no received waves, don't wait */
 		if (lastReceivedWaveTime <= 0)
 			return Long.MAX_VALUE;
@@ -339,7 +591,7 @@ public class CWInput {
 
 		/* Get time to next forced flush of morse-decoder */
 		long timeToFlush = (lastReceivedWaveTime + flushTimeout)
-				- System.currentTimeMillis();
+				- clock.currentTimeMillis();
 
 		/* If timeout has passed return zero */
 		if (timeToFlush <= 0)
@@ -349,6 +601,10 @@ public class CWInput {
 	}
 
 	public long timeToNextWork() {
+		/* Decoding was left unfinished by budget */
+		if (decodePending)
+			return 0;
+
 		return Math.min(timeToNextQueueWork(), timeToNextMorseWork());
 	}
 }
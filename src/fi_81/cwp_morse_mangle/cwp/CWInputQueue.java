@@ -23,17 +23,59 @@
 
 package fi_81.cwp_morse_mangle.cwp;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import fi_81.cwp_morse_mangle.cwp.CWave;
 
 public class CWInputQueue {
-	private final ArrayDeque<CWave> waveQueue = new ArrayDeque<CWave>();
+	/*
+	 * Waves are stored in growable ring buffer of primitive ints. Duration is
+	 * stored in lower 31 bits and wave type in sign bit (set for down-waves).
+	 */
+	private static final int WAVE_DOWN_BIT = 0x80000000;
+	private static final int WAVE_DURATION_MASK = ~WAVE_DOWN_BIT;
+	private static final int INITIAL_CAPACITY = 64;
+
+	/*
+	 * Overflow policies for bounded queue. On drop-oldest, oldest wave is
+	 * removed and forced flush of decoder is requested. On coalesce, oldest
+	 * up-wave is merged with surrounding down-waves into one down-wave.
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+	public static final int OVERFLOW_COALESCE = 1;
+
+	public static final int DEFAULT_MAX_CAPACITY = 4096;
+	private static final int MIN_MAX_CAPACITY = 4;
+
+	private int[] waves = new int[INITIAL_CAPACITY];
+	private int waveHead = 0;
+	private int waveCount = 0;
+
+	private final int maxCapacity;
+	private final int overflowPolicy;
+	private boolean overflowFlushRequested = false;
+	private long droppedWaves = 0;
+	private long coalescedWaves = 0;
+
 	private byte previousType;
 	private int previousTimestamp;
 	private boolean mergeLastUpWave;
 
 	public CWInputQueue() {
+		this(DEFAULT_MAX_CAPACITY, OVERFLOW_DROP_OLDEST);
+	}
+
+	public CWInputQueue(int maxCapacity, int overflowPolicy) {
+		if (maxCapacity < MIN_MAX_CAPACITY)
+			throw new IllegalArgumentException("maxCapacity: " + maxCapacity);
+		if (overflowPolicy != OVERFLOW_DROP_OLDEST
+				&& overflowPolicy != OVERFLOW_COALESCE)
+			throw new IllegalArgumentException("overflowPolicy: "
+					+ overflowPolicy);
+
+		this.maxCapacity = maxCapacity;
+		this.overflowPolicy = overflowPolicy;
+
 		/* New connection starts with state down and timestamp zero */
 		previousType = CWave.TYPE_DOWN;
 		previousTimestamp = 0;
@@ -63,7 +105,7 @@ public class CWInputQueue {
 		duration = timestamp - previousTimestamp;
 		if (duration < 0)
 			throw new IndexOutOfBoundsException();
-		if (duration == 0 && !waveQueue.isEmpty()) {
+		if (duration == 0 && waveCount > 0) {
 			mergeLastUpWave = true;
 			return;
 		}
@@ -82,9 +124,9 @@ public class CWInputQueue {
 
 			mergeLastUpWave = false;
 
-			CWave lastWave = waveQueue.peekLast();
+			int last = (waveHead + waveCount - 1) & (waves.length - 1);
 
-			lastWave.duration += duration;
+			waves[last] += duration;
 			previousTimestamp += duration;
 
 			return;
@@ -100,15 +142,105 @@ public class CWInputQueue {
 	}
 
 	public void pushWave(byte type, int duration) {
-		waveQueue.add(new CWave(type, duration));
+		if (waveCount >= maxCapacity)
+			handleOverflow();
+
+		if (waveCount == waves.length)
+			grow();
+
+		int wave = duration & WAVE_DURATION_MASK;
+		if (type == CWave.TYPE_DOWN)
+			wave |= WAVE_DOWN_BIT;
+
+		waves[(waveHead + waveCount) & (waves.length - 1)] = wave;
+		waveCount++;
+	}
+
+	private void handleOverflow() {
+		if (overflowPolicy == OVERFLOW_COALESCE) {
+			int first = getWave(0);
+
+			/* Leading up-wave is merged to down-wave following it */
+			if (first >= 0) {
+				waves[(waveHead + 1) & (waves.length - 1)] += first;
+				completeWavesFromBegining(1);
+				coalescedWaves++;
+				return;
+			}
+
+			/* Down, up, down => single down-wave */
+			int merged = (first & WAVE_DURATION_MASK) + getWave(1)
+					+ (getWave(2) & WAVE_DURATION_MASK);
+
+			completeWavesFromBegining(2);
+			waves[waveHead] = merged | WAVE_DOWN_BIT;
+			coalescedWaves += 2;
+			return;
+		}
+
+		/* Drop oldest and request decoder to flush pending bits */
+		completeWavesFromBegining(1);
+		droppedWaves++;
+		overflowFlushRequested = true;
+	}
+
+	private void grow() {
+		int[] newWaves = new int[waves.length * 2];
+		int firstPart = waves.length - waveHead;
+
+		/* Unwrap ring to start of new array */
+		System.arraycopy(waves, waveHead, newWaves, 0, firstPart);
+		System.arraycopy(waves, 0, newWaves, firstPart, waveHead);
+
+		waves = newWaves;
+		waveHead = 0;
 	}
 
 	public int queueLength() {
-		return waveQueue.size();
+		return waveCount;
+	}
+
+	public int getMaxCapacity() {
+		return maxCapacity;
 	}
 
-	public ArrayDeque<CWave> getQueue() {
-		return waveQueue;
+	public int getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/* Number of waves dropped because of overflow */
+	public long getDroppedWaves() {
+		return droppedWaves;
+	}
+
+	/* Number of waves merged to neighbours because of overflow */
+	public long getCoalescedWaves() {
+		return coalescedWaves;
+	}
+
+	/* Returns true once after waves were dropped, decoder should flush */
+	public boolean takeOverflowFlushRequest() {
+		boolean requested = overflowFlushRequested;
+
+		overflowFlushRequested = false;
+		return requested;
+	}
+
+	private int getWave(int index) {
+		if (index < 0 || index >= waveCount)
+			throw new IndexOutOfBoundsException();
+
+		return waves[(waveHead + index) & (waves.length - 1)];
+	}
+
+	/* Type of wave at 'index' from start of queue */
+	public byte getWaveType(int index) {
+		return getWave(index) < 0 ? CWave.TYPE_DOWN : CWave.TYPE_UP;
+	}
+
+	/* Duration of wave at 'index' from start of queue */
+	public int getWaveDuration(int index) {
+		return getWave(index) & WAVE_DURATION_MASK;
 	}
 
 	public boolean isQueueReadReady() {
@@ -121,7 +253,7 @@ public class CWInputQueue {
 			return false;
 
 		/* Empty queue, not ready */
-		if (waveQueue.isEmpty())
+		if (waveCount == 0)
 			return false;
 
 		/*
@@ -132,11 +264,39 @@ public class CWInputQueue {
 	}
 
 	public void completeWavesFromBegining(int beginingLen) {
-		while (beginingLen-- > 0)
-			waveQueue.remove();
+		if (beginingLen > waveCount)
+			throw new IndexOutOfBoundsException();
+
+		waveHead = (waveHead + beginingLen) & (waves.length - 1);
+		waveCount -= beginingLen;
 	}
 
 	public void completeAllWaves(int i) {
-		waveQueue.clear();
+		waveHead = 0;
+		waveCount = 0;
+	}
+
+	/*
+	 * Fill 'keys' with sort keys of first 'count' waves and sort them. Keys
+	 * order waves by duration, up-waves before down-waves of same duration
+	 * (same order as CWave.compareTo()).
+	 */
+	public void getSortedWaveKeys(long[] keys, int count) {
+		for (int i = 0; i < count; i++) {
+			int wave = getWave(i);
+
+			keys[i] = ((long) (wave & WAVE_DURATION_MASK) << 1)
+					| (wave >>> 31);
+		}
+
+		Arrays.sort(keys, 0, count);
+	}
+
+	public static byte sortedWaveKeyType(long key) {
+		return (key & 1) != 0 ? CWave.TYPE_DOWN : CWave.TYPE_UP;
+	}
+
+	public static int sortedWaveKeyDuration(long key) {
+		return (int) (key >>> 1);
 	}
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * System clock that does not jump with wall-clock adjustments. Milliseconds
+ * start from wall-clock time at creation and advance with System.nanoTime().
+ */
+public class CWMonotonicClock extends CWClock {
+	private final long baseMillis;
+	private final long baseNanos;
+
+	public CWMonotonicClock() {
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return baseMillis + (System.nanoTime() - baseNanos) / 1000000;
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+}
@@ -26,6 +26,7 @@ package fi_81.cwp_morse_mangle.cwp;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayDeque;
+import java.util.Iterator;
 
 import fi_81.cwp_morse_mangle.morse.BitString;
 
@@ -37,6 +38,15 @@ public class CWOutput {
 		public abstract void stateChange(byte newState, int value);
 	}
 
+	/*
+	 * Extended callback, receives delay of each state change written to
+	 * output buffer past its due time. Negative when written ahead of time in
+	 * batch mode.
+	 */
+	public interface CWOutputWriteNotification extends CWOutputNotification {
+		public abstract void stateChangeWritten(long addedLatency);
+	}
+
 	public static class NotificationNone implements CWOutputNotification {
 		public void frequencyChange(long newFreq) {
 		}
@@ -45,27 +55,60 @@ public class CWOutput {
 		}
 	}
 
+	/*
+	 * Output policies. Immediate writes each state change when due. Coalesce
+	 * holds due state change up to coalescing window, then writes all that
+	 * are due together. Batch writes all queued state changes ahead of time
+	 * once first one is due; timing is carried by timestamps and durations,
+	 * but receivers without latency management see them arrive in burst.
+	 */
+	public static final int OUTPUT_IMMEDIATE = 0;
+	public static final int OUTPUT_COALESCE = 1;
+	public static final int OUTPUT_BATCH = 2;
+
+	/* Size of output buffer, one write can take this much */
+	public static final int DEFAULT_BUFFER_SIZE = 128;
+	public static final int MIN_BUFFER_SIZE = 16;
+
 	private final ArrayDeque<CWStateChange> queue = new ArrayDeque<CWStateChange>();
 	private final CWStateChangeQueueFromMorseCode stateChangeBuilder = new CWStateChangeQueueFromMorseCode();
 	private ByteBuffer outBuf;
 	private long startTime;
+	private CWClock clock = CWClock.SYSTEM;
 
 	private boolean inManualUp;
 	private long manualUpStartTime;
 	private long delayedFreq = -1;
 
+	/* Last state change of queued morse message, null when none queued */
+	private CWStateChange lastMessageState = null;
+
+	private int outputPolicy = OUTPUT_IMMEDIATE;
+	private long coalesceWindow = 0;
+
 	public CWOutput(long connectionStartTime) {
-		this(null, connectionStartTime);
+		this(null, connectionStartTime, DEFAULT_BUFFER_SIZE);
+	}
+
+	public CWOutput(long connectionStartTime, int bufferSize) {
+		this(null, connectionStartTime, bufferSize);
 	}
 
 	public CWOutput(ByteBuffer bb, long connectionStartTime) {
+		this(bb, connectionStartTime, DEFAULT_BUFFER_SIZE);
+	}
+
+	private CWOutput(ByteBuffer bb, long connectionStartTime, int bufferSize) {
+		if (bb == null && bufferSize < MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("bufferSize: " + bufferSize);
+
 		startTime = connectionStartTime;
 		inManualUp = false;
 		manualUpStartTime = 0;
 
 		if (bb == null) {
 			/* Allocate IO buffer and set it to big-endian byteorder */
-			outBuf = ByteBuffer.allocateDirect(128);
+			outBuf = ByteBuffer.allocateDirect(bufferSize);
 			outBuf.order(ByteOrder.BIG_ENDIAN);
 		} else {
 			outBuf = bb;
@@ -74,17 +117,51 @@ public class CWOutput {
 		outBuf.flip();
 	}
 
+	/* Clock must be on same time scale as connection start time */
+	public void setClock(CWClock clock) {
+		this.clock = clock;
+	}
+
+	public CWClock getClock() {
+		return clock;
+	}
+
 	public ByteBuffer getOutputBuffer() {
 		return outBuf;
 	}
 
+	/*
+	 * Set output policy, 'windowMillis' is longest time due state change is
+	 * held back on OUTPUT_COALESCE. Only window of dot length or more joins
+	 * keying edges, but receivers flush stalled characters on their own
+	 * clock, so long window costs decode fidelity.
+	 */
+	public void setOutputPolicy(int policy, long windowMillis) {
+		if (!isValidOutputPolicy(policy, windowMillis))
+			throw new IllegalArgumentException("policy: " + policy
+					+ ", windowMillis: " + windowMillis);
+
+		outputPolicy = policy;
+		coalesceWindow = policy == OUTPUT_COALESCE ? windowMillis : 0;
+	}
+
+	public static boolean isValidOutputPolicy(int policy, long windowMillis) {
+		return (policy == OUTPUT_IMMEDIATE || policy == OUTPUT_COALESCE
+				|| policy == OUTPUT_BATCH) && windowMillis >= 0;
+	}
+
+	public int getOutputPolicy() {
+		return outputPolicy;
+	}
+
 	public long timeToNextQueueWork() {
 		if (queue.isEmpty())
 			return Long.MAX_VALUE;
 
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.currentTimeMillis();
 		long timeSinceConnCreation = currentTime - startTime;
-		long timeToNext = queue.peek().getOutTime() - timeSinceConnCreation;
+		long timeToNext = queue.peek().getOutTime() + coalesceWindow
+				- timeSinceConnCreation;
 
 		if (timeToNext < 0)
 			return 0;
@@ -101,7 +178,7 @@ public class CWOutput {
 		 * sec [(2^16-1) msec]).
 		 */
 		long nextReupTime = manualUpStartTime + (55 * 1000);
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.currentTimeMillis();
 		long timeToNext = nextReupTime - currentTime;
 
 		if (timeToNext < 0)
@@ -121,6 +198,19 @@ public class CWOutput {
 		return timeToNextQueueWork() == 0;
 	}
 
+	/*
+	 * Signal width and jitter of encoded messages, instead of process-wide
+	 * settings of CWStateChangeQueueFromMorseCode.
+	 */
+	public void setSignal(int signalWidth, int jitterThreshold, double jitter) {
+		stateChangeBuilder.setSignal(signalWidth, jitterThreshold, jitter);
+	}
+
+	/* Encoder of messages, for compiling templates with same signal */
+	public CWStateChangeQueueFromMorseCode getEncoder() {
+		return stateChangeBuilder;
+	}
+
 	public boolean isBusy() {
 		return !queue.isEmpty() && inManualUp;
 	}
@@ -130,27 +220,68 @@ public class CWOutput {
 	}
 
 	public boolean sendMorseCode(BitString morseCode) {
-		if (!queue.isEmpty() || inManualUp)
+		if (lastMessageState != null || inManualUp)
 			return false;
 
+		int numQueued = queue.size();
+
 		stateChangeBuilder.encode(queue, morseCode);
+		if (queue.size() == numQueued)
+			return true;
 
+		adjustQueuedTimestamps(queue.size() - numQueued);
+		lastMessageState = queue.peekLast();
+
+		return true;
+	}
+
+	/* Encode message text directly to state changes and queue for sending */
+	public boolean sendMorseMessage(CharSequence message) {
+		if (lastMessageState != null || inManualUp)
+			return false;
+
+		int numQueued = queue.size();
+
+		stateChangeBuilder.encode(queue, message);
+		if (queue.size() == numQueued)
+			return true;
+
+		adjustQueuedTimestamps(queue.size() - numQueued);
+		lastMessageState = queue.peekLast();
+
+		return true;
+	}
+
+	/*
+	 * Queue precompiled message, rebased to current connection time. Can
+	 * follow manual state changes still held back by output policy.
+	 */
+	public boolean sendMorseCode(CWTransmissionTemplate template) {
+		if (lastMessageState != null || inManualUp)
+			return false;
+
+		long currentTime = clock.currentTimeMillis();
+		template.appendTo(queue, currentTime - startTime);
+		lastMessageState = queue.peekLast();
+
+		return true;
+	}
+
+	/*
+	 * Rebase newly encoded state changes at tail of queue, earlier ones
+	 * already have connection timestamps.
+	 */
+	private void adjustQueuedTimestamps(int numEncoded) {
 		/* adjust timestamps based on time since connection was created */
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.currentTimeMillis();
 		long timeSinceConnCreation = currentTime - startTime;
-		CWStateChange last = null;
-
-		for (CWStateChange stateChange : queue) {
-			stateChange.addTimestamp(timeSinceConnCreation);
-			last = stateChange;
-		}
+		Iterator<CWStateChange> iter = queue.descendingIterator();
 
 		/* sanity check */
-		if (last != null) {
-			assert (last.getType() == CWStateChange.TYPE_UP_TO_DOWN);
-		}
+		assert (queue.peekLast().getType() == CWStateChange.TYPE_UP_TO_DOWN);
 
-		return true;
+		for (int i = 0; i < numEncoded; i++)
+			iter.next().addTimestamp(timeSinceConnCreation);
 	}
 
 	public boolean sendFrequenceChange(long newFreq) {
@@ -172,10 +303,10 @@ public class CWOutput {
 
 	private boolean sendStateChange(byte stateChange) {
 		/*
-		 * if inManualUp, then queue might have the up-value that we add there
-		 * moment ago
+		 * No manual keying while morse message is being sent. Queue might
+		 * still have earlier manual state changes held back by output policy.
 		 */
-		if (!queue.isEmpty() && !inManualUp)
+		if (lastMessageState != null && !inManualUp)
 			return false;
 
 		/* already in manual up */
@@ -188,7 +319,7 @@ public class CWOutput {
 
 		/* from manual up to down, check elapsed time and add message to queue */
 		if (inManualUp && stateChange == CWStateChange.TYPE_UP_TO_DOWN) {
-			long currentTime = System.currentTimeMillis();
+			long currentTime = clock.currentTimeMillis();
 			long timestamp = currentTime - startTime;
 			int upStateDuration = (int) (currentTime - manualUpStartTime);
 
@@ -205,7 +336,7 @@ public class CWOutput {
 		 * timestamp
 		 */
 		if (!inManualUp && stateChange == CWStateChange.TYPE_DOWN_TO_UP) {
-			manualUpStartTime = System.currentTimeMillis();
+			manualUpStartTime = clock.currentTimeMillis();
 			long timestamp = manualUpStartTime - startTime;
 
 			queue.add(new CWStateChange(stateChange, (int) timestamp, timestamp));
@@ -221,7 +352,7 @@ public class CWOutput {
 		if (!inManualUp)
 			return;
 
-		long currentTime = System.currentTimeMillis();
+		long currentTime = clock.currentTimeMillis();
 		long timestamp = currentTime - startTime;
 		int upStateDuration = (int) (currentTime - manualUpStartTime);
 
@@ -251,9 +382,17 @@ public class CWOutput {
 		if (inManualUp && timeToNextContinuousUpWaveWork() == 0)
 			renewUpState();
 
+		/* Nothing to write yet if first state change is held back */
+		boolean timeToSend = isTimeToSend();
+		long timeSinceConnCreation = clock.currentTimeMillis() - startTime;
+
 		outBuf.compact();
 
-		while (isTimeToSend()) {
+		/* Write all due state changes, or all queued on batch policy */
+		while (timeToSend
+				&& !queue.isEmpty()
+				&& (outputPolicy == OUTPUT_BATCH || queue.peek()
+						.getOutTime() <= timeSinceConnCreation)) {
 			/* Get first state-change from queue */
 			CWStateChange stateToSend = queue.peek();
 
@@ -264,6 +403,16 @@ public class CWOutput {
 
 			queue.remove();
 
+			if (stateToSend == lastMessageState)
+				lastMessageState = null;
+
+			/* Frequency changes are sent without due time */
+			if (stateToSend.getType() != CWStateChange.TYPE_FREQUENCY_CHANGE
+					&& notify instanceof CWOutputWriteNotification)
+				((CWOutputWriteNotification) notify)
+						.stateChangeWritten(timeSinceConnCreation
+								- stateToSend.getOutTime());
+
 			switch (stateToSend.getType()) {
 			case CWStateChange.TYPE_DOWN_TO_UP:
 				notify.stateChange(CWave.TYPE_UP, stateToSend.getValue());
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Clock read once per loop iteration. currentTimeMillis() returns time of
+ * last sample(), so all work done in same iteration sees same time.
+ * nanoTime() is not sampled, it is used for measuring work.
+ */
+public class CWSampledClock extends CWClock {
+	private final CWClock source;
+	private volatile long millis;
+
+	public CWSampledClock(CWClock source) {
+		this.source = source;
+
+		sample();
+	}
+
+	public void sample() {
+		millis = source.currentTimeMillis();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return millis;
+	}
+
+	@Override
+	public long nanoTime() {
+		return source.nanoTime();
+	}
+
+	@Override
+	public CWClock getLiveClock() {
+		return source.getLiveClock();
+	}
+}
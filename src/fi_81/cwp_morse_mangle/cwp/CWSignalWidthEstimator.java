@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Online estimator of morse signal width. Each accepted wave updates width
+ * and per class jitter statistics in constant time, so width keeps tracking
+ * sender between messages without re-detection from queued waves.
+ */
+public class CWSignalWidthEstimator {
+	public static final int CLASS_SHORT = 0;
+	public static final int CLASS_LONG = 1;
+	public static final int CLASS_WORDBREAK = 2;
+	private static final int NUM_CLASSES = 3;
+
+	/* Length of each class in signal widths */
+	private static final double[] CLASS_UNITS = { 1.0, 3.0, 7.0 };
+
+	/*
+	 * Bounds for learned jitter tolerances. Maximums are chosen so that
+	 * acceptance windows of classes never overlap, initial tolerances are the
+	 * fixed tolerances of width detection.
+	 */
+	private static final double[] INITIAL_JITTER = { 0.5, 0.3, 0.2 };
+	private static final double[] MIN_JITTER = { 0.25, 0.15, 0.1 };
+	private static final double[] MAX_JITTER = { 0.6, 0.4, 0.35 };
+
+	/* Tolerance is this many times average relative deviation */
+	private static final double JITTER_MARGIN = 4.0;
+
+	/* Weight of new sample in moving averages */
+	private static final double WIDTH_ALPHA = 1.0 / 8;
+	private static final double JITTER_ALPHA = 1.0 / 16;
+
+	private double width;
+	private long numSamples;
+	private final double[] deviation = new double[NUM_CLASSES];
+	private final double[] tolerance = new double[NUM_CLASSES];
+
+	public CWSignalWidthEstimator() {
+		reset();
+	}
+
+	public void reset() {
+		width = 0.0;
+		numSamples = 0;
+
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			deviation[i] = INITIAL_JITTER[i] / JITTER_MARGIN;
+			tolerance[i] = INITIAL_JITTER[i];
+		}
+	}
+
+	/* Start tracking new sender from detected width */
+	public void seed(double detectedWidth) {
+		reset();
+		width = detectedWidth;
+	}
+
+	/* Move width to new anchor, keeping learned jitter of sender */
+	public void reanchor(double anchoredWidth) {
+		width = anchoredWidth;
+	}
+
+	public boolean hasEstimate() {
+		return width > 0.0;
+	}
+
+	public double getWidth() {
+		return width;
+	}
+
+	public long getNumSamples() {
+		return numSamples;
+	}
+
+	/* Current allowed relative jitter for wave class */
+	public double getTolerance(int waveClass) {
+		return tolerance[waveClass];
+	}
+
+	/* Update estimate with wave accepted as 'waveClass', returns new width */
+	public double update(int duration, int waveClass) {
+		double unitWidth = duration / CLASS_UNITS[waveClass];
+		double error = unitWidth / width - 1.0;
+
+		width += (unitWidth - width) * WIDTH_ALPHA;
+
+		double dev = deviation[waveClass];
+		dev += (Math.abs(error) - dev) * JITTER_ALPHA;
+		deviation[waveClass] = dev;
+
+		double tol = dev * JITTER_MARGIN;
+		if (tol < MIN_JITTER[waveClass])
+			tol = MIN_JITTER[waveClass];
+		else if (tol > MAX_JITTER[waveClass])
+			tol = MAX_JITTER[waveClass];
+		tolerance[waveClass] = tol;
+
+		numSamples++;
+
+		return width;
+	}
+}
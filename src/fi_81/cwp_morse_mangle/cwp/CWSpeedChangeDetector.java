@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Streaming change-point detector for sender speed. Two-sided CUSUM over log
+ * residuals of accepted waves against current signal width. When cumulative
+ * shift exceeds threshold, new segment starts from wave where shift began and
+ * width is re-anchored to average of waves in that segment.
+ */
+public class CWSpeedChangeDetector {
+	/* Log-width shifts smaller than this (about 10%) are ignored */
+	private static final double DRIFT = 0.1;
+
+	/* Cumulative log-width shift needed for change */
+	private static final double THRESHOLD = 0.6;
+
+	/* Waves used to anchor width after change that broke adaption */
+	public static final int SEGMENT_WAVES = 6;
+
+	private double sumUp;
+	private double sumDown;
+	private double segmentUpLogWidth;
+	private double segmentDownLogWidth;
+	private int segmentUpCount;
+	private int segmentDownCount;
+
+	private double anchoredWidth;
+	private long changeCount;
+
+	public CWSpeedChangeDetector() {
+		reset();
+		changeCount = 0;
+	}
+
+	public void reset() {
+		sumUp = 0.0;
+		sumDown = 0.0;
+		segmentUpLogWidth = 0.0;
+		segmentDownLogWidth = 0.0;
+		segmentUpCount = 0;
+		segmentDownCount = 0;
+	}
+
+	/* Width of new segment after update() reported change */
+	public double getAnchoredWidth() {
+		return anchoredWidth;
+	}
+
+	/* Number of speed changes detected */
+	public long getChangeCount() {
+		return changeCount;
+	}
+
+	/*
+	 * Add wave accepted as 'units' signal widths long. Returns true if speed
+	 * change was detected, new width is then available from
+	 * getAnchoredWidth().
+	 */
+	public boolean update(int duration, int units, double width) {
+		double logUnitWidth = Math.log((double) duration / units);
+		double residual = logUnitWidth - Math.log(width);
+
+		/* Faster changes, segment starts where sum rises from zero */
+		double sum = sumUp + residual - DRIFT;
+		if (sum <= 0.0) {
+			sumUp = 0.0;
+			segmentUpLogWidth = 0.0;
+			segmentUpCount = 0;
+		} else {
+			sumUp = sum;
+			segmentUpLogWidth += logUnitWidth;
+			segmentUpCount++;
+		}
+
+		/* Slower changes */
+		sum = sumDown - residual - DRIFT;
+		if (sum <= 0.0) {
+			sumDown = 0.0;
+			segmentDownLogWidth = 0.0;
+			segmentDownCount = 0;
+		} else {
+			sumDown = sum;
+			segmentDownLogWidth += logUnitWidth;
+			segmentDownCount++;
+		}
+
+		if (sumUp > THRESHOLD)
+			return changeDetected(segmentUpLogWidth / segmentUpCount);
+		if (sumDown > THRESHOLD)
+			return changeDetected(segmentDownLogWidth / segmentDownCount);
+
+		return false;
+	}
+
+	private boolean changeDetected(double logWidth) {
+		segmentChanged(Math.exp(logWidth));
+
+		return true;
+	}
+
+	/* Start new segment at 'width', when change was found by other means */
+	public void segmentChanged(double width) {
+		anchoredWidth = width;
+		changeCount++;
+		reset();
+	}
+
+	/*
+	 * Estimate width of waves at start of queue. Shortest wave is assumed to be
+	 * one signal width, waves that fit one or three widths of it are averaged.
+	 * Returns zero if there are no waves.
+	 */
+	public static double estimateSegmentWidth(CWInputQueue queue, int maxWaves) {
+		int len = Math.min(queue.queueLength(), maxWaves);
+		int minDuration = Integer.MAX_VALUE;
+
+		for (int i = 0; i < len; i++) {
+			int duration = queue.getWaveDuration(i);
+
+			if (duration > 0 && duration < minDuration)
+				minDuration = duration;
+		}
+
+		if (minDuration == Integer.MAX_VALUE)
+			return 0.0;
+
+		double sum = 0.0;
+		int count = 0;
+		for (int i = 0; i < len; i++) {
+			int duration = queue.getWaveDuration(i);
+
+			if (duration <= 0)
+				continue;
+
+			if (duration < minDuration * 2) {
+				sum += duration;
+				count++;
+			} else if (duration * 2 < minDuration * 9) {
+				sum += duration / 3.0;
+				count++;
+			}
+		}
+
+		double width = sum / count;
+		if (width < 1.0)
+			width = 1.0;
+
+		return width;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lock-free ring passing long values from single producer thread to single
+ * consumer thread. Each side writes only its own index and keeps cached copy
+ * of other side's index, so shared index is read only when ring looks full
+ * (producer) or empty (consumer).
+ */
+public class CWSpscLongRing {
+	private final long buffer[];
+	private final int mask;
+
+	/* Next position to write, written by producer */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/* Next position to read, written by consumer */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/* Producer's copy of head */
+	private long headCache = 0;
+
+	/* Consumer's copy of tail */
+	private long tailCache = 0;
+
+	public CWSpscLongRing(int capacity) {
+		int size = 2;
+
+		/* Round capacity up to power of two */
+		while (size < capacity)
+			size *= 2;
+
+		buffer = new long[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/* Producer: add value, returns false if ring is full */
+	public boolean offer(long value) {
+		long pos = tail.get();
+
+		if (pos - headCache >= buffer.length) {
+			headCache = head.get();
+			if (pos - headCache >= buffer.length)
+				return false;
+		}
+
+		buffer[(int) pos & mask] = value;
+		tail.lazySet(pos + 1);
+
+		return true;
+	}
+
+	/* Consumer: move up to 'max' values to 'dst', returns number moved */
+	public int drain(long dst[], int max) {
+		long pos = head.get();
+
+		/* Refresh tail only if cached part cannot fill 'dst' */
+		if (tailCache - pos < max) {
+			tailCache = tail.get();
+			if (pos >= tailCache)
+				return 0;
+		}
+
+		int count = (int) Math.min(max, tailCache - pos);
+		for (int i = 0; i < count; i++)
+			dst[i] = buffer[(int) (pos + i) & mask];
+
+		head.lazySet(pos + count);
+
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+}
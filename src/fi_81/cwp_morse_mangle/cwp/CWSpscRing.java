@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lock-free ring passing objects from single producer thread to single
+ * consumer thread, same scheme as CWSpscLongRing.
+ */
+public class CWSpscRing<E> {
+	private final Object buffer[];
+	private final int mask;
+
+	/* Next position to write, written by producer */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/* Next position to read, written by consumer */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/* Producer's copy of head */
+	private long headCache = 0;
+
+	/* Consumer's copy of tail */
+	private long tailCache = 0;
+
+	public CWSpscRing(int capacity) {
+		int size = 2;
+
+		/* Round capacity up to power of two */
+		while (size < capacity)
+			size *= 2;
+
+		buffer = new Object[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/* Producer: add element, returns false if ring is full */
+	public boolean offer(E element) {
+		long pos = tail.get();
+
+		if (pos - headCache >= buffer.length) {
+			headCache = head.get();
+			if (pos - headCache >= buffer.length)
+				return false;
+		}
+
+		buffer[(int) pos & mask] = element;
+		tail.lazySet(pos + 1);
+
+		return true;
+	}
+
+	/* Consumer: remove next element, null if ring is empty */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long pos = head.get();
+
+		if (pos >= tailCache) {
+			tailCache = tail.get();
+			if (pos >= tailCache)
+				return null;
+		}
+
+		int index = (int) pos & mask;
+		E element = (E) buffer[index];
+
+		/* Release reference for garbage collection */
+		buffer[index] = null;
+		head.lazySet(pos + 1);
+
+		return element;
+	}
+
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+}
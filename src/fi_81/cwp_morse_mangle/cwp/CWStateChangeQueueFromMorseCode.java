@@ -23,16 +23,33 @@
 
 package fi_81.cwp_morse_mangle.cwp;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Deque;
 
 import fi_81.cwp_morse_mangle.cwp.CWStateChange;
 import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseCharList;
 
+/*
+ * Encodes morse to timed state changes. Signal width and jitter are
+ * process-wide unless encoder is given its own with setSignal(), as each
+ * connection does with its configured morse speed.
+ */
 public class CWStateChangeQueueFromMorseCode {
+	/* Each morse character is separated with 3 units of down and word by 7. */
+	private static final int MORSE_CHAR_STOP_UNITS = 3;
+	private static final int MORSE_WORD_STOP_UNITS = 7;
+
 	private static int signalWidth = 1;
 	private static int signalJitterThreshold = 0;
 	private static double signalJitter = 0.0;
 
+	/* Own settings of encoder, zero width for process-wide settings */
+	private int ownSignalWidth = 0;
+	private int ownJitterThreshold = 0;
+	private double ownJitter = 0.0;
+
 	public static void setSignalWidth(int signalWidth) {
 		assert (signalWidth > 0);
 
@@ -48,8 +65,58 @@ public class CWStateChangeQueueFromMorseCode {
 		return signalWidth;
 	}
 
+	public static boolean isSignalJitterEnabled() {
+		return isJitterEnabled(signalWidth, signalJitterThreshold,
+				signalJitter);
+	}
+
+	private static boolean isJitterEnabled(int width, int threshold,
+			double jitter) {
+		return width >= threshold && jitter > 0.0 && jitter < 0.5;
+	}
+
+	/* Use own signal width and jitter instead of process-wide settings */
+	public void setSignal(int signalWidth, int jitterThreshold, double jitter) {
+		assert (signalWidth > 0);
+
+		ownSignalWidth = signalWidth;
+		ownJitterThreshold = jitterThreshold;
+		ownJitter = jitter;
+	}
+
+	/* Signal width used by this encoder */
+	public int getWidth() {
+		return ownSignalWidth > 0 ? ownSignalWidth : signalWidth;
+	}
+
+	public boolean isJitterEnabled() {
+		if (ownSignalWidth > 0)
+			return isJitterEnabled(ownSignalWidth, ownJitterThreshold,
+					ownJitter);
+
+		return isSignalJitterEnabled();
+	}
+
+	/* Width of one signal unit, with jitter if enabled */
+	private static int unitDuration(int width, double jitter) {
+		if (jitter == 0.0)
+			return width;
+
+		return (int) Math.round((double) width
+				* (2 * jitter * (Math.random() - 0.5) + 1.0));
+	}
+
+	private double currentJitter() {
+		if (!isJitterEnabled())
+			return 0.0;
+
+		return ownSignalWidth > 0 ? ownJitter : signalJitter;
+	}
+
 	public void encode(Deque<CWStateChange> states, BitString bits) {
 		int i, len = bits.length();
+		int width = getWidth();
+		double jitter = currentJitter();
 		boolean isUp = false;
 		int timestamp = 0;
 		int duration = 0;
@@ -72,13 +139,7 @@ public class CWStateChangeQueueFromMorseCode {
 				}
 			}
 
-			int add = signalWidth;
-			if (add >= signalJitterThreshold && signalJitter > 0.0
-					&& signalJitter < 0.5) {
-				double jitter = 2 * signalJitter * (Math.random() - 0.5) + 1.0;
-
-				add = (int) Math.round((double) add * jitter);
-			}
+			int add = unitDuration(width, jitter);
 
 			timestamp += add;
 			duration += add;
@@ -89,4 +150,151 @@ public class CWStateChangeQueueFromMorseCode {
 			states.add(new CWStateChange(CWStateChange.TYPE_UP_TO_DOWN,
 					duration, timestamp));
 	}
+
+	/* Receiver for state changes from message encoder */
+	public interface StateChangeSink {
+		public abstract void stateChange(byte type, int timestampOrDuration,
+				long outTime);
+	}
+
+	/* Get duration of 'units' signal widths, with jitter if enabled */
+	private int runDuration(int units) {
+		int width = getWidth();
+		double jitter = currentJitter();
+
+		if (jitter == 0.0)
+			return units * width;
+
+		/* Jitter is applied to each signal unit separately */
+		int duration = 0;
+		for (int i = 0; i < units; i++)
+			duration += unitDuration(width, jitter);
+
+		return duration;
+	}
+
+	/*
+	 * Encode message text directly to state changes, without intermediate
+	 * morse BitString. Each dit/dah is handled as single run, giving one
+	 * up and one down state change. Returns total length of message in time.
+	 */
+	public int encode(StateChangeSink sink, CharSequence message) {
+		boolean addCharStop = false;
+		boolean addWordStop = false;
+		int timestamp = 0;
+
+		for (int i = 0, len = message.length(); i < len; i++) {
+			char ch = message.charAt(i);
+
+			/*
+			 * If character is space, we replace character-stop signal with
+			 * word-stop (same as in MorseCodec.encodeMessageToMorse()).
+			 */
+			if (ch == ' ') {
+				/* multiple spaces are skipped */
+				if (!addCharStop)
+					continue;
+
+				addCharStop = false;
+				addWordStop = true;
+				continue;
+			}
+
+			long code = MorseCharList.characterToMorseCode(ch);
+			if (MorseCharList.morseCodeLength(code) == 0)
+				continue;
+
+			/* Add character-stop or word-stop as down time */
+			if (addCharStop) {
+				timestamp += runDuration(MORSE_CHAR_STOP_UNITS);
+				addCharStop = false;
+			}
+			if (addWordStop) {
+				timestamp += runDuration(MORSE_WORD_STOP_UNITS);
+				addWordStop = false;
+			}
+
+			/* Walk code bits by runs of zeros and ones */
+			long bits = MorseCharList.morseCodeBits(code);
+			while (bits != 0) {
+				int zeros = Long.numberOfTrailingZeros(bits);
+				if (zeros > 0) {
+					timestamp += runDuration(zeros);
+					bits >>>= zeros;
+				}
+
+				int ones = Long.numberOfTrailingZeros(~bits);
+				int duration = runDuration(ones);
+
+				/* State change, down to up. With timestamp. */
+				sink.stateChange(CWStateChange.TYPE_DOWN_TO_UP, timestamp,
+						timestamp);
+
+				timestamp += duration;
+
+				/* State change, up to down. With duration */
+				sink.stateChange(CWStateChange.TYPE_UP_TO_DOWN, duration,
+						timestamp);
+
+				bits >>>= ones;
+			}
+
+			addCharStop = true;
+		}
+
+		return timestamp;
+	}
+
+	/* Encode message text directly to queue of state changes */
+	public int encode(Deque<CWStateChange> states, CharSequence message) {
+		queueSink.states = states;
+		try {
+			return encode(queueSink, message);
+		} finally {
+			queueSink.states = null;
+		}
+	}
+
+	/*
+	 * Encode message text directly to CWP wire format, with timestamps
+	 * relative to 'timeBase'. Throws BufferOverflowException if 'outbuf' does
+	 * not have enough space.
+	 */
+	public int encode(ByteBuffer outbuf, CharSequence message, long timeBase) {
+		bufferSink.outbuf = outbuf;
+		bufferSink.timeBase = timeBase;
+		try {
+			return encode(bufferSink, message);
+		} finally {
+			bufferSink.outbuf = null;
+		}
+	}
+
+	private static class QueueSink implements StateChangeSink {
+		private Deque<CWStateChange> states;
+
+		public void stateChange(byte type, int timestampOrDuration,
+				long outTime) {
+			states.add(new CWStateChange(type, timestampOrDuration, outTime));
+		}
+	}
+
+	private static class BufferSink implements StateChangeSink {
+		private final CWStateChange state = new CWStateChange();
+		private ByteBuffer outbuf;
+		private long timeBase;
+
+		public void stateChange(byte type, int timestampOrDuration,
+				long outTime) {
+			state.setValues(type, timestampOrDuration, outTime);
+			state.addTimestamp(timeBase);
+
+			if (!state.writeToBuffer(outbuf))
+				throw new BufferOverflowException();
+		}
+	}
+
+	/* Reused sink adapters */
+	private final QueueSink queueSink = new QueueSink();
+	private final BufferSink bufferSink = new BufferSink();
 }
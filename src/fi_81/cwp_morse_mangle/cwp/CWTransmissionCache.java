@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Bounded LRU cache of compiled transmission templates, keyed by message text
+ * and signal width. Not thread-safe, to be used from IO thread only.
+ */
+public class CWTransmissionCache {
+	public static final int DEFAULT_MAX_ENTRIES = 16;
+
+	private final int maxEntries;
+	private final LinkedHashMap<Key, CWTransmissionTemplate> templates;
+	private final Key lookupKey = new Key();
+	private final CWStateChangeQueueFromMorseCode defaultEncoder = new CWStateChangeQueueFromMorseCode();
+	private long hits = 0;
+	private long misses = 0;
+
+	public CWTransmissionCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public CWTransmissionCache(int maxEntries) {
+		assert (maxEntries > 0);
+
+		this.maxEntries = maxEntries;
+
+		/* Access-ordered map, eldest entry is least recently used */
+		templates = new LinkedHashMap<Key, CWTransmissionTemplate>(
+				maxEntries * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CWTransmissionTemplate> eldest) {
+				return size() > CWTransmissionCache.this.maxEntries;
+			}
+		};
+	}
+
+	/*
+	 * Get template for message at process-wide signal width. Returns null on
+	 * miss, caller then compiles template and stores it with put().
+	 */
+	public CWTransmissionTemplate lookup(String message) {
+		return lookup(message, defaultEncoder);
+	}
+
+	/* Get template for message at signal width of 'encoder' */
+	public CWTransmissionTemplate lookup(String message,
+			CWStateChangeQueueFromMorseCode encoder) {
+		/*
+		 * Jitter makes each transmission different, so templates are not used
+		 * when jitter is enabled.
+		 */
+		if (encoder.isJitterEnabled()) {
+			misses++;
+			return null;
+		}
+
+		lookupKey.set(message, encoder.getWidth());
+
+		CWTransmissionTemplate template = templates.get(lookupKey);
+		if (template == null)
+			misses++;
+		else
+			hits++;
+
+		return template;
+	}
+
+	public void put(String message, CWTransmissionTemplate template) {
+		put(message, template, defaultEncoder);
+	}
+
+	/* Store template compiled with 'encoder' */
+	public void put(String message, CWTransmissionTemplate template,
+			CWStateChangeQueueFromMorseCode encoder) {
+		if (encoder.isJitterEnabled())
+			return;
+
+		Key key = new Key();
+		key.set(message, template.getSignalWidth());
+
+		templates.put(key, template);
+	}
+
+	public void clear() {
+		templates.clear();
+	}
+
+	public int size() {
+		return templates.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private static class Key {
+		private String message;
+		private int signalWidth;
+
+		public void set(String message, int signalWidth) {
+			this.message = message;
+			this.signalWidth = signalWidth;
+		}
+
+		@Override
+		public int hashCode() {
+			return message.hashCode() * 31 + signalWidth;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return signalWidth == other.signalWidth
+					&& message.equals(other.message);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.Arrays;
+import java.util.Deque;
+
+/*
+ * Precompiled state change schedule of message, with times relative to start
+ * of message. Template is immutable and can be rebased onto connection clock
+ * any number of times without re-encoding message.
+ */
+public class CWTransmissionTemplate {
+	/* Pairs of up-wave start time and duration */
+	private final int[] upWaves;
+	private final int signalWidth;
+	private final int duration;
+
+	private CWTransmissionTemplate(int[] upWaves, int signalWidth,
+			int duration) {
+		this.upWaves = upWaves;
+		this.signalWidth = signalWidth;
+		this.duration = duration;
+	}
+
+	/* Compile message text with process-wide signal width */
+	public static CWTransmissionTemplate compile(CharSequence message) {
+		return compile(message, new CWStateChangeQueueFromMorseCode());
+	}
+
+	/* Compile message text with signal width of 'encoder' */
+	public static CWTransmissionTemplate compile(CharSequence message,
+			CWStateChangeQueueFromMorseCode encoder) {
+		TemplateSink sink = new TemplateSink();
+		int duration = encoder.encode(sink, message);
+
+		return new CWTransmissionTemplate(Arrays.copyOf(sink.upWaves,
+				sink.length), encoder.getWidth(), duration);
+	}
+
+	public int getSignalWidth() {
+		return signalWidth;
+	}
+
+	/* Total length of message in time */
+	public int getDuration() {
+		return duration;
+	}
+
+	public int getNumStateChanges() {
+		return upWaves.length;
+	}
+
+	/*
+	 * Append state changes to queue, with timestamps rebased to 'timeBase'.
+	 * Returns number of state changes added.
+	 */
+	public int appendTo(Deque<CWStateChange> states, long timeBase) {
+		for (int i = 0; i < upWaves.length; i += 2) {
+			long start = timeBase + upWaves[i];
+			int upDuration = upWaves[i + 1];
+
+			/* State change, down to up. With timestamp. */
+			states.add(new CWStateChange(CWStateChange.TYPE_DOWN_TO_UP,
+					(int) start, start));
+
+			/* State change, up to down. With duration */
+			states.add(new CWStateChange(CWStateChange.TYPE_UP_TO_DOWN,
+					upDuration, start + upDuration));
+		}
+
+		return upWaves.length;
+	}
+
+	private static class TemplateSink implements
+			CWStateChangeQueueFromMorseCode.StateChangeSink {
+		private int[] upWaves = new int[64];
+		private int length = 0;
+
+		public void stateChange(byte type, int timestampOrDuration,
+				long outTime) {
+			if (length == upWaves.length)
+				upWaves = Arrays.copyOf(upWaves, length * 2);
+
+			/* Up-waves are reported as start timestamp followed by duration */
+			upWaves[length++] = timestampOrDuration;
+		}
+	}
+}
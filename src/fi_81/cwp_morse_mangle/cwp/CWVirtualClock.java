@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+/*
+ * Clock that advances only when told to, for deterministic tests and
+ * simulations running faster than real time.
+ */
+public class CWVirtualClock extends CWClock {
+	private volatile long nanos;
+
+	public CWVirtualClock(long startMillis) {
+		nanos = startMillis * 1000000;
+	}
+
+	public void advance(long millis) {
+		nanos += millis * 1000000;
+	}
+
+	public void advanceNanos(long delta) {
+		nanos += delta;
+	}
+
+	public void setTimeMillis(long millis) {
+		nanos = millis * 1000000;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return nanos / 1000000;
+	}
+
+	@Override
+	public long nanoTime() {
+		return nanos;
+	}
+}
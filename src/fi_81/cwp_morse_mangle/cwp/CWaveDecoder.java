@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import fi_81.cwp_morse_mangle.morse.BitString;
+
+/*
+ * Decoder engine from received waves to morse bits. tryDecode() consumes
+ * waves from queue and returns morse code when full characters have been
+ * received, flushStalled() returns pending bits ended with
+ * SPECIAL_STOP_MESSAGE once input has stalled. getDecodeBatch() gives
+ * per-character confidence of last returned morse code.
+ */
+public interface CWaveDecoder {
+	public abstract BitString tryDecode(CWInputQueue queue, boolean force);
+
+	/*
+	 * As tryDecode() above, but stops when work budget is used. Remaining
+	 * waves stay in queue and decoding continues from them on next call.
+	 */
+	public abstract BitString tryDecode(CWInputQueue queue, boolean force,
+			CWDecodeBudget budget);
+
+	public abstract BitString flushStalled(boolean forceFlush);
+
+	public abstract boolean hadPendingBits();
+
+	public abstract long getFlushTimeout();
+
+	public abstract CWDecodeBatch getDecodeBatch();
+
+	public abstract void setClock(CWClock clock);
+}
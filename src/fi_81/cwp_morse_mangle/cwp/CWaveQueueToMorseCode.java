@@ -23,15 +23,11 @@
 
 package fi_81.cwp_morse_mangle.cwp;
 
-import java.util.ArrayDeque;
-import java.util.Arrays;
-import java.util.Iterator;
-
 import fi_81.cwp_morse_mangle.cwp.CWave;
 import fi_81.cwp_morse_mangle.morse.BitString;
 import fi_81.cwp_morse_mangle.morse.MorseCharList;
 
-public class CWaveQueueToMorseCode {
+public class CWaveQueueToMorseCode implements CWaveDecoder {
 	private static final double MORSE_SHORT_WIDTH = 1.0;
 	private static final double MORSE_LONG_WIDTH = MORSE_SHORT_WIDTH * 3;
 	private static final double MORSE_WORDBREAK_WIDTH = MORSE_SHORT_WIDTH * 7;
@@ -61,14 +57,40 @@ public class CWaveQueueToMorseCode {
 	/* limit number of sample waves used for detection */
 	private static final int MORSE_MAX_DETECTION_SAMPLE = 24;
 
+	/* Returned by decodeStep() when waves were discarded or width changed */
+	private static final BitString RETRY_DECODE = new BitString();
+
+	/* Budget used when caller does not limit decoding */
+	private final CWDecodeBudget unlimitedBudget = new CWDecodeBudget();
+
 	/* Current adaption to wave width (length in time) */
 	private double adaptionWidth;
 
+	/* Tracks width and jitter of sender, kept between messages */
+	private final CWSignalWidthEstimator widthEstimator = new CWSignalWidthEstimator();
+
+	/* Re-anchors width when sender speed changes within message */
+	private final CWSpeedChangeDetector speedChangeDetector = new CWSpeedChangeDetector();
+
+	/* Retrying after width was re-anchored to new segment */
+	private boolean speedChangeRetry = false;
+
+	/* Tracked width did not match, retry with width detection */
+	private boolean trackedWidthFailed = false;
+
 	/* Currently collected morse-bits */
 	private final StringBuffer morseBits = new StringBuffer();
 
+	/* Per-symbol and per-character confidence of collected morse-bits */
+	private final CWDecodeBatch decodeBatch = new CWDecodeBatch();
+
+	/* Decode trie node of character being collected */
+	private int trieNode = MorseCharList.TRIE_ROOT;
+
 	private long lastPendingWaveTime;
 
+	private CWClock clock = CWClock.SYSTEM;
+
 	public CWaveQueueToMorseCode() {
 		lastPendingWaveTime = 0;
 
@@ -77,18 +99,61 @@ public class CWaveQueueToMorseCode {
 	}
 
 	public BitString tryDecode(CWInputQueue queue, boolean force) {
+		return tryDecode(queue, force, unlimitedBudget);
+	}
+
+	/*
+	 * Decode in steps until morse code is received, queue runs out or budget
+	 * is used. Decoding state is kept in fields, so next call continues where
+	 * this one left off.
+	 */
+	public BitString tryDecode(CWInputQueue queue, boolean force,
+			CWDecodeBudget budget) {
+		BitString morseCode;
+
+		do {
+			morseCode = decodeStep(queue, force, budget);
+		} while (morseCode == RETRY_DECODE && !budget.isExhausted());
+
+		return morseCode == RETRY_DECODE ? null : morseCode;
+	}
+
+	private BitString decodeStep(CWInputQueue queue, boolean force,
+			CWDecodeBudget budget) {
 		boolean readapted = false;
+		boolean usedTrackedWidth = false;
+		boolean retryAfterSpeedChange = speedChangeRetry;
+
+		speedChangeRetry = false;
 
 		if (!queue.isQueueReadReady())
 			return null;
 
+		/*
+		 * Continue with width tracked from previous message, if queued waves
+		 * match it.
+		 */
+		if (adaptionWidth <= 0.0 && widthEstimator.hasEstimate()
+				&& !trackedWidthFailed) {
+			int sampleLimit = Math.min(queue.queueLength(),
+					MORSE_MAX_DETECTION_SAMPLE);
+
+			if (isDetectedWidthOk(widthEstimator.getWidth(), queue,
+					sampleLimit)) {
+				adaptionWidth = widthEstimator.getWidth();
+				usedTrackedWidth = true;
+			}
+		}
+		trackedWidthFailed = false;
+
 		/* Attempt to detect short morse signal width */
 		if (adaptionWidth <= 0.0) {
 			do {
-				CWave[] samples = queue.getQueue().toArray(emptyCWaveArray);
-				adaptionWidth = detectSignalWidth(samples, samples.length,
+				adaptionWidth = detectSignalWidth(queue, queue.queueLength(),
 						force);
 				readapted = true;
+				budget.consume(Math.min(queue.queueLength(),
+						MORSE_MAX_DETECTION_SAMPLE));
 
 				if (adaptionWidth <= 0.0) {
 					if (!force)
@@ -101,27 +166,44 @@ public class CWaveQueueToMorseCode {
 				if (adaptionWidth > MORSE_MAX_ADAPTION_WIDTH)
 					queue.completeWavesFromBegining(1);
 			} while (adaptionWidth > MORSE_MAX_ADAPTION_WIDTH);
+
+			/* New sender, restart tracking */
+			widthEstimator.seed(adaptionWidth);
+			speedChangeDetector.reset();
 		}
 
-		ArrayDeque<CWave> waves = queue.getQueue();
+		/* Learned jitter tolerances for this sender */
+		double shortJitter = widthEstimator
+				.getTolerance(CWSignalWidthEstimator.CLASS_SHORT);
+		double longJitter = widthEstimator
+				.getTolerance(CWSignalWidthEstimator.CLASS_LONG);
+		double wordbreakJitter = widthEstimator
+				.getTolerance(CWSignalWidthEstimator.CLASS_WORDBREAK);
+
 		int i, len;
 
 		/*
 		 * Iterate waves from queue, convert to BitString with help of
 		 * adaptionWidth
 		 */
-		Iterator<CWave> waveIter = waves.iterator();
-		for (i = 0, len = waves.size(); waveIter.hasNext() && i < len; i++) {
-			CWave wave = waveIter.next();
+		for (i = 0, len = queue.queueLength(); i < len; i++) {
+			/* Out of budget, continue from this wave on next call */
+			if (!budget.consume(1)) {
+				len = i;
+				break;
+			}
+
+			int waveDuration = queue.getWaveDuration(i);
+			byte waveType = queue.getWaveType(i);
 
 			/* skip zero length waves */
-			if (wave.duration <= 0)
+			if (waveDuration <= 0)
 				continue;
 
-			double waveWidth = wave.duration / adaptionWidth;
+			double waveWidth = waveDuration / adaptionWidth;
 
 			/* Ignore leading down-waves */
-			if (morseBits.length() == 0 && wave.type == CWave.TYPE_DOWN)
+			if (morseBits.length() == 0 && waveType == CWave.TYPE_DOWN)
 				continue;
 
 			/*
@@ -133,21 +215,30 @@ public class CWaveQueueToMorseCode {
 			 * If within threshold, append 1 or 0, depending on wave type.
 			 */
 			if (waveWidth <= MORSE_SHORT_WIDTH
-					* (1.0 - MORSE_ALLOWED_SHORT_JITTER))
+					* (1.0 - shortJitter))
 				break;
 
 			if (waveWidth <= MORSE_SHORT_WIDTH
-					* (1.0 + MORSE_ALLOWED_SHORT_JITTER)) {
+					* (1.0 + shortJitter)) {
+				addSymbol(waveType == CWave.TYPE_DOWN ? CWDecodeBatch.SYMBOL_INTRA_GAP
+						: CWDecodeBatch.SYMBOL_DIT, waveWidth, MORSE_SHORT_WIDTH,
+						shortJitter);
+				acceptWave(waveDuration, CWSignalWidthEstimator.CLASS_SHORT,
+						MORSE_SHORT_WIDTH);
 				morseBits
-						.append(wave.type == CWave.TYPE_DOWN ? MORSE_SHORT_ZERO_BITS
+						.append(waveType == CWave.TYPE_DOWN ? MORSE_SHORT_ZERO_BITS
 								: MORSE_SHORT_ONE_BITS);
-				lastPendingWaveTime = System.currentTimeMillis();
+				lastPendingWaveTime = clock.currentTimeMillis();
 
-				if (wave.type == CWave.TYPE_UP) {
+				if (waveType == CWave.TYPE_UP) {
 					/* Check if last received code was end-of-contact */
 					if (BitString.stringBufferEndWithBits(morseBits,
 							MORSE_SPECIAL_END_OF_CONTACT_BITS)) {
-						/* As this is end of message, reset width adaption */
+						/*
+						 * As this is end of message, reset width adaption (width
+						 * estimator keeps tracking sender)
+						 */
+						endCharacter();
 						adaptionWidth = 0.0;
 
 						morseBits.append(MORSE_LONG_ZERO_BITS);
@@ -168,24 +259,34 @@ public class CWaveQueueToMorseCode {
 			 * If within threshold, append 111 or 000, depending on wave type.
 			 */
 			if (waveWidth <= MORSE_LONG_WIDTH
-					* (1.0 - MORSE_ALLOWED_LONG_JITTER))
+					* (1.0 - longJitter))
 				break;
 
 			if (waveWidth <= MORSE_LONG_WIDTH
-					* (1.0 + MORSE_ALLOWED_LONG_JITTER)) {
-				if (wave.type == CWave.TYPE_DOWN) {
+					* (1.0 + longJitter)) {
+				addSymbol(waveType == CWave.TYPE_DOWN ? CWDecodeBatch.SYMBOL_CHAR_GAP
+						: CWDecodeBatch.SYMBOL_DAH, waveWidth, MORSE_LONG_WIDTH,
+						longJitter);
+				acceptWave(waveDuration, CWSignalWidthEstimator.CLASS_LONG,
+						MORSE_LONG_WIDTH);
+
+				if (waveType == CWave.TYPE_DOWN) {
 					morseBits.append(MORSE_LONG_ZERO_BITS);
 
 					/* Received full morse code, pass morse code to upper layer */
 					return returnMorseCode(queue, i);
 				} else {
 					morseBits.append(MORSE_LONG_ONE_BITS);
-					lastPendingWaveTime = System.currentTimeMillis();
+					lastPendingWaveTime = clock.currentTimeMillis();
 
 					/* Check if last received code was end-of-contact */
 					if (BitString.stringBufferEndWithBits(morseBits,
 							MORSE_SPECIAL_END_OF_CONTACT_BITS)) {
-						/* As this is end of message, reset width adaption */
+						/*
+						 * As this is end of message, reset width adaption (width
+						 * estimator keeps tracking sender)
+						 */
+						endCharacter();
 						adaptionWidth = 0.0;
 
 						morseBits.append(MORSE_LONG_ZERO_BITS);
@@ -206,13 +307,20 @@ public class CWaveQueueToMorseCode {
 			 * 
 			 * If within threshold, append 0000000.
 			 */
-			if (wave.type == CWave.TYPE_DOWN) {
+			if (waveType == CWave.TYPE_DOWN) {
 				if (waveWidth <= MORSE_WORDBREAK_WIDTH
-						* (1.0 - MORSE_ALLOWED_WORDBREAK_JITTER))
+						* (1.0 - wordbreakJitter))
 					break;
 
 				if (waveWidth <= MORSE_WORDBREAK_WIDTH
-						* (1.0 + MORSE_ALLOWED_WORDBREAK_JITTER)) {
+						* (1.0 + wordbreakJitter)) {
+					endCharacter();
+					addSymbol(CWDecodeBatch.SYMBOL_WORD_GAP, waveWidth,
+							MORSE_WORDBREAK_WIDTH, wordbreakJitter);
+					decodeBatch.endCharacter(' ', adaptionWidth);
+					acceptWave(waveDuration,
+							CWSignalWidthEstimator.CLASS_WORDBREAK,
+							MORSE_WORDBREAK_WIDTH);
 					morseBits.append(MORSE_WORDBREAK_ZERO_BITS);
 
 					/*
@@ -232,8 +340,13 @@ public class CWaveQueueToMorseCode {
 				 * indicate end of work/message.
 				 */
 				morseBits.append(MORSE_LONG_ZERO_AND_SPECIAL_STOP_MESSAGE);
+				endCharacter();
+				decodeBatch.setEndOfMessage(false);
 
-				/* As this is end of message, reset width adaption */
+				/*
+				 * As this is end of message, reset width adaption (width
+				 * estimator keeps tracking sender)
+				 */
 				adaptionWidth = 0.0;
 
 				return returnMorseCode(queue, i);
@@ -248,6 +361,33 @@ public class CWaveQueueToMorseCode {
 			/* Take out elements before this point */
 			queue.completeWavesFromBegining(i);
 
+			/*
+			 * Width was matching input until this wave, check if sender changed
+			 * speed and continue with width of new segment.
+			 */
+			if (i > 0
+					|| (!readapted && !usedTrackedWidth && !retryAfterSpeedChange)) {
+				if (!force
+						&& queue.queueLength() < CWSpeedChangeDetector.SEGMENT_WAVES)
+					return null;
+
+				double width = CWSpeedChangeDetector.estimateSegmentWidth(
+						queue, CWSpeedChangeDetector.SEGMENT_WAVES);
+
+				if (width > 0.0
+						&& width <= MORSE_MAX_ADAPTION_WIDTH
+						&& isDetectedWidthOk(width, queue, Math.min(
+								queue.queueLength(),
+								MORSE_MAX_DETECTION_SAMPLE))) {
+					adaptionWidth = width;
+					widthEstimator.reanchor(width);
+					speedChangeDetector.segmentChanged(width);
+					speedChangeRetry = true;
+
+					return RETRY_DECODE;
+				}
+			}
+
 			adaptionWidth = 0.0;
 
 			/* no morse message received yet, fast retry */
@@ -256,10 +396,12 @@ public class CWaveQueueToMorseCode {
 				 * force decoding forward, take at least one wave if already
 				 * readapted
 				 */
-				if (readapted && i == 0)
+				if (usedTrackedWidth && i == 0)
+					trackedWidthFailed = true;
+				else if (readapted && i == 0)
 					queue.completeWavesFromBegining(1);
 
-				return tryDecode(queue, force);
+				return RETRY_DECODE;
 			}
 
 			/*
@@ -267,6 +409,9 @@ public class CWaveQueueToMorseCode {
 			 * indicate end of work/message.
 			 */
 			morseBits.append(MORSE_LONG_ZERO_AND_SPECIAL_STOP_MESSAGE);
+			endCharacter();
+			decodeBatch.setEndOfMessage(true);
+			decodeBatch.complete();
 
 			BitString morseCode = BitString.newBits(morseBits.toString());
 
@@ -275,8 +420,8 @@ public class CWaveQueueToMorseCode {
 
 			return morseCode;
 		} else {
-			/* Clear queue */
-			queue.completeAllWaves(i);
+			/* Clear handled waves */
+			queue.completeWavesFromBegining(i);
 		}
 
 		/*
@@ -286,7 +431,67 @@ public class CWaveQueueToMorseCode {
 		return null;
 	}
 
+	/* Update width tracking with accepted wave */
+	private void acceptWave(int duration, int waveClass, double units) {
+		boolean changed = speedChangeDetector.update(duration, (int) units,
+				adaptionWidth);
+
+		adaptionWidth = widthEstimator.update(duration, waveClass);
+
+		/* Speed changed, jump to width of new segment */
+		if (changed) {
+			adaptionWidth = speedChangeDetector.getAnchoredWidth();
+			widthEstimator.reanchor(adaptionWidth);
+		}
+	}
+
+	public CWSpeedChangeDetector getSpeedChangeDetector() {
+		return speedChangeDetector;
+	}
+
+	/*
+	 * Add decoded wave to batch, confidence falls from 1 at expected width to 0
+	 * at jitter threshold.
+	 */
+	private void addSymbol(byte type, double waveWidth, double units,
+			double jitter) {
+		double confidence = 1.0 - Math.abs(waveWidth / units - 1.0) / jitter;
+
+		decodeBatch.addSymbol(type, confidence);
+
+		if (type == CWDecodeBatch.SYMBOL_DIT
+				|| type == CWDecodeBatch.SYMBOL_DAH) {
+			if (trieNode != MorseCharList.TRIE_NONE)
+				trieNode = MorseCharList.nextTrieNode(trieNode,
+						type == CWDecodeBatch.SYMBOL_DAH);
+		} else if (type == CWDecodeBatch.SYMBOL_CHAR_GAP) {
+			endCharacter();
+		}
+	}
+
+	/* End character collected to batch, if any */
+	private void endCharacter() {
+		if (!decodeBatch.hasPendingSymbols())
+			return;
+
+		char ch = trieNode == MorseCharList.TRIE_NONE ? 'Z' : MorseCharList
+				.trieNodeToCharacter(trieNode);
+
+		decodeBatch.endCharacter(ch, adaptionWidth);
+		trieNode = MorseCharList.TRIE_ROOT;
+	}
+
+	public CWDecodeBatch getDecodeBatch() {
+		return decodeBatch;
+	}
+
+	public void setClock(CWClock clock) {
+		this.clock = clock;
+	}
+
 	private BitString returnMorseCode(CWInputQueue queue, int i) {
+		decodeBatch.complete();
+
 		BitString morseCode = BitString.newBits(morseBits.toString());
 
 		/* clear handled waves */
@@ -307,7 +512,7 @@ public class CWaveQueueToMorseCode {
 			if (lastPendingWaveTime == 0)
 				return null;
 
-			long currTime = System.currentTimeMillis();
+			long currTime = clock.currentTimeMillis();
 
 			/* Check if currently stored bits are resent enough to keep */
 			if (lastPendingWaveTime
@@ -320,6 +525,9 @@ public class CWaveQueueToMorseCode {
 
 		/* morseBits contain old data that needs to be flushed */
 		morseBits.append(MORSE_LONG_ZERO_AND_SPECIAL_STOP_MESSAGE);
+		endCharacter();
+		decodeBatch.setEndOfMessage(true);
+		decodeBatch.complete();
 
 		BitString morseCode = BitString.newBits(morseBits.toString());
 
@@ -329,6 +537,10 @@ public class CWaveQueueToMorseCode {
 		return morseCode;
 	}
 
+	public CWSignalWidthEstimator getSignalWidthEstimator() {
+		return widthEstimator;
+	}
+
 	public boolean hadPendingBits() {
 		return (morseBits.length() > 0);
 	}
@@ -386,202 +598,198 @@ public class CWaveQueueToMorseCode {
 		}
 	}
 
-	private final CWave[] detectSignalWaves = new CWave[MORSE_MAX_DETECTION_SAMPLE];
+	private final long[] detectSignalWaves = new long[MORSE_MAX_DETECTION_SAMPLE];
 	private final WaveGroup detectSignalGroup[] = { new WaveGroup(),
 			new WaveGroup(), new WaveGroup() };
 
-	private double detectSignalWidth(final CWave[] samples, int sampleLimit,
-			boolean force) {
-		if (samples.length <= 0)
+	private double detectSignalWidth(final CWInputQueue samples,
+			int sampleLimit, boolean force) {
+		if (samples.queueLength() <= 0)
 			return 0.0;
 
-		if (sampleLimit == 0) {
-			/* reached limit 0, return width 0 */
-			return 0.0;
-		}
+		/* Retry with halved sample limit until detection passes checks */
+		detect: for (;; sampleLimit /= 2) {
+			if (sampleLimit == 0) {
+				/* reached limit 0, return width 0 */
+				return 0.0;
+			}
 
-		final WaveGroup group[] = detectSignalGroup;
-		final CWave[] waves = detectSignalWaves;
-		boolean waitForUp = true;
-		boolean checkedDetectionOk = false;
-		int oldGroup, currGroup = -1;
+			final WaveGroup group[] = detectSignalGroup;
+			final long[] waves = detectSignalWaves;
+			boolean waitForUp = true;
+			boolean checkedDetectionOk = false;
+			int oldGroup, currGroup = -1;
 
-		for (int i = 0; i < group.length; i++)
-			group[i].clear();
+			for (int i = 0; i < group.length; i++)
+				group[i].clear();
 
-		/*
-		 * sample limit to prevent mixing of morse messages of different signal
-		 * width
-		 */
-		if (sampleLimit < 0)
-			sampleLimit = samples.length;
+			/*
+			 * sample limit to prevent mixing of morse messages of different
+			 * signal width
+			 */
+			if (sampleLimit < 0 || sampleLimit > samples.queueLength())
+				sampleLimit = samples.queueLength();
 
-		if (sampleLimit > MORSE_MAX_DETECTION_SAMPLE)
-			sampleLimit = MORSE_MAX_DETECTION_SAMPLE;
+			if (sampleLimit > MORSE_MAX_DETECTION_SAMPLE)
+				sampleLimit = MORSE_MAX_DETECTION_SAMPLE;
 
-		/* Copy waves to sample limit */
-		System.arraycopy(samples, 0, waves, 0, sampleLimit);
+			/* Get waves to sample limit, sorted by duration */
+			samples.getSortedWaveKeys(waves, sampleLimit);
 
-		/* sort current waves by duration */
-		Arrays.sort(waves, 0, sampleLimit);
+			/*
+			 * attempt to gather wave lengths from three different groups,
+			 * starting from shortest
+			 */
+			for (int i = 0; i < sampleLimit; i++) {
+				int waveDuration = CWInputQueue.sortedWaveKeyDuration(waves[i]);
 
-		/*
-		 * attempt to gather wave lengths from three different groups, starting
-		 * from shortest
-		 */
-		for (int i = 0; i < sampleLimit; i++) {
-			CWave wave = waves[i];
+				/* skip zero length waves */
+				if (waveDuration <= 0)
+					continue;
 
-			/* skip zero length waves */
-			if (wave.duration <= 0)
-				continue;
+				/* Ignore leading down-waves */
+				if (waitForUp
+						&& CWInputQueue.sortedWaveKeyType(waves[i]) == CWave.TYPE_DOWN)
+					continue;
 
-			/* Ignore leading down-waves */
-			if (waitForUp && wave.type == CWave.TYPE_DOWN)
-				continue;
+				waitForUp = false;
+				checkedDetectionOk = false;
+				oldGroup = currGroup;
 
-			waitForUp = false;
-			checkedDetectionOk = false;
-			oldGroup = currGroup;
+				switch (currGroup) {
+				case -1:
+					/*
+					 * Assume that first value is good match for group[0].
+					 * 
+					 * This might be bad guess. If we receive two morse messages
+					 * in close proximity with different signal widths and
+					 * first message has longer width, this might go wrong.
+					 * Therefore check adaption against
+					 */
+					group[0].add(waveDuration);
+					currGroup = 0;
+					break;
 
-			switch (currGroup) {
-			case -1:
-				/*
-				 * Assume that first value is good match for group[0].
-				 * 
-				 * This might be bad guess. If we receive two morse messages in
-				 * close proximity with different signal widths and first
-				 * message has longer width, this might go wrong. Therefore
-				 * check adaption against
-				 */
-				group[0].add(wave.duration);
-				currGroup = 0;
-				break;
+				case 0:
+					if (group[0].isWithInRange(waveDuration,
+							MORSE_ALLOWED_SHORT_JITTER)) {
+						group[0].add(waveDuration);
+						break;
+					}
 
-			case 0:
-				if (group[0].isWithInRange(wave.duration,
-						MORSE_ALLOWED_SHORT_JITTER)) {
-					group[0].add(wave.duration);
-					break;
-				}
+					if (group[0].isWithInRange(waveDuration / MORSE_LONG_WIDTH,
+							MORSE_ALLOWED_LONG_JITTER)) {
+						group[1].add(waveDuration);
+						currGroup = 1;
+						break;
+					}
 
-				if (group[0].isWithInRange(wave.duration / MORSE_LONG_WIDTH,
-						MORSE_ALLOWED_LONG_JITTER)) {
-					group[1].add(wave.duration);
-					currGroup = 1;
-					break;
-				}
+					if (group[0]
+							.isWithInRange(waveDuration / MORSE_WORDBREAK_WIDTH,
+									MORSE_ALLOWED_WORDBREAK_JITTER)) {
+						group[2].add(waveDuration);
+						currGroup = 2;
+						break;
+					}
 
-				if (group[0]
-						.isWithInRange(wave.duration / MORSE_WORDBREAK_WIDTH,
-								MORSE_ALLOWED_WORDBREAK_JITTER)) {
-					group[2].add(wave.duration);
-					currGroup = 2;
+					currGroup = 3;
 					break;
-				}
 
-				currGroup = 3;
-				break;
+				case 1:
+					if (group[1].isWithInRange(waveDuration,
+							MORSE_ALLOWED_LONG_JITTER)
+							|| group[0].isWithInRange(waveDuration
+									/ MORSE_LONG_WIDTH, MORSE_ALLOWED_LONG_JITTER)) {
+						group[1].add(waveDuration);
+						break;
+					}
 
-			case 1:
-				if (group[1].isWithInRange(wave.duration,
-						MORSE_ALLOWED_LONG_JITTER)
-						|| group[0].isWithInRange(wave.duration
-								/ MORSE_LONG_WIDTH, MORSE_ALLOWED_LONG_JITTER)) {
-					group[1].add(wave.duration);
-					break;
-				}
+					if (group[0]
+							.isWithInRange(waveDuration / MORSE_WORDBREAK_WIDTH,
+									MORSE_ALLOWED_WORDBREAK_JITTER)
+							|| group[1].isWithInRange(waveDuration
+									* MORSE_LONG_WIDTH / MORSE_WORDBREAK_WIDTH,
+									MORSE_ALLOWED_WORDBREAK_JITTER)) {
+						group[2].add(waveDuration);
+						currGroup = 2;
+						break;
+					}
 
-				if (group[0]
-						.isWithInRange(wave.duration / MORSE_WORDBREAK_WIDTH,
-								MORSE_ALLOWED_WORDBREAK_JITTER)
-						|| group[1].isWithInRange(wave.duration
-								* MORSE_LONG_WIDTH / MORSE_WORDBREAK_WIDTH,
-								MORSE_ALLOWED_WORDBREAK_JITTER)) {
-					group[2].add(wave.duration);
-					currGroup = 2;
+					currGroup = 3;
 					break;
-				}
 
-				currGroup = 3;
-				break;
+				case 2:
+					if (group[2].isWithInRange(waveDuration,
+							MORSE_ALLOWED_WORDBREAK_JITTER)
+							|| group[1].isWithInRange(waveDuration
+									* MORSE_LONG_WIDTH / MORSE_WORDBREAK_WIDTH,
+									MORSE_ALLOWED_WORDBREAK_JITTER)
+							|| group[0].isWithInRange(waveDuration
+									/ MORSE_WORDBREAK_WIDTH,
+									MORSE_ALLOWED_WORDBREAK_JITTER)) {
+						group[2].add(waveDuration);
+						break;
+					}
 
-			case 2:
-				if (group[2].isWithInRange(wave.duration,
-						MORSE_ALLOWED_WORDBREAK_JITTER)
-						|| group[1].isWithInRange(wave.duration
-								* MORSE_LONG_WIDTH / MORSE_WORDBREAK_WIDTH,
-								MORSE_ALLOWED_WORDBREAK_JITTER)
-						|| group[0].isWithInRange(wave.duration
-								/ MORSE_WORDBREAK_WIDTH,
-								MORSE_ALLOWED_WORDBREAK_JITTER)) {
-					group[2].add(wave.duration);
+					currGroup = 3;
 					break;
 				}
 
-				currGroup = 3;
-				break;
-			}
+				if (oldGroup != -1 && oldGroup != currGroup) {
+					/* perform sanity checks against bad width detection */
+					if (!isDetectedWidthOk(WaveGroup.groupsAverage(group),
+							samples, sampleLimit)) {
+						continue detect;
+					}
 
-			if (oldGroup != -1 && oldGroup != currGroup) {
-				/* perform sanity checks against bad width detection */
-				if (!isDetectedWidthOk(WaveGroup.groupsAverage(group), samples,
-						sampleLimit)) {
-					Arrays.fill(waves, null);
-					return detectSignalWidth(samples, sampleLimit / 2, force);
+					checkedDetectionOk = true;
 				}
 
-				checkedDetectionOk = true;
+				if (currGroup == 3)
+					break;
 			}
 
-			if (currGroup == 3)
-				break;
-		}
+			/* Combine gathered group averages for detected signal width */
+			double width = WaveGroup.groupsAverage(group);
 
-		Arrays.fill(waves, null);
+			/*
+			 * perform sanity checks against bad width detection (only when not
+			 * in forced decoding mode)
+			 */
+			if (!force) {
+				if (!checkedDetectionOk
+						&& !isDetectedWidthOk(width, samples, sampleLimit))
+					return 0.0;
+			}
 
-		/* Combine gathered group averages for detected signal width */
-		double width = WaveGroup.groupsAverage(group);
+			if (width < 1.0)
+				width = 1.0;
 
-		/*
-		 * perform sanity checks against bad width detection (only when not in
-		 * forced decoding mode)
-		 */
-		if (!force) {
-			if (!checkedDetectionOk
-					&& !isDetectedWidthOk(width, samples, sampleLimit))
-				return 0.0;
+			return width;
 		}
-
-		if (width < 1.0)
-			width = 1.0;
-
-		return width;
 	}
 
 	private static boolean isDetectedWidthOk(double canditateAdaption,
-			CWave[] samples, int sampleLimit) {
+			CWInputQueue samples, int sampleLimit) {
 		boolean waitForUp = true;
 		int shortOkCount = 0;
 		int longOkCount = 0;
 		int wordbreakOkCount = 0;
 
-		int i = 0;
-		for (CWave wave : samples) {
-			if (i++ >= sampleLimit)
-				break;
+		for (int i = 0; i < sampleLimit; i++) {
+			int waveDuration = samples.getWaveDuration(i);
 
 			/* skip zero length waves */
-			if (wave.duration <= 0)
+			if (waveDuration <= 0)
 				continue;
 
 			/* Ignore leading down-waves */
-			if (waitForUp && wave.type == CWave.TYPE_DOWN)
+			if (waitForUp && samples.getWaveType(i) == CWave.TYPE_DOWN)
 				continue;
 			else
 				waitForUp = false;
 
-			double waveWidth = wave.duration / canditateAdaption;
+			double waveWidth = waveDuration / canditateAdaption;
 
 			if (waveWidth > MORSE_SHORT_WIDTH
 					* (1.0 - MORSE_ALLOWED_SHORT_JITTER)
@@ -627,7 +835,4 @@ public class CWaveQueueToMorseCode {
 
 		return (long) (width * (MORSE_WORDBREAK_WIDTH + 1));
 	}
-
-	/* Cached empty array for toArray(T[]) */
-	private static final CWave[] emptyCWaveArray = new CWave[0];
 }
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.cwp;
+
+import java.util.Arrays;
+
+import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseCharList;
+
+/*
+ * Probabilistic decoder engine for noisy channels. Mark and space durations
+ * are modeled as log-normal around 1, 3 and 7 signal widths and the most
+ * likely path through morse decode trie is searched with fixed-lag Viterbi.
+ * Decisions are committed LOOKAHEAD_WAVES waves behind input, so single badly
+ * timed wave does not end message as with CWaveQueueToMorseCode.
+ */
+public class CWaveQueueViterbiDecoder implements CWaveDecoder {
+	/* Number of waves kept undecided for lookahead */
+	public static final int LOOKAHEAD_WAVES = 16;
+
+	/* Decisions made for single wave */
+	private static final byte DECISION_NONE = 0;
+	private static final byte DECISION_DIT = 1;
+	private static final byte DECISION_DAH = 2;
+	private static final byte DECISION_INTRA_GAP = 3;
+	private static final byte DECISION_CHAR_GAP = 4;
+	private static final byte DECISION_WORD_GAP = 5;
+
+	private static final BitString DECISION_BITS[] = { new BitString(),
+			BitString.newOnes(1), BitString.newOnes(3), BitString.newZeros(1),
+			BitString.newZeros(3), BitString.newZeros(7) };
+	private static final int DECISION_UNITS[] = { 0, 1, 3, 1, 3, 7 };
+	private static final int DECISION_CLASS[] = { 0,
+			CWSignalWidthEstimator.CLASS_SHORT,
+			CWSignalWidthEstimator.CLASS_LONG,
+			CWSignalWidthEstimator.CLASS_SHORT,
+			CWSignalWidthEstimator.CLASS_LONG,
+			CWSignalWidthEstimator.CLASS_WORDBREAK };
+	private static final byte DECISION_SYMBOL[] = { 0,
+			CWDecodeBatch.SYMBOL_DIT, CWDecodeBatch.SYMBOL_DAH,
+			CWDecodeBatch.SYMBOL_INTRA_GAP, CWDecodeBatch.SYMBOL_CHAR_GAP,
+			CWDecodeBatch.SYMBOL_WORD_GAP };
+
+	/* Log prior probabilities of space types */
+	private static final double LOG_PRIOR_INTRA_GAP = Math.log(0.6);
+	private static final double LOG_PRIOR_CHAR_GAP = Math.log(0.3);
+	private static final double LOG_PRIOR_WORD_GAP = Math.log(0.1);
+
+	/* Log probability penalty for codes that are not in MorseCharList */
+	private static final double UNKNOWN_PENALTY = -12.0;
+
+	/* Paths less likely than best path by this are dropped */
+	private static final double BEAM_WIDTH = 20.0;
+
+	private static final double NO_PATH = Double.NEGATIVE_INFINITY;
+
+	private static final double MORSE_WORDBREAK_WIDTH = 7.0;
+
+	/* Width acquisition at start of message */
+	private static final int ACQUIRE_WAVES = 8;
+	private static final int ACQUIRE_MAX_WAVES = 24;
+	private static final double ACQUIRE_MATCH = 0.3;
+	private static final double MORSE_MAX_ADAPTION_WIDTH = 1000.0;
+
+	private static final BitString MORSE_LONG_ZERO_AND_SPECIAL_STOP_MESSAGE = BitString
+			.newZeros(3).append(
+					MorseCharList
+							.characterToMorseString(MorseCharList.SPECIAL_STOP_MESSAGE));
+
+	/*
+	 * Search states are nodes of decode trie, with one extra state for codes
+	 * that are not in trie.
+	 */
+	private static final int NUM_STATES = MorseCharList.getTrieNodeCount() + 1;
+	private static final int STATE_UNKNOWN = NUM_STATES - 1;
+	private static final int ditState[] = new int[NUM_STATES];
+	private static final int dahState[] = new int[NUM_STATES];
+	private static final boolean hasCharacter[] = new boolean[NUM_STATES];
+
+	static {
+		for (int node = 0; node < STATE_UNKNOWN; node++) {
+			int dit = MorseCharList.nextTrieNode(node, false);
+			int dah = MorseCharList.nextTrieNode(node, true);
+
+			ditState[node] = dit == MorseCharList.TRIE_NONE ? STATE_UNKNOWN
+					: dit;
+			dahState[node] = dah == MorseCharList.TRIE_NONE ? STATE_UNKNOWN
+					: dah;
+			hasCharacter[node] = MorseCharList.trieNodeToCharacter(node) != 'Z';
+		}
+
+		ditState[STATE_UNKNOWN] = STATE_UNKNOWN;
+		dahState[STATE_UNKNOWN] = STATE_UNKNOWN;
+		hasCharacter[STATE_UNKNOWN] = false;
+	}
+
+	private static final int HISTORY_LENGTH = LOOKAHEAD_WAVES + 1;
+
+	/* Path scores for current and next wave */
+	private double score[] = new double[NUM_STATES];
+	private double nextScore[] = new double[NUM_STATES];
+
+	/* Ring of back-pointers and decisions for undecided waves */
+	private final int historyPrev[][] = new int[HISTORY_LENGTH][NUM_STATES];
+	private final byte historyDecision[][] = new byte[HISTORY_LENGTH][NUM_STATES];
+	private final int historyDuration[] = new int[HISTORY_LENGTH];
+	private final byte pathDecisions[] = new byte[HISTORY_LENGTH];
+	private int historyStart;
+	private int historyLength;
+
+	private boolean inMessage;
+	private boolean widthReady;
+	private final CWSignalWidthEstimator widthEstimator = new CWSignalWidthEstimator();
+
+	/* Committed morse-bits */
+	private final StringBuffer morseBits = new StringBuffer();
+
+	/* Confidence of committed decisions */
+	private final CWDecodeBatch decodeBatch = new CWDecodeBatch();
+	private int committedState = MorseCharList.TRIE_ROOT;
+	private final double decisionLogLikelihood[] = new double[DECISION_UNITS.length];
+
+	private long lastPendingWaveTime;
+
+	private CWClock clock = CWClock.SYSTEM;
+
+	/* Budget used when caller does not limit decoding */
+	private final CWDecodeBudget unlimitedBudget = new CWDecodeBudget();
+
+	public CWaveQueueViterbiDecoder() {
+		lastPendingWaveTime = 0;
+		widthReady = false;
+
+		resetSearch();
+	}
+
+	private void resetSearch() {
+		Arrays.fill(score, NO_PATH);
+		score[MorseCharList.TRIE_ROOT] = 0.0;
+
+		historyStart = 0;
+		historyLength = 0;
+		inMessage = false;
+	}
+
+	public CWSignalWidthEstimator getSignalWidthEstimator() {
+		return widthEstimator;
+	}
+
+	public BitString tryDecode(CWInputQueue queue, boolean force) {
+		return tryDecode(queue, force, unlimitedBudget);
+	}
+
+	public BitString tryDecode(CWInputQueue queue, boolean force,
+			CWDecodeBudget budget) {
+		if (!queue.isQueueReadReady())
+			return null;
+
+		while (queue.queueLength() > 0 && budget.consume(1)) {
+			int duration = queue.getWaveDuration(0);
+			boolean isMark = queue.getWaveType(0) == CWave.TYPE_UP;
+
+			/* Skip zero length waves and leading down-waves */
+			if (duration <= 0 || (!inMessage && !isMark)) {
+				queue.completeWavesFromBegining(1);
+				continue;
+			}
+
+			/* Get signal width for new message */
+			if (!widthReady) {
+				double width = acquireWidth(queue, force);
+				if (width <= 0.0)
+					return null;
+
+				/* purge and ignore too width signals */
+				if (width > MORSE_MAX_ADAPTION_WIDTH) {
+					queue.completeWavesFromBegining(1);
+					continue;
+				}
+
+				/* Keep tracked width and jitter if same sender continues */
+				if (!widthEstimator.hasEstimate()
+						|| Math.abs(width / widthEstimator.getWidth() - 1.0) > ACQUIRE_MATCH)
+					widthEstimator.seed(width);
+
+				widthReady = true;
+			}
+
+			queue.completeWavesFromBegining(1);
+
+			/* Long down-wave ends message */
+			if (!isMark && duration > endOfMessageWidth())
+				return endMessage(false);
+
+			inMessage = true;
+			lastPendingWaveTime = clock.currentTimeMillis();
+
+			if (isMark)
+				addMark(duration);
+			else
+				addSpace(duration);
+
+			/* Commit oldest wave when lookahead is full */
+			if (historyLength > LOOKAHEAD_WAVES && commitOldest())
+				return returnMorseCode();
+		}
+
+		return null;
+	}
+
+	public BitString flushStalled(boolean forceFlush) {
+		if (!hadPendingBits())
+			return null;
+
+		if (!forceFlush) {
+			if (lastPendingWaveTime == 0)
+				return null;
+
+			long currTime = clock.currentTimeMillis();
+			double width = widthReady ? widthEstimator.getWidth() : 0.0;
+
+			/* Check if pending waves are recent enough to keep */
+			if (lastPendingWaveTime + (long) (MORSE_WORDBREAK_WIDTH * width) >= currTime)
+				return null;
+		}
+
+		return endMessage(true);
+	}
+
+	public boolean hadPendingBits() {
+		return morseBits.length() > 0 || historyLength > 0;
+	}
+
+	public long getFlushTimeout() {
+		double width = widthReady ? widthEstimator.getWidth() : 0.0;
+		if (width <= 0.0)
+			width = 250.0;
+
+		return (long) (width * (MORSE_WORDBREAK_WIDTH + 1));
+	}
+
+	private double endOfMessageWidth() {
+		return widthEstimator.getWidth()
+				* MORSE_WORDBREAK_WIDTH
+				* (1.0 + widthEstimator
+						.getTolerance(CWSignalWidthEstimator.CLASS_WORDBREAK));
+	}
+
+	/* Estimate signal width from first waves of message */
+	private double acquireWidth(CWInputQueue queue, boolean force) {
+		if (queue.queueLength() < ACQUIRE_WAVES && !force)
+			return 0.0;
+
+		double width = CWSpeedChangeDetector.estimateSegmentWidth(queue,
+				ACQUIRE_MAX_WAVES);
+		if (width <= 0.0 && force)
+			width = 1.0;
+
+		return width;
+	}
+
+	/* Log-likelihood of duration for wave of 'units' signal widths */
+	private double logLikelihood(int duration, int units, int waveClass) {
+		double sigma = widthEstimator.getTolerance(waveClass) / 2;
+		double z = Math.log(duration / (units * widthEstimator.getWidth()))
+				/ sigma;
+
+		return -0.5 * z * z - Math.log(sigma);
+	}
+
+	private int historyIndex(int step) {
+		return (historyStart + step) % HISTORY_LENGTH;
+	}
+
+	private void relax(int step, int from, int to, double value, byte decision) {
+		if (value > nextScore[to]) {
+			nextScore[to] = value;
+			historyPrev[step][to] = from;
+			historyDecision[step][to] = decision;
+		}
+	}
+
+	private void addMark(int duration) {
+		int step = historyIndex(historyLength);
+		double dit = logLikelihood(duration, 1,
+				CWSignalWidthEstimator.CLASS_SHORT);
+		double dah = logLikelihood(duration, 3,
+				CWSignalWidthEstimator.CLASS_LONG);
+
+		Arrays.fill(nextScore, NO_PATH);
+
+		for (int s = 0; s < NUM_STATES; s++) {
+			double curr = score[s];
+			if (curr == NO_PATH)
+				continue;
+
+			int next = ditState[s];
+			relax(step, s, next, curr + dit
+					+ (next == STATE_UNKNOWN && s != STATE_UNKNOWN ? UNKNOWN_PENALTY
+							: 0.0), DECISION_DIT);
+
+			next = dahState[s];
+			relax(step, s, next, curr + dah
+					+ (next == STATE_UNKNOWN && s != STATE_UNKNOWN ? UNKNOWN_PENALTY
+							: 0.0), DECISION_DAH);
+		}
+
+		endStep(step, duration);
+	}
+
+	private void addSpace(int duration) {
+		int step = historyIndex(historyLength);
+		double intraGap = logLikelihood(duration, 1,
+				CWSignalWidthEstimator.CLASS_SHORT) + LOG_PRIOR_INTRA_GAP;
+		double charGap = logLikelihood(duration, 3,
+				CWSignalWidthEstimator.CLASS_LONG) + LOG_PRIOR_CHAR_GAP;
+		double wordGap = logLikelihood(duration, 7,
+				CWSignalWidthEstimator.CLASS_WORDBREAK) + LOG_PRIOR_WORD_GAP;
+
+		Arrays.fill(nextScore, NO_PATH);
+
+		for (int s = 0; s < NUM_STATES; s++) {
+			double curr = score[s];
+			if (curr == NO_PATH)
+				continue;
+
+			/* Gap inside character keeps state */
+			relax(step, s, s, curr + intraGap, DECISION_INTRA_GAP);
+
+			/* Character and word gaps end character, back to root */
+			double end = curr + (hasCharacter[s] ? 0.0 : UNKNOWN_PENALTY);
+
+			relax(step, s, MorseCharList.TRIE_ROOT, end + charGap,
+					DECISION_CHAR_GAP);
+			relax(step, s, MorseCharList.TRIE_ROOT, end + wordGap,
+					DECISION_WORD_GAP);
+		}
+
+		endStep(step, duration);
+	}
+
+	private void endStep(int step, int duration) {
+		double best = NO_PATH;
+
+		for (int s = 0; s < NUM_STATES; s++)
+			if (nextScore[s] > best)
+				best = nextScore[s];
+
+		/* Normalize scores to best path and drop unlikely paths */
+		for (int s = 0; s < NUM_STATES; s++) {
+			if (nextScore[s] < best - BEAM_WIDTH)
+				nextScore[s] = NO_PATH;
+			else
+				nextScore[s] -= best;
+		}
+
+		double tmp[] = score;
+		score = nextScore;
+		nextScore = tmp;
+
+		historyDuration[step] = duration;
+		historyLength++;
+	}
+
+	/* Trace state back from current wave to oldest undecided wave */
+	private int stateAtOldest(int state) {
+		for (int k = historyLength - 1; k > 0; k--)
+			state = historyPrev[historyIndex(k)][state];
+
+		return state;
+	}
+
+	/*
+	 * Commit decision of oldest wave along best path and drop paths that
+	 * disagree with it. Returns true if character was completed.
+	 */
+	private boolean commitOldest() {
+		int best = MorseCharList.TRIE_ROOT;
+
+		for (int s = 0; s < NUM_STATES; s++)
+			if (score[s] > score[best])
+				best = s;
+
+		int oldest = historyIndex(0);
+		int state = stateAtOldest(best);
+		byte decision = historyDecision[oldest][state];
+
+		for (int s = 0; s < NUM_STATES; s++)
+			if (score[s] != NO_PATH && stateAtOldest(s) != state)
+				score[s] = NO_PATH;
+
+		appendDecision(decision, historyDuration[oldest]);
+
+		historyStart = historyIndex(1);
+		historyLength--;
+
+		return decision == DECISION_CHAR_GAP || decision == DECISION_WORD_GAP;
+	}
+
+	private void appendDecision(byte decision, int duration) {
+		morseBits.append(DECISION_BITS[decision]);
+		addSymbol(decision, duration);
+
+		/* Only well fitting waves are used for tracking width */
+		int waveClass = DECISION_CLASS[decision];
+		double error = duration
+				/ (DECISION_UNITS[decision] * widthEstimator.getWidth()) - 1.0;
+
+		if (Math.abs(error) <= widthEstimator.getTolerance(waveClass))
+			widthEstimator.update(duration, waveClass);
+	}
+
+	/*
+	 * Confidence of decision is margin of its posterior probability over best
+	 * alternative for same wave.
+	 */
+	private double decisionConfidence(byte decision, int duration) {
+		double ll[] = decisionLogLikelihood;
+		int first, last;
+
+		if (decision == DECISION_DIT || decision == DECISION_DAH) {
+			first = DECISION_DIT;
+			last = DECISION_DAH;
+		} else {
+			first = DECISION_INTRA_GAP;
+			last = DECISION_WORD_GAP;
+		}
+
+		double max = NO_PATH;
+		for (int d = first; d <= last; d++) {
+			ll[d] = logLikelihood(duration, DECISION_UNITS[d],
+					DECISION_CLASS[d]);
+			if (d == DECISION_INTRA_GAP)
+				ll[d] += LOG_PRIOR_INTRA_GAP;
+			else if (d == DECISION_CHAR_GAP)
+				ll[d] += LOG_PRIOR_CHAR_GAP;
+			else if (d == DECISION_WORD_GAP)
+				ll[d] += LOG_PRIOR_WORD_GAP;
+
+			if (ll[d] > max)
+				max = ll[d];
+		}
+
+		double sum = 0.0, other = 0.0;
+		for (int d = first; d <= last; d++) {
+			double p = Math.exp(ll[d] - max);
+
+			sum += p;
+			if (d != decision && p > other)
+				other = p;
+		}
+
+		return (Math.exp(ll[decision] - max) - other) / sum;
+	}
+
+	/* Add committed decision to batch and follow decode trie */
+	private void addSymbol(byte decision, int duration) {
+		/* Word gap is counted to space character */
+		if (decision == DECISION_WORD_GAP)
+			endCharacter();
+
+		decodeBatch.addSymbol(DECISION_SYMBOL[decision], decisionConfidence(
+				decision, duration));
+
+		switch (decision) {
+		case DECISION_DIT:
+			committedState = ditState[committedState];
+			break;
+		case DECISION_DAH:
+			committedState = dahState[committedState];
+			break;
+		case DECISION_CHAR_GAP:
+			endCharacter();
+			break;
+		case DECISION_WORD_GAP:
+			decodeBatch.endCharacter(' ', widthEstimator.getWidth());
+			break;
+		}
+	}
+
+	/* End character collected to batch, if any */
+	private void endCharacter() {
+		if (!decodeBatch.hasPendingSymbols())
+			return;
+
+		char ch = hasCharacter[committedState] ? MorseCharList
+				.trieNodeToCharacter(committedState) : 'Z';
+
+		decodeBatch.endCharacter(ch, widthEstimator.getWidth());
+		committedState = MorseCharList.TRIE_ROOT;
+	}
+
+	public CWDecodeBatch getDecodeBatch() {
+		return decodeBatch;
+	}
+
+	public void setClock(CWClock clock) {
+		this.clock = clock;
+	}
+
+	/* Commit all undecided waves and end message */
+	private BitString endMessage(boolean forced) {
+		if (historyLength > 0) {
+			/* Best final state must complete character */
+			int best = -1;
+			double bestScore = NO_PATH;
+
+			for (int s = 0; s < NUM_STATES; s++) {
+				if (score[s] == NO_PATH)
+					continue;
+
+				double end = score[s]
+						+ (hasCharacter[s] ? 0.0 : UNKNOWN_PENALTY);
+				if (best < 0 || end > bestScore) {
+					best = s;
+					bestScore = end;
+				}
+			}
+
+			for (int k = historyLength - 1, state = best; k >= 0; k--) {
+				int step = historyIndex(k);
+
+				pathDecisions[k] = historyDecision[step][state];
+				state = historyPrev[step][state];
+			}
+
+			for (int k = 0; k < historyLength; k++)
+				appendDecision(pathDecisions[k],
+						historyDuration[historyIndex(k)]);
+		}
+
+		/*
+		 * Add end of contant code at end of these morse messages, to indicate
+		 * end of work/message.
+		 */
+		morseBits.append(MORSE_LONG_ZERO_AND_SPECIAL_STOP_MESSAGE);
+		endCharacter();
+		decodeBatch.setEndOfMessage(forced);
+
+		/* Width is validated again at start of next message */
+		resetSearch();
+		widthReady = false;
+		lastPendingWaveTime = 0;
+
+		return returnMorseCode();
+	}
+
+	private BitString returnMorseCode() {
+		decodeBatch.complete();
+
+		BitString morseCode = BitString.newBits(morseBits.toString());
+
+		/* reset bit buffer */
+		morseBits.setLength(0);
+
+		return morseCode;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue of commands from any number of threads to single
+ * IO-thread. Slots are preallocated and filled in place, so passing command
+ * does not allocate. Producer claims position by CAS on tail, fills slot and
+ * publishes it by advancing sequence number of slot. Consumer takes slots in
+ * claim order, so commands from one thread are never reordered. Sequence
+ * scheme is from bounded MPMC queue of Dmitry Vyukov.
+ * 
+ * When ring is full, producer yields until IO-thread has made room; owner
+ * of ring must wake IO-thread after each publish(). IO-thread itself must
+ * not produce commands to its own ring.
+ */
+class CWPCommandRing {
+	private final CWPThreadValue[] slots;
+
+	/*
+	 * Sequence of slot: equals position when free for producer at that
+	 * position, position + 1 when published for consumer.
+	 */
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	/* Next position to claim, shared by producers */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/* Next position to consume, only accessed from IO-thread */
+	private long head = 0;
+
+	/* Closed ring drops new commands */
+	private volatile boolean closed = false;
+
+	CWPCommandRing(int capacity) {
+		if (capacity < 2 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException(
+					"capacity must be power of two: " + capacity);
+
+		slots = new CWPThreadValue[capacity];
+		sequences = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new CWPThreadValue();
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Claim next slot for filling, slot must be passed to publish(). Returns
+	 * null if ring has been closed.
+	 */
+	CWPThreadValue claim() {
+		while (!closed) {
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					CWPThreadValue slot = slots[index];
+
+					slot.position = pos;
+					return slot;
+				}
+			} else if (diff < 0) {
+				/* Ring is full, wait for IO-thread to consume */
+				Thread.yield();
+			}
+
+			/* else other producer claimed position, retry */
+		}
+
+		return null;
+	}
+
+	/** Make filled slot visible to IO-thread */
+	void publish(CWPThreadValue slot) {
+		sequences.lazySet((int) slot.position & mask, slot.position + 1);
+	}
+
+	/** Next published command or null, IO-thread only */
+	CWPThreadValue peek() {
+		int index = (int) head & mask;
+
+		if (sequences.get(index) != head + 1)
+			return null;
+
+		return slots[index];
+	}
+
+	/** Release slot returned by peek() to producers, IO-thread only */
+	void remove() {
+		int index = (int) head & mask;
+
+		slots[index].clear();
+		sequences.lazySet(index, head + slots.length);
+		head++;
+	}
+
+	/** Stop accepting commands, producers waiting for room return */
+	void close() {
+		closed = true;
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+}
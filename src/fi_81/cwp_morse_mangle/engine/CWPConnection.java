@@ -0,0 +1,802 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import fi_81.cwp_morse_mangle.cwp.CWInput;
+import fi_81.cwp_morse_mangle.cwp.CWInput.CWInputNotification;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+import fi_81.cwp_morse_mangle.cwp.CWOutput.CWOutputWriteNotification;
+import fi_81.cwp_morse_mangle.cwp.CWSampledClock;
+import fi_81.cwp_morse_mangle.cwp.CWStateChangeQueueFromMorseCode;
+import fi_81.cwp_morse_mangle.cwp.CWTransmissionCache;
+import fi_81.cwp_morse_mangle.cwp.CWTransmissionTemplate;
+import fi_81.cwp_morse_mangle.cwp.CWave;
+import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseCharList;
+import fi_81.cwp_morse_mangle.morse.MorseCodec;
+import fi_81.cwp_morse_mangle.morse.MorseStreamDecoder;
+
+/*
+ * One CWP server connection: connection state machine (resolve, connect,
+ * connected, reset), CWInput/CWOutput wiring and buffering of received and
+ * sent morse messages. Not thread-safe, all methods are called from IO-thread
+ * owning the selector, see CWPEngine.
+ */
+public class CWPConnection {
+	/* Connection states */
+	public static final int CONN_NO_CONFIGURATION = 0;
+	public static final int CONN_RESOLVING_ADDRESS = 1;
+	public static final int CONN_CREATE_CONNECTION = 2;
+	public static final int CONN_CONNECTED = 3;
+
+	/*
+	 * Retry delay after failed resolve, connect or connection, in ms. Doubles
+	 * on each consecutive failure up to maximum.
+	 */
+	public static final long MIN_RETRY_DELAY = 200;
+	public static final long MAX_RETRY_DELAY = 5000;
+
+	/* Pending non-blocking connect is given up after this, in ms */
+	public static final long CONNECT_TIMEOUT = 10000;
+
+	/* Check of pending lookup when IO-thread was not woken by resolver */
+	private static final long RESOLVE_POLL_DELAY = 50;
+
+	/* Selector of owning IO-thread */
+	private final Selector selector;
+
+	/* Initial state does not have server-details, "no configuration" */
+	private int connState = CONN_NO_CONFIGURATION;
+
+	/* Connection configuration */
+	private String hostName = "";
+	private int hostPort = 0;
+	private int morseSpeed = 0;
+	private boolean useLatencyManagement = false;
+
+	/* Current connection setup */
+	private InetSocketAddress connSockAddr;
+	private final CWSampledClock clock;
+	private long connStartTime;
+	private SocketChannel connChannel;
+	private SelectionKey connSelKey;
+	private boolean connectPending = false;
+	private long retryTime = 0;
+	private int failedAttempts = 0;
+	private final Random retryRandom = new Random();
+	private CWPResolver resolver = CWPResolver.getDefault();
+	private CWPResolver.Lookup pendingLookup;
+	private CWInput cwpIn;
+	private CWOutput cwpOut;
+	private int inBufferSize = CWInput.DEFAULT_BUFFER_SIZE;
+	private int outBufferSize = CWOutput.DEFAULT_BUFFER_SIZE;
+	private int outputPolicy = CWOutput.OUTPUT_IMMEDIATE;
+	private long coalesceWindow = 0;
+	private boolean useDecoderThread = false;
+	private final CWPConnectionStats stats = new CWPConnectionStats();
+	private boolean busySendingMorseMessage = false;
+	private String sendMorseMessageString;
+
+	/* Send and receive channel states */
+	private boolean recvStateUp = false;
+	private boolean sendStateUp = false;
+	private long currFrequency = 1;
+	private final MorseStreamDecoder morseDecoder;
+	private boolean recvMorseMessageStarted = false;
+	private boolean recvMorseMessageUpdated = false;
+	private final StringBuffer recvMorseMessage = new StringBuffer();
+	private final StringBuffer sendMorseMessage = new StringBuffer();
+	private final CWTransmissionCache transmissionCache = new CWTransmissionCache();
+
+	/* Receiver of connection events */
+	private final CWPEngineListener listener;
+
+	/* Slot of connection in CWPMultiEngine, -1 when not in engine */
+	int engineId = -1;
+
+	/* Run from decoder thread when decoded morse is ready for IO-thread */
+	Runnable decodeWakeup;
+
+	public CWPConnection(Selector selector, CWSampledClock clock,
+			CWPEngineListener listener) {
+		this.selector = selector;
+		this.clock = clock;
+		this.listener = listener;
+
+		morseDecoder = new MorseStreamDecoder(morseCharacterNotify);
+		decodeWakeup = selectorWakeup;
+	}
+
+	/*
+	 * Size of input and output buffers, used from next connect on. Larger
+	 * input buffer lets backlog of received waves to be read and decoded in
+	 * fewer rounds.
+	 */
+	public void setBufferSizes(int inBufferSize, int outBufferSize) {
+		if (inBufferSize < CWInput.MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("inBufferSize: "
+					+ inBufferSize);
+		if (outBufferSize < CWOutput.MIN_BUFFER_SIZE)
+			throw new IllegalArgumentException("outBufferSize: "
+					+ outBufferSize);
+
+		this.inBufferSize = inBufferSize;
+		this.outBufferSize = outBufferSize;
+	}
+
+	/*
+	 * Output policy of CWOutput, see CWOutput.OUTPUT_*. Coalescing trades
+	 * added latency of up to 'windowMillis' for fewer segments sent.
+	 */
+	public void setOutputPolicy(int policy, long windowMillis) {
+		if (!CWOutput.isValidOutputPolicy(policy, windowMillis))
+			throw new IllegalArgumentException("policy: " + policy
+					+ ", windowMillis: " + windowMillis);
+
+		outputPolicy = policy;
+		coalesceWindow = windowMillis;
+
+		if (cwpOut != null)
+			cwpOut.setOutputPolicy(policy, windowMillis);
+	}
+
+	/*
+	 * Decode received morse on separate thread instead of IO-thread, used
+	 * from next connect on.
+	 */
+	public void setUseDecoderThread(boolean useDecoderThread) {
+		this.useDecoderThread = useDecoderThread;
+	}
+
+	/* Resolver for server host name, used from next lookup on */
+	public void setResolver(CWPResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	public CWPConnectionStats getStats() {
+		return stats;
+	}
+
+	/* Consecutive failures since configuration or last stable connection */
+	public int getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	public int getConnState() {
+		return connState;
+	}
+
+	public long getFrequency() {
+		return currFrequency;
+	}
+
+	/** Non-blocking connect started and waiting for OP_CONNECT */
+	public boolean isConnectPending() {
+		return connectPending;
+	}
+
+	/**
+	 * Time to next work of connection: completed lookup, timeout of pending
+	 * connect, retry of failed resolve or connect, or next CWOutput or
+	 * CWInput work when connected.
+	 */
+	public long timeToNextWork() {
+		switch (connState) {
+		case CONN_RESOLVING_ADDRESS:
+			if (pendingLookup != null && pendingLookup.isDone())
+				return 0;
+
+			return Math.max(0, retryTime - clock.currentTimeMillis());
+
+		case CONN_CREATE_CONNECTION:
+			return Math.max(0, retryTime - clock.currentTimeMillis());
+
+		case CONN_CONNECTED:
+			return Math.min(cwpOut.timeToNextWork(), cwpIn.timeToNextWork());
+
+		default:
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private void retryAfter(long delay) {
+		retryTime = clock.currentTimeMillis() + delay;
+	}
+
+	/*
+	 * Schedule retry after failure with exponential backoff. Delay is
+	 * jittered so that connections dropped together do not retry in
+	 * lockstep.
+	 */
+	private void retryWithBackoff() {
+		long delay = MIN_RETRY_DELAY << Math.min(failedAttempts, 16);
+
+		if (delay > MAX_RETRY_DELAY)
+			delay = MAX_RETRY_DELAY;
+
+		failedAttempts++;
+
+		/* Half of delay is fixed, other half random */
+		retryAfter(delay / 2 + (long) (retryRandom.nextDouble() * (delay / 2)));
+	}
+
+	private void setConnState(int newState) {
+		if (connState == newState)
+			return;
+
+		connState = newState;
+		listener.connectionStateChange(newState);
+	}
+
+	/** Disconnect from server cleanly and setup to resolve hostname */
+	public void reset() {
+		/* flush pending morse */
+		if (cwpIn != null) {
+			cwpIn.flushStaleMorseBits(inputNotify, true);
+			cwpIn.stopDecoderThread();
+		}
+
+		/* cancel selection-key registration */
+		if (connSelKey != null) {
+			connSelKey.cancel();
+			connSelKey = null;
+		}
+
+		if (connState == CONN_CONNECTED) {
+			/* Should be non-null */
+			if (connChannel != null) {
+				try {
+					connChannel.close();
+				} catch (IOException e) {
+					/* Do we have other option than just ignore this? */
+				}
+			}
+
+			connChannel = null;
+			connSockAddr = null;
+			connStartTime = -1;
+
+			setConnState(CONN_RESOLVING_ADDRESS);
+		} else if (connState == CONN_CREATE_CONNECTION) {
+			/* Non-blocking connect might be pending */
+			if (connChannel != null) {
+				try {
+					connChannel.close();
+				} catch (IOException e) {
+				}
+			}
+
+			connChannel = null;
+			connSockAddr = null;
+			connStartTime = -1;
+
+			setConnState(CONN_RESOLVING_ADDRESS);
+		}
+
+		/* Clear pending morse message */
+		handleReceivedMorseMessageBuffer();
+
+		/* Clear connection state */
+		recvStateUp = false;
+		sendStateUp = false;
+		busySendingMorseMessage = false;
+		sendMorseMessageString = null;
+		sendMorseMessage.setLength(0);
+		connectPending = false;
+		pendingLookup = null;
+		cwpIn = null;
+		cwpOut = null;
+
+		requestCurrentState();
+	}
+
+	/** IO error on socket, reset connection and back off before retry */
+	public void reset(IOException e) {
+		/* Connection that stayed up long enough starts backoff over */
+		if (connState == CONN_CONNECTED
+				&& clock.currentTimeMillis() - connStartTime >= MAX_RETRY_DELAY)
+			failedAttempts = 0;
+
+		listener.connectionError(e.toString());
+		reset();
+
+		retryWithBackoff();
+	}
+
+	/** Connection is being shut down with its IO-thread */
+	public void close() {
+		if (cwpIn != null)
+			cwpIn.stopDecoderThread();
+		cwpIn = null;
+		cwpOut = null;
+
+		reset();
+	}
+
+	/**
+	 * Resolve IP-address for hostname on resolver threads. Called again
+	 * until lookup is completed, never blocks.
+	 */
+	public void resolveAddress() {
+		if (pendingLookup == null)
+			pendingLookup = resolver.resolve(hostName, selector);
+
+		if (!pendingLookup.isDone()) {
+			/* Resolver wakes up selector, poll in case it was missed */
+			retryAfter(RESOLVE_POLL_DELAY);
+			return;
+		}
+
+		InetAddress address = pendingLookup.getAddress();
+		pendingLookup = null;
+
+		if (address == null) {
+			/* Invalid hostname, cannot be resolved */
+			retryWithBackoff();
+			return;
+		}
+
+		connSockAddr = new InetSocketAddress(address, hostPort);
+		retryTime = 0;
+
+		setConnState(CONN_CREATE_CONNECTION);
+	}
+
+	/**
+	 * Non-blocking connect. Connection is completed in handleIO() once
+	 * channel is connectable, or given up in checkConnectTimeout().
+	 */
+	public void startConnection() {
+		connChannel = null;
+
+		try {
+			connChannel = SocketChannel.open();
+			connChannel.configureBlocking(false);
+
+			/* adjust socket for low-latency */
+			connChannel.socket().setTcpNoDelay(true);
+
+			if (connChannel.connect(connSockAddr)) {
+				/* Loopback connections might complete immediately */
+				connSelKey = connChannel.register(selector,
+						SelectionKey.OP_READ, this);
+				finishConnection();
+				return;
+			}
+
+			connSelKey = connChannel.register(selector,
+					SelectionKey.OP_CONNECT, this);
+			connectPending = true;
+			retryAfter(CONNECT_TIMEOUT);
+		} catch (IOException ioe) {
+			/* IO error, need to reset connection */
+			if (connChannel != null) {
+				try {
+					connChannel.close();
+				} catch (IOException e) {
+				}
+			}
+			connChannel = null;
+
+			if (connSelKey != null) {
+				connSelKey.cancel();
+				connSelKey = null;
+			}
+
+			setConnState(CONN_RESOLVING_ADDRESS);
+
+			retryWithBackoff();
+		}
+	}
+
+	/** Give up pending non-blocking connect after CONNECT_TIMEOUT */
+	public void checkConnectTimeout() {
+		if (connectPending && clock.currentTimeMillis() >= retryTime)
+			reset(new SocketTimeoutException("connect timed out"));
+	}
+
+	private void finishConnection() {
+		connectPending = false;
+		connStartTime = clock.currentTimeMillis();
+
+		/* in connected state now */
+		connSelKey.interestOps(SelectionKey.OP_READ);
+		setConnState(CONN_CONNECTED);
+
+		setupConnection();
+	}
+
+	/* Connection has been created, initialize other components */
+	private void setupConnection() {
+		if (useLatencyManagement) {
+			/* Set maximum latency management buffer length to 10 sec */
+			cwpIn = new CWInput(10000 /* ms */, connStartTime, inBufferSize);
+		} else
+			cwpIn = new CWInput(0, connStartTime, inBufferSize);
+
+		cwpIn.setClock(clock);
+
+		/* Decoded morse codes wake up IO-thread from select */
+		if (useDecoderThread)
+			cwpIn.startDecoderThread(decodeWakeup);
+
+		cwpOut = new CWOutput(connStartTime, outBufferSize);
+		cwpOut.setClock(clock);
+		cwpOut.setOutputPolicy(outputPolicy, coalesceWindow);
+		cwpOut.setSignal(morseSpeed, Integer.MAX_VALUE, 0.0);
+
+		/* set frequency if not default */
+		if (currFrequency != 1)
+			cwpOut.sendFrequenceChange(currFrequency);
+	}
+
+	/**
+	 * Process output and update interest set of connection before select.
+	 * Returns time to next CWOutput or CWInput work.
+	 */
+	public long prepareIO() {
+		int interestSet;
+
+		/* Always interested in reading */
+		interestSet = SelectionKey.OP_READ;
+
+		/* CWP output handling */
+		cwpOut.processOutput(outputNotify);
+
+		/* Check if need to register write-channel to selector */
+		if (cwpOut.getOutputBuffer().remaining() > 0) {
+			/* Set interest on writing too */
+			interestSet |= SelectionKey.OP_WRITE;
+		}
+
+		/* Update interest set for key */
+		connSelKey.interestOps(interestSet);
+
+		/* Get time to next CWOutput or CWInput work */
+		return timeToNextWork();
+	}
+
+	/** Receive and send data on ready selection key */
+	public void handleIO(SelectionKey key) throws IOException {
+		/* Pending non-blocking connect */
+		if (connectPending) {
+			if (key.isValid() && key.isConnectable()
+					&& connChannel.finishConnect())
+				finishConnection();
+
+			return;
+		}
+
+		ByteBuffer outBuf = cwpOut.getOutputBuffer();
+
+		/* Input reader */
+		if (key.isValid() && key.isReadable())
+			readInput();
+
+		/* Output writer */
+		if (key.isValid() && key.isWritable()) {
+			int bytes = connChannel.write(outBuf);
+
+			if (bytes > 0) {
+				stats.writes++;
+				stats.bytesWritten += bytes;
+			}
+		}
+
+		if (busySendingMorseMessage && cwpOut.queueSize() == 0
+				&& outBuf.remaining() == 0) {
+			/* Sending morse message completed */
+			busySendingMorseMessage = false;
+			sendMorseMessageString = null;
+			listener.morseMessageSendingState(true, null);
+		}
+	}
+
+	/*
+	 * Read until socket is drained. When input buffer fills up, received
+	 * state changes are parsed out to make room; decoding is left for
+	 * processInput() to do once for whole batch. Reading stops when wave
+	 * queue is backlogged, rest is left in socket for later rounds.
+	 */
+	private void readInput() throws IOException {
+		ByteBuffer inBuf = cwpIn.getInBuffer();
+		int bytes;
+
+		stats.readWakeups++;
+
+		while (true) {
+			bytes = connChannel.read(inBuf);
+			if (bytes < 0)
+				throw new EOFException("connection closed by server");
+			if (bytes == 0)
+				break;
+
+			stats.reads++;
+			stats.bytesRead += bytes;
+
+			/* Short read, socket is empty */
+			if (inBuf.hasRemaining())
+				break;
+
+			cwpIn.receiveInput(inputNotify);
+			if (cwpIn.isBacklogged())
+				break;
+		}
+	}
+
+	/** CWP input handling, after IO */
+	public void processInput() {
+		cwpIn.processInput(inputNotify);
+	}
+
+	public void requestCurrentState() {
+		listener.frequencyChange(currFrequency);
+		listener.stateChange(recvStateUp, sendStateUp);
+		listener.morseUpdates(recvMorseMessage.toString());
+		listener.morseMessageSendingState(!busySendingMorseMessage,
+				sendMorseMessageString);
+	}
+
+	public void clearMessages() {
+		recvMorseMessage.setLength(0);
+		listener.morseUpdates("");
+	}
+
+	public void sendMorseMessage(String morse) {
+		if (connState == CONN_CONNECTED && cwpOut != null) {
+			/* Caller should make sure this does not happen */
+			if (busySendingMorseMessage)
+				return;
+
+			busySendingMorseMessage = true;
+			sendMorseMessageString = morse;
+
+			/* Repeated messages are sent from precompiled templates */
+			CWStateChangeQueueFromMorseCode encoder = cwpOut.getEncoder();
+			CWTransmissionTemplate template = transmissionCache.lookup(morse,
+					encoder);
+			if (template == null) {
+				/* Frame message with start and end-of-contact codes */
+				sendMorseMessage.setLength(0);
+				sendMorseMessage.append(MorseCharList.SPECIAL_START_OF_MESSAGE);
+				sendMorseMessage.append(morse);
+				sendMorseMessage.append(MorseCharList.SPECIAL_END_OF_CONTACT);
+
+				template = CWTransmissionTemplate.compile(sendMorseMessage,
+						encoder);
+				transmissionCache.put(morse, template, encoder);
+			}
+
+			/* Fill in morse message, rebased to connection time */
+			cwpOut.sendDown();
+			cwpOut.sendMorseCode(template);
+
+			/* Report state to listener */
+			listener.morseMessageSendingState(false, sendMorseMessageString);
+		} else {
+			/* Just complete morse message sending when not connected */
+			sendMorseMessageString = null;
+			listener.morseMessageSendingState(true, null);
+		}
+	}
+
+	public void setFrequency(long frequency) {
+		if (currFrequency != frequency) {
+			currFrequency = frequency;
+
+			if (connState == CONN_CONNECTED && cwpOut != null)
+				cwpOut.sendFrequenceChange(currFrequency);
+		}
+	}
+
+	public void setSendingState(boolean stateUp) {
+		if (busySendingMorseMessage)
+			return;
+
+		if (connState == CONN_CONNECTED && cwpOut != null) {
+			if (stateUp)
+				cwpOut.sendUp();
+			else
+				cwpOut.sendDown();
+		}
+	}
+
+	public void setConfiguration(String hostName, int hostPort,
+			int morseSpeed, boolean useLatencyManagement) {
+		/* Enforce valid range of port */
+		if (hostPort < 0)
+			hostPort = 0;
+		else if (hostPort > 0xffff)
+			hostPort = 0xffff;
+
+		/* No configuration, fill in values and change connection state */
+		if (connState == CONN_NO_CONFIGURATION) {
+			this.hostName = hostName;
+			this.hostPort = hostPort;
+			this.morseSpeed = morseSpeed;
+			this.useLatencyManagement = useLatencyManagement;
+
+			setConnState(CONN_RESOLVING_ADDRESS);
+			return;
+		}
+
+		if (this.morseSpeed != morseSpeed) {
+			/* Set new morse speed, encoder of connection only */
+			this.morseSpeed = morseSpeed;
+
+			if (cwpOut != null)
+				cwpOut.setSignal(morseSpeed, Integer.MAX_VALUE, 0.0);
+		}
+
+		if (this.hostName.compareTo(hostName) != 0 || this.hostPort != hostPort
+				|| this.useLatencyManagement != useLatencyManagement) {
+			/* Server setup changed, trigger reconnection */
+			this.hostName = hostName;
+			this.hostPort = hostPort;
+			this.useLatencyManagement = useLatencyManagement;
+
+			/* restart from resolving server address, without backoff */
+			failedAttempts = 0;
+			retryTime = 0;
+			reset();
+		}
+	}
+
+	/** Flush pending received morse character and end current message */
+	private void handleReceivedMorseMessageBuffer() {
+		morseDecoder.flush();
+		recvMorseMessageStarted = false;
+
+		notifyReceivedMorseUpdates();
+	}
+
+	/** Pass updated morse-message string to listener */
+	private void notifyReceivedMorseUpdates() {
+		if (!recvMorseMessageUpdated)
+			return;
+
+		recvMorseMessageUpdated = false;
+		listener.morseUpdates(recvMorseMessage.toString());
+	}
+
+	/** Handle characters from streaming morse decoder */
+	private final MorseStreamDecoder.DecoderNotification morseCharacterNotify = new MorseStreamDecoder.DecoderNotification() {
+		public void morseCharacter(char ch) {
+			/* Separate messages with space */
+			if (!recvMorseMessageStarted) {
+				recvMorseMessage.append(' ');
+				recvMorseMessageStarted = true;
+				recvMorseMessageUpdated = true;
+			}
+
+			/* Handle SOS specially */
+			if (ch == MorseCharList.SPECIAL_SOS) {
+				recvMorseMessage.append("¡SOS!");
+				recvMorseMessageUpdated = true;
+				return;
+			}
+
+			/*
+			 * Message is ended either with stop-message (our internal
+			 * implementation specific code) or by end-of-contact (by sender).
+			 */
+			if (ch == MorseCharList.SPECIAL_END_OF_CONTACT
+					|| ch == MorseCharList.SPECIAL_STOP_MESSAGE)
+				recvMorseMessageStarted = false;
+
+			/* Fill end-message control codes with space */
+			if (ch == MorseCharList.SPECIAL_END_OF_CONTACT
+					|| ch == MorseCharList.SPECIAL_END_OF_MESSAGE
+					|| ch == MorseCharList.SPECIAL_STOP_MESSAGE)
+				ch = ' ';
+
+			/* Exclude other control codes */
+			if (Character.isUpperCase(ch))
+				return;
+
+			recvMorseMessage.append(ch);
+			recvMorseMessageUpdated = true;
+		}
+	};
+
+	private final Runnable selectorWakeup = new Runnable() {
+		public void run() {
+			selector.wakeup();
+		}
+	};
+
+	/** Handle callbacks from CWInput */
+	private final CWInputNotification inputNotify = new CWInputNotification() {
+		public void frequencyChange(long newFreq) {
+			/* flush pending morse */
+			cwpIn.flushStaleMorseBits(inputNotify, true);
+
+			/* Clear pending morse message */
+			handleReceivedMorseMessageBuffer();
+
+			listener.frequencyChange(newFreq);
+		}
+
+		public void stateChange(byte newState, int value) {
+			boolean isUpState = newState == CWave.TYPE_UP;
+
+			/* Report state change */
+			if (recvStateUp != isUpState) {
+				recvStateUp = isUpState;
+
+				listener.stateChange(recvStateUp, sendStateUp);
+			}
+		}
+
+		public void morseMessage(BitString morseBits) {
+			/*
+			 * Decode bits as they arrive, each character is passed to
+			 * listener as soon as its character gap is received.
+			 */
+			morseDecoder.pushBits(morseBits);
+
+			/*
+			 * Internal end-of-message sequence is not followed by character
+			 * gap, so flush it out immediately.
+			 */
+			if (morseBits.endWith(MorseCodec.endSequence))
+				handleReceivedMorseMessageBuffer();
+			else
+				notifyReceivedMorseUpdates();
+		}
+	};
+
+	/** Handle callbacks from CWOutput */
+	private final CWOutputWriteNotification outputNotify = new CWOutputWriteNotification() {
+		public void frequencyChange(long newFreq) {
+			listener.frequencyChange(newFreq);
+		}
+
+		public void stateChangeWritten(long addedLatency) {
+			stats.stateChangeWritten(addedLatency);
+		}
+
+		public void stateChange(byte newState, int value) {
+			boolean isUpState = newState == CWave.TYPE_UP;
+
+			/* Report state change */
+			if (sendStateUp != isUpState) {
+				sendStateUp = isUpState;
+
+				listener.stateChange(recvStateUp, sendStateUp);
+			}
+		}
+	};
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+/*
+ * IO counters of one connection. Updated on IO-thread only, readable from
+ * any thread. Counters are kept over reconnects. With TCP_NODELAY, each
+ * write is sent as its own segment.
+ */
+public class CWPConnectionStats {
+	/* Wakeups with connection readable */
+	volatile long readWakeups = 0;
+
+	/* Reads returning data, and bytes they returned */
+	volatile long reads = 0;
+	volatile long bytesRead = 0;
+
+	/* Writes sending data, and bytes they sent */
+	volatile long writes = 0;
+	volatile long bytesWritten = 0;
+
+	/* State changes written, and their delay past due time added by output */
+	volatile long stateChangesWritten = 0;
+	volatile long addedLatencyTotal = 0;
+	volatile long addedLatencyMax = 0;
+
+	public long getReadWakeups() {
+		return readWakeups;
+	}
+
+	public long getReads() {
+		return reads;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public double getBytesPerRead() {
+		return reads > 0 ? (double) bytesRead / reads : 0.0;
+	}
+
+	public double getReadsPerWakeup() {
+		return readWakeups > 0 ? (double) reads / readWakeups : 0.0;
+	}
+
+	public long getWrites() {
+		return writes;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getStateChangesWritten() {
+		return stateChangesWritten;
+	}
+
+	public double getStateChangesPerWrite() {
+		return writes > 0 ? (double) stateChangesWritten / writes : 0.0;
+	}
+
+	/* Average time state changes were held back, in ms */
+	public double getAverageAddedLatency() {
+		return stateChangesWritten > 0 ? (double) addedLatencyTotal
+				/ stateChangesWritten : 0.0;
+	}
+
+	public long getMaxAddedLatency() {
+		return addedLatencyMax;
+	}
+
+	void stateChangeWritten(long addedLatency) {
+		/* Written ahead of time on batch policy */
+		if (addedLatency < 0)
+			addedLatency = 0;
+
+		stateChangesWritten++;
+		addedLatencyTotal += addedLatency;
+		if (addedLatency > addedLatencyMax)
+			addedLatencyMax = addedLatency;
+	}
+
+	/* Adds counters of 'other' to these, for totals over connections */
+	public void add(CWPConnectionStats other) {
+		readWakeups += other.readWakeups;
+		reads += other.reads;
+		bytesRead += other.bytesRead;
+		writes += other.writes;
+		bytesWritten += other.bytesWritten;
+		stateChangesWritten += other.stateChangesWritten;
+		addedLatencyTotal += other.addedLatencyTotal;
+		addedLatencyMax = Math.max(addedLatencyMax, other.addedLatencyMax);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d bytes in %d reads, %.1f bytes/read, "
+				+ "%.2f reads/wakeup; %d bytes in %d writes, %.2f state "
+				+ "changes/write, added latency avg %.1f ms max %d ms",
+				bytesRead, reads, getBytesPerRead(), getReadsPerWakeup(),
+				bytesWritten, writes, getStateChangesPerWrite(),
+				getAverageAddedLatency(), addedLatencyMax);
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi_81.cwp_morse_mangle.cwp.CWMonotonicClock;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+import fi_81.cwp_morse_mangle.cwp.CWSampledClock;
+
+/*
+ * Headless CWP engine, runs one CWPConnection on thread calling run(). Other
+ * threads pass commands to engine through public methods, and receive events
+ * through CWPEngineListener on IO-thread. No Android dependencies.
+ */
+public class CWPEngine implements Runnable, CWPEngineControl {
+	/* Used to signal thread to end work */
+	private final AtomicBoolean isEngineKilled = new AtomicBoolean(false);
+
+	/* Ordered queue for passing commands to IO-thread */
+	private final CWPCommandRing msgRing = new CWPCommandRing(256);
+
+	/* Selector for blocking on non-blocking sockets, woken on new commands */
+	private final Selector selector;
+
+	/* Time is read once per loop iteration */
+	private final CWSampledClock clock = new CWSampledClock(
+			new CWMonotonicClock());
+
+	private final CWPConnection connection;
+
+	public CWPEngine(CWPEngineListener listener) throws IOException {
+		selector = Selector.open();
+		connection = new CWPConnection(selector, clock, listener);
+	}
+
+	/* Engine with given sizes of connection input and output buffers */
+	public CWPEngine(CWPEngineListener listener, int inBufferSize,
+			int outBufferSize) throws IOException {
+		this(listener);
+
+		connection.setBufferSizes(inBufferSize, outBufferSize);
+	}
+
+	/** Main loop of thread */
+	private void run_loop() throws IOException {
+		/* Read time once per iteration */
+		clock.sample();
+
+		switch (connection.getConnState()) {
+		default:
+		case CWPConnection.CONN_NO_CONFIGURATION:
+			/* Wait for configuration from other threads. */
+			selector.select();
+			break;
+
+		case CWPConnection.CONN_RESOLVING_ADDRESS:
+			/* Lookup runs on resolver thread, which wakes up selector */
+			if (waitRetry())
+				connection.resolveAddress();
+
+			break;
+
+		case CWPConnection.CONN_CREATE_CONNECTION:
+			if (connection.isConnectPending()) {
+				try {
+					/* Wait for OP_CONNECT */
+					handleIO(connection.timeToNextWork());
+					connection.checkConnectTimeout();
+				} catch (IOException e) {
+					/* Connect failed, reset connection */
+					connection.reset(e);
+				}
+			} else if (waitRetry())
+				connection.startConnection();
+
+			break;
+
+		case CWPConnection.CONN_CONNECTED:
+			try {
+				handleConnection();
+			} catch (IOException e) {
+				/* IOException, connection trouble, reset connection */
+				connection.reset(e);
+			}
+
+			break;
+		}
+
+		/* Thread is being killed? */
+		if (isEngineKilled.get())
+			return;
+
+		/*
+		 * Each connection state handler might be waiting in select and be
+		 * woken by messages from other threads.
+		 */
+		handleMessageQueue();
+	}
+
+	/**
+	 * Wait until lookup is completed or failed resolve or connect can be
+	 * retried. Returns false if woken early by new commands.
+	 */
+	private boolean waitRetry() throws IOException {
+		long delay = connection.timeToNextWork();
+
+		if (delay > 0) {
+			selector.select(delay);
+			clock.sample();
+
+			delay = connection.timeToNextWork();
+		}
+
+		return delay <= 0;
+	}
+
+	/** Handle sending and receiving data from CWP server */
+	private void handleConnection() throws IOException {
+		/* Wait for input */
+		handleIO(connection.prepareIO());
+
+		/* CWP input handling */
+		connection.processInput();
+	}
+
+	/** Wait up to 'timeout' ms for IO and pass ready keys to connection */
+	private void handleIO(long timeout) throws IOException {
+		int numReadyChannels;
+
+		if (timeout == 0)
+			numReadyChannels = selector.selectNow();
+		else {
+			/*
+			 * Workaround Java or Darvik bug, cannot handle Long.MAX_VALUE.
+			 * Throws SocketException.
+			 */
+			if (timeout > Integer.MAX_VALUE)
+				timeout = Integer.MAX_VALUE;
+
+			numReadyChannels = selector.select(timeout);
+		}
+
+		/* Time moved on while waiting */
+		clock.sample();
+
+		/* Receive and send data */
+		if (numReadyChannels > 0) {
+			Iterator<SelectionKey> keyIter = selector.selectedKeys()
+					.iterator();
+
+			/* Iterate active selection keys */
+			while (keyIter.hasNext()) {
+				connection.handleIO(keyIter.next());
+				keyIter.remove();
+			}
+		}
+	}
+
+	/** Handle messages from other threads */
+	private void handleMessageQueue() {
+		CWPThreadValue value;
+
+		while ((value = msgRing.peek()) != null) {
+			value.applyTo(connection);
+			msgRing.remove();
+		}
+	}
+
+	/** Run engine on current thread until shutdown() */
+	public void run() {
+		/* Messages pushed before engine was started */
+		handleMessageQueue();
+
+		while (!isEngineKilled.get()) {
+			try {
+				run_loop();
+			} catch (IOException e) {
+				/* Selector failure, nothing can be done */
+				break;
+			}
+		}
+
+		/*
+		 * Engine has been shut down, do clean up
+		 */
+
+		msgRing.close();
+		connection.close();
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			/* Nothing to do, engine is finished anyway */
+		}
+	}
+
+	/** Signal engine to quit work, thread running engine should be joined */
+	public void shutdown() {
+		isEngineKilled.set(true);
+		selector.wakeup();
+	}
+
+	public boolean isShutdown() {
+		return isEngineKilled.get();
+	}
+
+	/** Set up new configuration for server */
+	public void setNewConfiguration(String hostName, int hostPort,
+			int morseSpeed, boolean useLatencyManagement) {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass new configuration as message to IO-thread */
+		if (value != null) {
+			value.setConfiguration(hostName, hostPort, morseSpeed,
+					useLatencyManagement);
+			publish(value);
+		}
+	}
+
+	/** Set new frequency */
+	public void setFrequency(long freq) {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass new frequency to IO-thread */
+		if (value != null) {
+			value.setFreqChange(freq);
+			publish(value);
+		}
+	}
+
+	/** Set sending state */
+	public void setSendingState(boolean setUpState) {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass new sending state to IO-thread */
+		if (value != null) {
+			value.setStateChange(setUpState);
+			publish(value);
+		}
+	}
+
+	/** Set to send morse message */
+	public void sendMorseMessage(String morse) {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass new morse message to IO-thread */
+		if (value != null) {
+			value.setMorseMessage(morse);
+			publish(value);
+		}
+	}
+
+	/** Request current state from IO-thread */
+	public void requestCurrentState() {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass state request to IO-thread */
+		if (value != null) {
+			value.setStateRequest();
+			publish(value);
+		}
+	}
+
+	/** Request to clear received morse messages */
+	public void requestClearMessages() {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass clear request to IO-thread */
+		if (value != null) {
+			value.setClearMessages();
+			publish(value);
+		}
+	}
+
+	/** Set output policy of connection */
+	public void setOutputPolicy(int policy, long windowMillis) {
+		if (!CWOutput.isValidOutputPolicy(policy, windowMillis))
+			throw new IllegalArgumentException("policy: " + policy
+					+ ", windowMillis: " + windowMillis);
+
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass new output policy to IO-thread */
+		if (value != null) {
+			value.setOutputPolicy(policy, windowMillis);
+			publish(value);
+		}
+	}
+
+	public void setUseDecoderThread(boolean useDecoderThread) {
+		CWPThreadValue value = msgRing.claim();
+
+		/* Pass decoder thread setting to IO-thread */
+		if (value != null) {
+			value.setDecoderThread(useDecoderThread);
+			publish(value);
+		}
+	}
+
+	public CWPConnectionStats getStats() {
+		return connection.getStats();
+	}
+
+	private void publish(CWPThreadValue value) {
+		msgRing.publish(value);
+
+		/* signal IO-thread of new message */
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+/*
+ * Commands to one engine connection. Thread-safe, commands are passed to
+ * IO-thread of engine and handled there in order. Commands wait while
+ * command queue is full, so they must not be given from listener callbacks
+ * or while holding lock that listener takes.
+ */
+public interface CWPEngineControl {
+	public abstract void setNewConfiguration(String hostName, int hostPort,
+			int morseSpeed, boolean useLatencyManagement);
+
+	public abstract void setFrequency(long freq);
+
+	public abstract void setSendingState(boolean setUpState);
+
+	public abstract void sendMorseMessage(String morse);
+
+	public abstract void requestCurrentState();
+
+	public abstract void requestClearMessages();
+
+	/*
+	 * Output policy of connection, see CWOutput.OUTPUT_*. Throws
+	 * IllegalArgumentException on invalid policy or window.
+	 */
+	public abstract void setOutputPolicy(int policy, long windowMillis);
+
+	/* Decode received morse on separate thread, from next connection on */
+	public abstract void setUseDecoderThread(boolean useDecoderThread);
+
+	/* IO counters of connection, can be read from any thread */
+	public abstract CWPConnectionStats getStats();
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+/*
+ * Callbacks from CWPConnection. Called from IO-thread of engine, so
+ * implementation must pass data to other threads by itself if needed.
+ * Commands to engine are given from those threads, not from callbacks.
+ */
+public interface CWPEngineListener {
+	/* Connection state changed, one of CWPConnection.CONN_* */
+	public abstract void connectionStateChange(int connState);
+
+	/* Connection was reset because of IO error */
+	public abstract void connectionError(String reason);
+
+	/* Frequency changed, either by server or by us */
+	public abstract void frequencyChange(long freq);
+
+	/* Received or sending wave state changed */
+	public abstract void stateChange(boolean recvStateUp, boolean sendStateUp);
+
+	/* Buffer of received morse messages was updated */
+	public abstract void morseUpdates(String morse);
+
+	/* Sending morse message started or completed */
+	public abstract void morseMessageSendingState(boolean complete,
+			String sendMorse);
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import fi_81.cwp_morse_mangle.cwp.CWInput;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+
+/*
+ * Command-line runner for headless CWP receivers and transmitters. Starts
+ * given number of connections, each on own frequency, prints received morse
+ * messages and optionally transmits message periodically. Connections run
+ * either on own CWPEngine thread each, or multiplexed on few CWPMultiEngine
+ * threads. In scan mode, connections sweep frequency range with CWPScanner
+ * instead.
+ * 
+ * Usage: CWPEngineRunner [options] host [port]
+ */
+public class CWPEngineRunner {
+	private static final int DEFAULT_PORT = 20000;
+
+	/* Received text is cleared from engine buffer after this length */
+	private static final int MAX_RECEIVED_BUFFER = 4096;
+
+	private static final PrintStream out = System.out;
+
+	/* Prints events of one engine, prefixed with engine number */
+	private static class RunnerListener implements CWPEngineListener {
+		private final String prefix;
+		private final boolean quiet;
+		private int printedLength = 0;
+		private volatile boolean connected = false;
+		private volatile boolean clearRequested = false;
+		private volatile boolean sending = false;
+		private boolean transmitting = false;
+		private volatile long messagesSent = 0;
+		private volatile long charsReceived = 0;
+
+		private RunnerListener(int number, boolean quiet) {
+			this.prefix = "[" + number + "] ";
+			this.quiet = quiet;
+		}
+
+		public void connectionStateChange(int connState) {
+			connected = connState == CWPConnection.CONN_CONNECTED;
+
+			if (!quiet)
+				out.println(prefix + "connection state " + connState);
+		}
+
+		public void connectionError(String reason) {
+			if (!quiet)
+				out.println(prefix + "connection error: " + reason);
+		}
+
+		public void frequencyChange(long freq) {
+			if (!quiet)
+				out.println(prefix + "frequency " + freq);
+		}
+
+		public void stateChange(boolean recvStateUp, boolean sendStateUp) {
+		}
+
+		public void morseUpdates(String morse) {
+			/* Buffer was cleared */
+			if (morse.length() < printedLength)
+				printedLength = 0;
+
+			if (morse.length() == printedLength)
+				return;
+
+			String received = morse.substring(printedLength);
+
+			charsReceived += received.length();
+			printedLength = morse.length();
+
+			if (!quiet)
+				out.println(prefix + "received: " + received);
+
+			/* Keep engine buffer from growing, cleared from main thread */
+			if (printedLength > MAX_RECEIVED_BUFFER)
+				clearRequested = true;
+		}
+
+		public void morseMessageSendingState(boolean complete,
+				String sendMorse) {
+			/* Message is counted only if engine really started sending it */
+			if (!complete) {
+				transmitting = true;
+				return;
+			}
+
+			if (transmitting)
+				messagesSent++;
+			transmitting = false;
+			sending = false;
+		}
+	}
+
+	private static void usage() {
+		out.println("Usage: CWPEngineRunner [options] host [port]");
+		out.println("  -n <count>    number of connections (default 1)");
+		out.println("  -f <freq>     frequency of first connection "
+				+ "(default 1)");
+		out.println("  -F <step>     frequency step between connections "
+				+ "(default 0)");
+		out.println("  -x <threads>  multiplex connections on given number "
+				+ "of threads");
+		out.println("  -w <ms>       morse signal width (default 100)");
+		out.println("  -b <bytes>    size of connection IO buffers "
+				+ "(default 128)");
+		out.println("  -o <policy>[:<ms>]");
+		out.println("                output policy: immediate (default), "
+				+ "coalesce with window, batch");
+		out.println("  -l            use latency management");
+		out.println("  -D            decode received morse on separate "
+				+ "thread per connection");
+		out.println("  -m <message>  transmit message");
+		out.println("  -r <seconds>  message repeat interval (default 0, "
+				+ "once)");
+		out.println("  -t <seconds>  run time (default 0, until killed)");
+		out.println("  -q            print only summary");
+		out.println("  -S <start>:<end>[:<step>]");
+		out.println("                scan frequency range, -n connections "
+				+ "in parallel");
+		out.println("  -d <ms>       scan dwell time per channel "
+				+ "(default 1000)");
+		out.println("  -L <changes>  lock on channel with given number of "
+				+ "state changes");
+		System.exit(1);
+	}
+
+	private static long[] parseRange(String range) {
+		String[] parts = range.split(":");
+		long[] values = new long[] { 0, 0, 1 };
+
+		if (parts.length < 2 || parts.length > 3)
+			throw new NumberFormatException(range);
+
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Long.parseLong(parts[i]);
+
+		if (values[2] <= 0 || values[1] < values[0])
+			throw new NumberFormatException(range);
+
+		return values;
+	}
+
+	/* Parse output policy and coalescing window, {policy, window} */
+	private static long[] parseOutputPolicy(String arg) {
+		String[] parts = arg.split(":");
+		long[] values = new long[] { CWOutput.OUTPUT_IMMEDIATE, 0 };
+
+		if (parts.length > 2)
+			throw new NumberFormatException(arg);
+
+		if (parts[0].equals("immediate"))
+			values[0] = CWOutput.OUTPUT_IMMEDIATE;
+		else if (parts[0].equals("coalesce"))
+			values[0] = CWOutput.OUTPUT_COALESCE;
+		else if (parts[0].equals("batch"))
+			values[0] = CWOutput.OUTPUT_BATCH;
+		else
+			throw new NumberFormatException(arg);
+
+		if (parts.length == 2)
+			values[1] = Long.parseLong(parts[1]);
+
+		if (!CWOutput.isValidOutputPolicy((int) values[0], values[1]))
+			throw new NumberFormatException(arg);
+
+		return values;
+	}
+
+	/* Prints scanner events, received morse only for locked channels */
+	private static class ScanPrinter implements CWPScanner.ScanListener {
+		private final boolean quiet;
+		private int printedLength = 0;
+
+		private ScanPrinter(boolean quiet) {
+			this.quiet = quiet;
+		}
+
+		public void channelScanned(CWPScanner.Channel channel,
+				int stateChanges) {
+			if (!quiet && stateChanges > 0)
+				out.println("[" + channel.getFrequency() + "] activity: "
+						+ stateChanges + " state changes");
+		}
+
+		public void channelLocked(CWPScanner.Channel channel) {
+			out.println("[" + channel.getFrequency() + "] locked on");
+		}
+
+		public synchronized void morseUpdates(CWPScanner.Channel channel,
+				String morse) {
+			if (morse.length() < printedLength)
+				printedLength = 0;
+			if (morse.length() == printedLength)
+				return;
+
+			out.println("[" + channel.getFrequency() + "] received: "
+					+ morse.substring(printedLength));
+			printedLength = morse.length();
+		}
+	}
+
+	private static void runScanner(String host, int port, int width,
+			boolean latency, int poolSize, long[] range, long dwellMillis,
+			int lockThreshold, long runMillis, boolean quiet)
+			throws IOException, InterruptedException {
+		CWPMultiEngine engine = new CWPMultiEngine();
+		Thread engineThread = new Thread(engine, "CWPMultiEngine");
+		CWPScanner scanner = new CWPScanner(engine, poolSize, range[0],
+				range[1], range[2], new ScanPrinter(quiet));
+		Thread scanThread = new Thread(scanner, "CWPScanner");
+
+		engineThread.setDaemon(true);
+		engineThread.start();
+
+		scanner.setDwellTime(dwellMillis);
+		scanner.setLockOn(lockThreshold, 1);
+		scanner.connect(host, port, width, latency);
+
+		long startTime = System.currentTimeMillis();
+
+		scanThread.setDaemon(true);
+		scanThread.start();
+
+		while (runMillis <= 0
+				|| System.currentTimeMillis() - startTime < runMillis)
+			Thread.sleep(100);
+
+		scanner.shutdown();
+		scanThread.join(1000);
+
+		long now = System.currentTimeMillis();
+		List<CWPScanner.Channel> ranking = scanner.getRanking(10);
+
+		out.println("Most active channels:");
+		for (CWPScanner.Channel channel : ranking) {
+			if (channel.getStateChanges() == 0)
+				break;
+
+			out.println(String.format("  %8d: %6.2f state changes/s%s",
+					channel.getFrequency(), channel.getActivity(),
+					channel.isLocked() ? " (locked)" : ""));
+		}
+
+		out.println(String.format("%d channels scanned in %.1f s "
+				+ "(%d sweeps), %.1f channels/s", scanner.getChannelsScanned(),
+				(now - startTime) / 1000.0, scanner.getSweeps(),
+				scanner.getScanRate(now)));
+
+		scanner.disconnect();
+		engine.shutdown();
+		engineThread.join(1000);
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		int count = 1;
+		int multiThreads = 0;
+		long freq = 1;
+		long freqStep = 0;
+		int width = 100;
+		boolean latency = false;
+		boolean decoderThread = false;
+		String message = null;
+		long repeatMillis = 0;
+		long runMillis = 0;
+		boolean quiet = false;
+		String host = null;
+		int port = DEFAULT_PORT;
+		long[] scanRange = null;
+		long dwellMillis = 1000;
+		int lockThreshold = 0;
+		int bufferSize = CWInput.DEFAULT_BUFFER_SIZE;
+		long[] outputPolicy = parseOutputPolicy("immediate");
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+
+				if (arg.equals("-n"))
+					count = Integer.parseInt(args[++i]);
+				else if (arg.equals("-f"))
+					freq = Long.parseLong(args[++i]);
+				else if (arg.equals("-F"))
+					freqStep = Long.parseLong(args[++i]);
+				else if (arg.equals("-x"))
+					multiThreads = Integer.parseInt(args[++i]);
+				else if (arg.equals("-w"))
+					width = Integer.parseInt(args[++i]);
+				else if (arg.equals("-b"))
+					bufferSize = Integer.parseInt(args[++i]);
+				else if (arg.equals("-o"))
+					outputPolicy = parseOutputPolicy(args[++i]);
+				else if (arg.equals("-l"))
+					latency = true;
+				else if (arg.equals("-D"))
+					decoderThread = true;
+				else if (arg.equals("-m"))
+					message = args[++i];
+				else if (arg.equals("-r"))
+					repeatMillis = Long.parseLong(args[++i]) * 1000;
+				else if (arg.equals("-t"))
+					runMillis = Long.parseLong(args[++i]) * 1000;
+				else if (arg.equals("-q"))
+					quiet = true;
+				else if (arg.equals("-S"))
+					scanRange = parseRange(args[++i]);
+				else if (arg.equals("-d"))
+					dwellMillis = Long.parseLong(args[++i]);
+				else if (arg.equals("-L"))
+					lockThreshold = Integer.parseInt(args[++i]);
+				else if (host == null)
+					host = arg;
+				else
+					port = Integer.parseInt(arg);
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage();
+		}
+
+		if (host == null || count <= 0 || bufferSize < CWInput.MIN_BUFFER_SIZE)
+			usage();
+
+		if (scanRange != null) {
+			runScanner(host, port, width, latency, count, scanRange,
+					dwellMillis, lockThreshold, runMillis, quiet);
+			return;
+		}
+
+		CWPEngineControl[] engines = new CWPEngineControl[count];
+		RunnerListener[] listeners = new RunnerListener[count];
+		CWPMultiEngine[] multiEngines = new CWPMultiEngine[Math.max(0,
+				multiThreads)];
+		Thread[] threads = new Thread[multiThreads > 0 ? multiThreads
+				: count];
+
+		for (int i = 0; i < multiEngines.length; i++) {
+			multiEngines[i] = new CWPMultiEngine();
+
+			threads[i] = new Thread(multiEngines[i], "CWPMultiEngine-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		for (int i = 0; i < count; i++) {
+			listeners[i] = new RunnerListener(i, quiet);
+
+			if (multiEngines.length > 0) {
+				engines[i] = multiEngines[i % multiEngines.length]
+						.addConnection(listeners[i], bufferSize, bufferSize);
+			} else {
+				CWPEngine engine = new CWPEngine(listeners[i], bufferSize,
+						bufferSize);
+
+				threads[i] = new Thread(engine, "CWPEngine-" + i);
+				threads[i].setDaemon(true);
+				threads[i].start();
+
+				engines[i] = engine;
+			}
+
+			engines[i].setOutputPolicy((int) outputPolicy[0], outputPolicy[1]);
+			engines[i].setUseDecoderThread(decoderThread);
+			engines[i].setFrequency(freq + i * freqStep);
+			engines[i].setNewConfiguration(host, port, width, latency);
+		}
+
+		long startTime = System.currentTimeMillis();
+		long nextSend = startTime;
+		boolean sent = false;
+
+		while (runMillis <= 0
+				|| System.currentTimeMillis() - startTime < runMillis) {
+			long now = System.currentTimeMillis();
+
+			for (int i = 0; i < count; i++) {
+				if (!listeners[i].clearRequested)
+					continue;
+
+				listeners[i].clearRequested = false;
+				engines[i].requestClearMessages();
+			}
+
+			/* Send message on engines that are idle and connected */
+			if (message != null && now >= nextSend
+					&& (!sent || repeatMillis > 0)) {
+				boolean anySent = false;
+
+				for (int i = 0; i < count; i++) {
+					if (!listeners[i].connected || listeners[i].sending)
+						continue;
+
+					listeners[i].sending = true;
+					engines[i].sendMorseMessage(message);
+					anySent = true;
+				}
+
+				if (anySent) {
+					sent = true;
+					nextSend = now + repeatMillis;
+				}
+			}
+
+			Thread.sleep(100);
+		}
+
+		long connected = 0, messagesSent = 0, charsReceived = 0;
+		CWPConnectionStats stats = new CWPConnectionStats();
+
+		for (int i = 0; i < count; i++) {
+			if (listeners[i].connected)
+				connected++;
+			messagesSent += listeners[i].messagesSent;
+			charsReceived += listeners[i].charsReceived;
+			stats.add(engines[i].getStats());
+
+			if (engines[i] instanceof CWPEngine)
+				((CWPEngine) engines[i]).shutdown();
+		}
+
+		for (int i = 0; i < multiEngines.length; i++)
+			multiEngines[i].shutdown();
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join(1000);
+
+		out.println(String.format("%d connections, %d connected, %d messages "
+				+ "sent, %d characters received in %.1f s", count,
+				connected, messagesSent, charsReceived,
+				(System.currentTimeMillis() - startTime) / 1000.0));
+		out.println(stats.toString());
+	}
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi_81.cwp_morse_mangle.cwp.CWInput;
+import fi_81.cwp_morse_mangle.cwp.CWMonotonicClock;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+import fi_81.cwp_morse_mangle.cwp.CWSampledClock;
+
+/*
+ * Headless CWP engine multiplexing many connections on one selector and
+ * thread. Each connection has its own CWInput/CWOutput state, frequency and
+ * listener. Next work time of every connection is kept in shared min-heap,
+ * so each loop only handles connections with IO readiness, due timers or new
+ * commands.
+ */
+public class CWPMultiEngine implements Runnable {
+	/* Used to signal thread to end work */
+	private final AtomicBoolean isEngineKilled = new AtomicBoolean(false);
+
+	/* Ordered queue for passing commands to IO-thread */
+	private final CWPCommandRing msgRing = new CWPCommandRing(4096);
+
+	/* Selector for blocking on non-blocking sockets, woken on new commands */
+	private final Selector selector;
+
+	/* Time is read once per loop iteration */
+	private final CWSampledClock clock = new CWSampledClock(
+			new CWMonotonicClock());
+
+	/* Connections by id, only accessed from IO-thread */
+	private final ArrayList<CWPConnection> connections = new ArrayList<CWPConnection>();
+	private final AtomicInteger nextConnectionId = new AtomicInteger(0);
+	private final AtomicInteger numConnections = new AtomicInteger(0);
+
+	/* Next work time of connections */
+	private final CWPTimerHeap timers = new CWPTimerHeap();
+
+	/* Connections needing work on this loop iteration */
+	private final ArrayList<CWPConnection> dirtyConnections = new ArrayList<CWPConnection>();
+	private boolean[] isDirty = new boolean[16];
+
+	/* Connections with morse decoded on their decoder threads */
+	private final ConcurrentLinkedQueue<CWPConnection> decodedConnections = new ConcurrentLinkedQueue<CWPConnection>();
+
+	/* Loop statistics */
+	private long loops = 0;
+	private long connectionsProcessed = 0;
+
+	/* Handle to one connection of engine */
+	private class Connection implements CWPEngineControl {
+		private final int id;
+		private final CWPConnectionStats stats;
+
+		private Connection(int id, CWPConnectionStats stats) {
+			this.id = id;
+			this.stats = stats;
+		}
+
+		private CWPThreadValue claim() {
+			CWPThreadValue value = msgRing.claim();
+
+			if (value != null)
+				value.target = id;
+
+			return value;
+		}
+
+		public void setNewConfiguration(String hostName, int hostPort,
+				int morseSpeed, boolean useLatencyManagement) {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setConfiguration(hostName, hostPort, morseSpeed,
+						useLatencyManagement);
+				publish(value);
+			}
+		}
+
+		public void setFrequency(long freq) {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setFreqChange(freq);
+				publish(value);
+			}
+		}
+
+		public void setSendingState(boolean setUpState) {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setStateChange(setUpState);
+				publish(value);
+			}
+		}
+
+		public void sendMorseMessage(String morse) {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setMorseMessage(morse);
+				publish(value);
+			}
+		}
+
+		public void requestCurrentState() {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setStateRequest();
+				publish(value);
+			}
+		}
+
+		public void requestClearMessages() {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setClearMessages();
+				publish(value);
+			}
+		}
+
+		public void setOutputPolicy(int policy, long windowMillis) {
+			if (!CWOutput.isValidOutputPolicy(policy, windowMillis))
+				throw new IllegalArgumentException("policy: " + policy
+						+ ", windowMillis: " + windowMillis);
+
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setOutputPolicy(policy, windowMillis);
+				publish(value);
+			}
+		}
+
+		public void setUseDecoderThread(boolean useDecoderThread) {
+			CWPThreadValue value = claim();
+
+			if (value != null) {
+				value.setDecoderThread(useDecoderThread);
+				publish(value);
+			}
+		}
+
+		public CWPConnectionStats getStats() {
+			return stats;
+		}
+	}
+
+	public CWPMultiEngine() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Add new connection to engine. Connection is configured and controlled
+	 * through returned handle. Can be called from any thread.
+	 */
+	public CWPEngineControl addConnection(CWPEngineListener listener) {
+		return addConnection(listener, CWInput.DEFAULT_BUFFER_SIZE,
+				CWOutput.DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Add connection with given sizes of input and output buffers */
+	public CWPEngineControl addConnection(CWPEngineListener listener,
+			int inBufferSize, int outBufferSize) {
+		final CWPConnection connection = new CWPConnection(selector, clock,
+				listener);
+		Connection handle;
+		CWPThreadValue value;
+
+		connection.setBufferSizes(inBufferSize, outBufferSize);
+
+		/* Only connections marked dirty are processed after wakeup */
+		connection.decodeWakeup = new Runnable() {
+			public void run() {
+				decodedConnections.offer(connection);
+				selector.wakeup();
+			}
+		};
+
+		handle = new Connection(nextConnectionId.getAndIncrement(),
+				connection.getStats());
+		value = handle.claim();
+
+		if (value != null) {
+			numConnections.incrementAndGet();
+
+			value.setAddConnection(connection);
+			publish(value);
+		}
+
+		return handle;
+	}
+
+	/** Close and remove connection from engine */
+	public void removeConnection(CWPEngineControl control) {
+		CWPThreadValue value = ((Connection) control).claim();
+
+		if (value != null) {
+			value.setRemoveConnection();
+			publish(value);
+		}
+	}
+
+	public int getConnectionCount() {
+		return numConnections.get();
+	}
+
+	/* Average connections handled per loop, shows how well work batches */
+	public double getConnectionsPerLoop() {
+		return loops > 0 ? (double) connectionsProcessed / loops : 0.0;
+	}
+
+	/** Main loop of thread */
+	private void run_loop() throws IOException {
+		long timeout, deadline;
+		int numReadyChannels, id;
+
+		/* Wait until next connection has work, or for IO */
+		deadline = timers.peekDeadline();
+		if (deadline == Long.MAX_VALUE)
+			numReadyChannels = selector.select();
+		else {
+			timeout = deadline - clock.currentTimeMillis();
+
+			if (timeout <= 0)
+				numReadyChannels = selector.selectNow();
+			else {
+				/*
+				 * Workaround Java or Darvik bug, cannot handle
+				 * Long.MAX_VALUE. Throws SocketException.
+				 */
+				if (timeout > Integer.MAX_VALUE)
+					timeout = Integer.MAX_VALUE;
+
+				numReadyChannels = selector.select(timeout);
+			}
+		}
+
+		/* Time moved on while waiting */
+		clock.sample();
+		loops++;
+
+		/* Commands from other threads */
+		handleMessageQueue();
+
+		/* Receive and send data */
+		if (numReadyChannels > 0) {
+			Iterator<SelectionKey> keyIter = selector.selectedKeys()
+					.iterator();
+
+			/* Iterate active selection keys */
+			while (keyIter.hasNext()) {
+				SelectionKey key = keyIter.next();
+				CWPConnection connection = (CWPConnection) key.attachment();
+
+				keyIter.remove();
+
+				/* Key of closed connection, already removed */
+				if (connection == null || connection.engineId < 0)
+					continue;
+
+				try {
+					connection.handleIO(key);
+				} catch (IOException e) {
+					/* IOException, connection trouble, reset connection */
+					connection.reset(e);
+				}
+
+				markDirty(connection);
+			}
+		}
+
+		/* Decoded morse is polled by connection on IO-thread */
+		CWPConnection decoded;
+		while ((decoded = decodedConnections.poll()) != null)
+			if (decoded.engineId >= 0)
+				markDirty(decoded);
+
+		/* Connections with due timers */
+		while ((id = timers.pollDue(clock.currentTimeMillis())) >= 0)
+			markDirty(connections.get(id));
+
+		/* Handle work of all touched connections and reschedule them */
+		for (int i = 0; i < dirtyConnections.size(); i++) {
+			CWPConnection connection = dirtyConnections.get(i);
+
+			isDirty[connection.engineId] = false;
+			processConnection(connection);
+		}
+
+		connectionsProcessed += dirtyConnections.size();
+		dirtyConnections.clear();
+	}
+
+	private void markDirty(CWPConnection connection) {
+		int id = connection.engineId;
+
+		if (isDirty[id])
+			return;
+
+		isDirty[id] = true;
+		dirtyConnections.add(connection);
+	}
+
+	private void processConnection(CWPConnection connection) {
+		/* Resolved or connected immediately, handle new state right away */
+		while (advanceConnection(connection))
+			;
+
+		schedule(connection);
+	}
+
+	/* Do work of current state, true if connection moved to next state */
+	private boolean advanceConnection(CWPConnection connection) {
+		switch (connection.getConnState()) {
+		default:
+		case CWPConnection.CONN_NO_CONFIGURATION:
+			return false;
+
+		case CWPConnection.CONN_RESOLVING_ADDRESS:
+			if (connection.timeToNextWork() > 0)
+				return false;
+
+			connection.resolveAddress();
+			return connection.getConnState() == CWPConnection.CONN_CREATE_CONNECTION;
+
+		case CWPConnection.CONN_CREATE_CONNECTION:
+			/* Pending connect completes on OP_CONNECT, or times out */
+			if (connection.isConnectPending()) {
+				connection.checkConnectTimeout();
+				return false;
+			}
+
+			if (connection.timeToNextWork() > 0)
+				return false;
+
+			connection.startConnection();
+			return connection.getConnState() == CWPConnection.CONN_CONNECTED;
+
+		case CWPConnection.CONN_CONNECTED:
+			connection.processInput();
+
+			/* Input might have reset connection */
+			if (connection.getConnState() == CWPConnection.CONN_CONNECTED)
+				connection.prepareIO();
+
+			return false;
+		}
+	}
+
+	private void schedule(CWPConnection connection) {
+		long timeToNext = connection.timeToNextWork();
+
+		if (timeToNext == Long.MAX_VALUE)
+			timers.cancel(connection.engineId);
+		else
+			timers.schedule(connection.engineId, clock.currentTimeMillis()
+					+ timeToNext);
+	}
+
+	/** Handle messages from other threads */
+	private void handleMessageQueue() {
+		CWPThreadValue value;
+
+		while ((value = msgRing.peek()) != null) {
+			switch (value.type) {
+			case CWPThreadValue.TYPE_ADD_CONNECTION:
+				addConnectionLocal(value.target, value.getConnection());
+				break;
+
+			case CWPThreadValue.TYPE_REMOVE_CONNECTION:
+				removeConnectionLocal(value.target);
+				break;
+
+			default:
+				CWPConnection connection = connections.get(value.target);
+
+				/* Command to removed connection */
+				if (connection == null)
+					break;
+
+				value.applyTo(connection);
+				markDirty(connection);
+				break;
+			}
+
+			msgRing.remove();
+		}
+	}
+
+	private void addConnectionLocal(int id, CWPConnection connection) {
+		while (connections.size() <= id)
+			connections.add(null);
+
+		if (isDirty.length <= id) {
+			boolean[] newDirty = new boolean[Math.max(id + 1,
+					isDirty.length * 2)];
+
+			System.arraycopy(isDirty, 0, newDirty, 0, isDirty.length);
+			isDirty = newDirty;
+		}
+
+		connection.engineId = id;
+		connections.set(id, connection);
+	}
+
+	private void removeConnectionLocal(int id) {
+		CWPConnection connection = connections.get(id);
+
+		if (connection == null)
+			return;
+
+		/* Count is updated before listener sees connection closing */
+		numConnections.decrementAndGet();
+		connection.close();
+		timers.cancel(id);
+
+		/* Might be queued for processing on this iteration */
+		if (isDirty[id]) {
+			isDirty[id] = false;
+			dirtyConnections.remove(connection);
+		}
+
+		connection.engineId = -1;
+		connections.set(id, null);
+	}
+
+	/** Run engine on current thread until shutdown() */
+	public void run() {
+		clock.sample();
+
+		while (!isEngineKilled.get()) {
+			try {
+				run_loop();
+			} catch (IOException e) {
+				/* Selector failure, nothing can be done */
+				break;
+			}
+		}
+
+		/*
+		 * Engine has been shut down, do clean up
+		 */
+
+		for (int i = 0; i < connections.size(); i++) {
+			CWPConnection connection = connections.get(i);
+
+			if (connection != null) {
+				connection.close();
+				connection.engineId = -1;
+			}
+		}
+		connections.clear();
+		numConnections.set(0);
+
+		msgRing.close();
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			/* Nothing to do, engine is finished anyway */
+		}
+	}
+
+	/** Signal engine to quit work, thread running engine should be joined */
+	public void shutdown() {
+		isEngineKilled.set(true);
+		selector.wakeup();
+	}
+
+	public boolean isShutdown() {
+		return isEngineKilled.get();
+	}
+
+	private void publish(CWPThreadValue value) {
+		msgRing.publish(value);
+
+		/* signal IO-thread of new message */
+		selector.wakeup();
+	}
+}
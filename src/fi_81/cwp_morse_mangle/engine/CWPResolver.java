@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fi_81.cwp_morse_mangle.cwp.CWClock;
+
+/*
+ * Host name resolver for IO-threads. Blocking lookups are run on small pool
+ * of resolver threads and results are cached for TTL, failures for shorter
+ * negative TTL. Concurrent lookups of same host share one request, so many
+ * connections reconnecting at once cost single lookup.
+ */
+public class CWPResolver {
+	/* Time results are kept in cache, in ms */
+	public static final long DEFAULT_TTL = 60000;
+	public static final long DEFAULT_NEGATIVE_TTL = 5000;
+	public static final int DEFAULT_THREADS = 2;
+
+	/* Cache is purged of expired entries when it grows past this */
+	private static final int PURGE_THRESHOLD = 64;
+
+	private static CWPResolver defaultResolver;
+
+	/* Lookup of one host name, pending or completed */
+	public static class Lookup {
+		private final String hostName;
+		private volatile boolean done = false;
+		private volatile InetAddress address = null;
+
+		/* Expiry time of completed result, guarded by resolver */
+		private long expireTime;
+
+		/* Selectors to wake up on completion, guarded by this */
+		private final ArrayList<Selector> waiters = new ArrayList<Selector>(2);
+
+		private Lookup(String hostName) {
+			this.hostName = hostName;
+		}
+
+		public String getHostName() {
+			return hostName;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		/* Resolved address, null if lookup failed or is pending */
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		private void addWaiter(Selector selector) {
+			if (selector == null)
+				return;
+
+			synchronized (this) {
+				if (!done) {
+					waiters.add(selector);
+					return;
+				}
+			}
+
+			selector.wakeup();
+		}
+
+		private void complete(InetAddress address) {
+			Selector[] wakeups;
+
+			synchronized (this) {
+				this.address = address;
+				done = true;
+
+				wakeups = waiters.toArray(new Selector[waiters.size()]);
+				waiters.clear();
+			}
+
+			for (Selector selector : wakeups)
+				selector.wakeup();
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final CWClock clock;
+	private final long ttl;
+	private final long negativeTtl;
+
+	/* Cached and pending lookups by host name */
+	private final HashMap<String, Lookup> lookups = new HashMap<String, Lookup>();
+	private long lookupsStarted = 0;
+	private long cacheHits = 0;
+
+	/* Shared resolver used by connections by default */
+	public static synchronized CWPResolver getDefault() {
+		if (defaultResolver == null)
+			defaultResolver = new CWPResolver(DEFAULT_THREADS, DEFAULT_TTL,
+					DEFAULT_NEGATIVE_TTL, CWClock.SYSTEM);
+
+		return defaultResolver;
+	}
+
+	public CWPResolver(int threads, long ttl, long negativeTtl, CWClock clock) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads: " + threads);
+
+		this.clock = clock;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+
+		/* Idle resolver threads exit, daemon so they never keep JVM up */
+		executor = new ThreadPoolExecutor(threads, threads, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CWPResolver");
+
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/*
+	 * Start lookup of 'hostName', or join pending or cached one. Never
+	 * blocks. 'selector' is woken up when result is ready, can be null.
+	 */
+	public Lookup resolve(String hostName, Selector selector) {
+		Lookup lookup;
+		boolean start = false;
+
+		synchronized (this) {
+			long now = clock.currentTimeMillis();
+
+			lookup = lookups.get(hostName);
+			if (lookup != null && lookup.isDone() && lookup.expireTime <= now)
+				lookup = null;
+
+			if (lookup == null) {
+				if (lookups.size() >= PURGE_THRESHOLD)
+					purgeExpired(now);
+
+				lookup = new Lookup(hostName);
+				lookups.put(hostName, lookup);
+				lookupsStarted++;
+				start = true;
+			} else if (lookup.isDone())
+				cacheHits++;
+		}
+
+		lookup.addWaiter(selector);
+
+		if (start) {
+			final Lookup pending = lookup;
+
+			executor.execute(new Runnable() {
+				public void run() {
+					runLookup(pending);
+				}
+			});
+		}
+
+		return lookup;
+	}
+
+	/* Blocking lookup, run on resolver thread */
+	protected InetAddress lookupHost(String hostName)
+			throws UnknownHostException {
+		return InetAddress.getByName(hostName);
+	}
+
+	private void runLookup(Lookup lookup) {
+		InetAddress address;
+
+		try {
+			address = lookupHost(lookup.hostName);
+		} catch (UnknownHostException e) {
+			address = null;
+		} catch (RuntimeException e) {
+			/* SecurityException and such, waiters must not hang */
+			address = null;
+		}
+
+		synchronized (this) {
+			lookup.expireTime = clock.currentTimeMillis()
+					+ (address != null ? ttl : negativeTtl);
+		}
+
+		lookup.complete(address);
+	}
+
+	private void purgeExpired(long now) {
+		Iterator<Lookup> iter = lookups.values().iterator();
+
+		while (iter.hasNext()) {
+			Lookup lookup = iter.next();
+
+			if (lookup.isDone() && lookup.expireTime <= now)
+				iter.remove();
+		}
+	}
+
+	public synchronized long getLookupsStarted() {
+		return lookupsStarted;
+	}
+
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/* Stop resolver threads, pending lookups are left incomplete */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
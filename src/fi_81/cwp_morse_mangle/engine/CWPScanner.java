@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Frequency scanner. Sweeps frequency range with pool of parallel
+ * connections on CWPMultiEngine, each connection listening one frequency
+ * for dwell time. Activity is detected from received state changes and
+ * channels are ranked by state changes per second. Optionally connection
+ * locks on active channel and stays there decoding morse.
+ */
+public class CWPScanner implements Runnable {
+	/* Receives scanner events, called from scanner and engine threads */
+	public interface ScanListener {
+		/* Dwell on channel completed */
+		public abstract void channelScanned(Channel channel, int stateChanges);
+
+		/* Connection locked on active channel */
+		public abstract void channelLocked(Channel channel);
+
+		/* Received morse of locked channel updated */
+		public abstract void morseUpdates(Channel channel, String morse);
+	}
+
+	/* Activity statistics of one frequency */
+	public static class Channel {
+		private final long frequency;
+		private int dwells = 0;
+		private long dwellMillis = 0;
+		private long stateChanges = 0;
+		private boolean locked = false;
+
+		private Channel(long frequency) {
+			this.frequency = frequency;
+		}
+
+		public long getFrequency() {
+			return frequency;
+		}
+
+		public int getDwells() {
+			return dwells;
+		}
+
+		public long getStateChanges() {
+			return stateChanges;
+		}
+
+		public boolean isLocked() {
+			return locked;
+		}
+
+		/* Received state changes per second of listening */
+		public double getActivity() {
+			if (dwellMillis <= 0)
+				return 0.0;
+
+			return stateChanges * 1000.0 / dwellMillis;
+		}
+	}
+
+	/* Channels ordered by activity, most active first */
+	private static final Comparator<Channel> activityOrder = new Comparator<Channel>() {
+		public int compare(Channel a, Channel b) {
+			int cmp = Double.compare(b.getActivity(), a.getActivity());
+			if (cmp != 0)
+				return cmp;
+
+			return a.frequency < b.frequency ? -1
+					: (a.frequency > b.frequency ? 1 : 0);
+		}
+	};
+
+	/* One connection of scan pool */
+	private class Slot implements CWPEngineListener {
+		private CWPEngineControl control;
+		private boolean connected = false;
+		private Channel channel = null;
+		private long reportedFrequency = -1;
+		private long dwellStart = 0;
+		private boolean settled = false;
+		private int stateChanges = 0;
+		private boolean recvStateUp = false;
+
+		/* Commands decided under scanner monitor, given after releasing it */
+		private boolean switchPending = false;
+		private boolean clearPending = false;
+
+		public void connectionStateChange(int connState) {
+			synchronized (CWPScanner.this) {
+				connected = connState == CWPConnection.CONN_CONNECTED;
+
+				/* Restart dwell on reconnect */
+				if (!connected && channel != null && !channel.locked) {
+					channel = null;
+					dwellStart = 0;
+				}
+			}
+		}
+
+		public void connectionError(String reason) {
+		}
+
+		public void frequencyChange(long freq) {
+			synchronized (CWPScanner.this) {
+				reportedFrequency = freq;
+				recvStateUp = false;
+			}
+		}
+
+		public void stateChange(boolean recvStateUp, boolean sendStateUp) {
+			synchronized (CWPScanner.this) {
+				/* Count only changes received after frequency was switched */
+				if (channel != null
+						&& reportedFrequency == channel.frequency
+						&& this.recvStateUp != recvStateUp)
+					stateChanges++;
+
+				this.recvStateUp = recvStateUp;
+			}
+		}
+
+		public void morseUpdates(String morse) {
+			Channel locked;
+
+			synchronized (CWPScanner.this) {
+				locked = (channel != null && channel.locked) ? channel : null;
+			}
+
+			if (locked != null && listener != null && morse.length() > 0)
+				listener.morseUpdates(locked, morse);
+		}
+
+		public void morseMessageSendingState(boolean complete,
+				String sendMorse) {
+		}
+	}
+
+	private final CWPMultiEngine engine;
+	private final Slot[] slots;
+	private final ScanListener listener;
+
+	/* Scan setup */
+	private final long freqStart;
+	private final long freqEnd;
+	private final long freqStep;
+	private long dwellMillis = 1000;
+	private int lockThreshold = 0;
+	private int maxLocked = 1;
+
+	/* Scan state, guarded by scanner object */
+	private final HashMap<Long, Channel> channels = new HashMap<Long, Channel>();
+	private long nextFrequency;
+	private long channelsScanned = 0;
+	private int sweeps = 0;
+	private int numLocked = 0;
+	private long startTime = 0;
+
+	private volatile boolean isScannerKilled = false;
+
+	public CWPScanner(CWPMultiEngine engine, int poolSize, long freqStart,
+			long freqEnd, long freqStep, ScanListener listener) {
+		if (poolSize <= 0 || freqStep <= 0 || freqEnd < freqStart)
+			throw new IllegalArgumentException();
+
+		this.engine = engine;
+		this.listener = listener;
+		this.freqStart = freqStart;
+		this.freqEnd = freqEnd;
+		this.freqStep = freqStep;
+
+		nextFrequency = freqStart;
+		slots = new Slot[poolSize];
+		for (int i = 0; i < poolSize; i++)
+			slots[i] = new Slot();
+	}
+
+	/* Time to listen each channel */
+	public void setDwellTime(long dwellMillis) {
+		this.dwellMillis = Math.max(1, dwellMillis);
+	}
+
+	/*
+	 * Lock connection on channel with at least 'threshold' state changes in
+	 * one dwell, zero disables locking. At most 'maxLocked' connections are
+	 * locked, rest of pool continues scanning.
+	 */
+	public void setLockOn(int threshold, int maxLocked) {
+		this.lockThreshold = threshold;
+		this.maxLocked = Math.min(maxLocked, slots.length);
+	}
+
+	/** Connect scan pool to server, scanning starts when run */
+	public void connect(String hostName, int hostPort, int morseSpeed,
+			boolean useLatencyManagement) {
+		for (int i = 0; i < slots.length; i++) {
+			slots[i].control = engine.addConnection(slots[i]);
+			slots[i].control.setNewConfiguration(hostName, hostPort,
+					morseSpeed, useLatencyManagement);
+		}
+	}
+
+	/** Close scan pool connections */
+	public void disconnect() {
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i].control != null)
+				engine.removeConnection(slots[i].control);
+			slots[i].control = null;
+		}
+	}
+
+	private Channel getChannel(long frequency) {
+		Long key = Long.valueOf(frequency);
+		Channel channel = channels.get(key);
+
+		if (channel == null) {
+			channel = new Channel(frequency);
+			channels.put(key, channel);
+		}
+
+		return channel;
+	}
+
+	/* Next frequency of sweep not being listened by other connection */
+	private Channel nextChannel() {
+		long numChannels = (freqEnd - freqStart) / freqStep + 1;
+
+		for (long i = 0; i < numChannels; i++) {
+			Channel channel = getChannel(nextFrequency);
+
+			nextFrequency += freqStep;
+			if (nextFrequency > freqEnd) {
+				nextFrequency = freqStart;
+				sweeps++;
+			}
+
+			if (!isListened(channel))
+				return channel;
+		}
+
+		return null;
+	}
+
+	private boolean isListened(Channel channel) {
+		for (int i = 0; i < slots.length; i++)
+			if (slots[i].channel == channel)
+				return true;
+
+		return false;
+	}
+
+	/** Advance scan, returns time to next dwell deadline */
+	public long step(long now) {
+		CWPEngineControl[] controls = new CWPEngineControl[slots.length];
+		long[] frequencies = new long[slots.length];
+		boolean[] clears = new boolean[slots.length];
+		long timeToNext;
+
+		/*
+		 * Engine commands wait while command queue is full, and IO-thread
+		 * needs monitor to deliver events, so commands are not given while
+		 * holding it.
+		 */
+		synchronized (this) {
+			timeToNext = advance(now);
+
+			for (int i = 0; i < slots.length; i++) {
+				Slot slot = slots[i];
+
+				if (slot.switchPending) {
+					controls[i] = slot.control;
+					frequencies[i] = slot.channel.frequency;
+				}
+				if (slot.clearPending) {
+					controls[i] = slot.control;
+					clears[i] = true;
+				}
+
+				slot.switchPending = false;
+				slot.clearPending = false;
+			}
+		}
+
+		for (int i = 0; i < controls.length; i++) {
+			if (controls[i] == null)
+				continue;
+
+			if (clears[i])
+				controls[i].requestClearMessages();
+			else
+				controls[i].setFrequency(frequencies[i]);
+		}
+
+		return timeToNext;
+	}
+
+	private long advance(long now) {
+		long timeToNext = dwellMillis;
+
+		if (startTime == 0)
+			startTime = now;
+
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = slots[i];
+
+			if (!slot.connected || slot.control == null)
+				continue;
+			if (slot.channel != null && slot.channel.locked)
+				continue;
+
+			/* Dwell completed */
+			if (slot.channel != null) {
+				long elapsed = now - slot.dwellStart;
+				long settleMillis = dwellMillis / 4;
+
+				/*
+				 * Waves of previous channel still in flight after switch are
+				 * not counted, start counting once settle time has passed.
+				 */
+				if (!slot.settled) {
+					if (elapsed < settleMillis) {
+						timeToNext = Math.min(timeToNext, settleMillis
+								- elapsed);
+						continue;
+					}
+
+					slot.stateChanges = 0;
+					slot.settled = true;
+				}
+
+				if (elapsed < dwellMillis) {
+					timeToNext = Math.min(timeToNext, dwellMillis - elapsed);
+					continue;
+				}
+
+				completeDwell(slot, elapsed);
+				if (slot.channel != null)
+					continue;
+			}
+
+			/* Switch to next channel */
+			slot.channel = nextChannel();
+			if (slot.channel == null)
+				continue;
+
+			slot.dwellStart = now;
+			slot.settled = false;
+			slot.stateChanges = 0;
+			slot.switchPending = true;
+		}
+
+		return timeToNext;
+	}
+
+	private void completeDwell(Slot slot, long elapsed) {
+		Channel channel = slot.channel;
+
+		channel.dwells++;
+		channel.dwellMillis += elapsed;
+		channel.stateChanges += slot.stateChanges;
+		channelsScanned++;
+
+		if (listener != null)
+			listener.channelScanned(channel, slot.stateChanges);
+
+		/* Lock on active channel, keep listening and decoding it */
+		if (lockThreshold > 0 && slot.stateChanges >= lockThreshold
+				&& numLocked < maxLocked) {
+			channel.locked = true;
+			numLocked++;
+			slot.clearPending = true;
+
+			if (listener != null)
+				listener.channelLocked(channel);
+
+			return;
+		}
+
+		slot.channel = null;
+	}
+
+	/** Run scanner loop on current thread until shutdown() */
+	public void run() {
+		while (!isScannerKilled) {
+			long timeToNext = step(System.currentTimeMillis());
+
+			try {
+				Thread.sleep(Math.max(1, Math.min(timeToNext, 100)));
+			} catch (InterruptedException e) {
+				/* woke from sleep */
+			}
+		}
+	}
+
+	public void shutdown() {
+		isScannerKilled = true;
+	}
+
+	/* Channels ordered by activity, at most 'max' entries */
+	public synchronized List<Channel> getRanking(int max) {
+		ArrayList<Channel> ranking = new ArrayList<Channel>(channels.values());
+
+		Collections.sort(ranking, activityOrder);
+		if (ranking.size() > max)
+			return new ArrayList<Channel>(ranking.subList(0, max));
+
+		return ranking;
+	}
+
+	public synchronized long getChannelsScanned() {
+		return channelsScanned;
+	}
+
+	public synchronized int getSweeps() {
+		return sweeps;
+	}
+
+	public synchronized int getLockedCount() {
+		return numLocked;
+	}
+
+	/* Scan throughput, completed dwells per second */
+	public synchronized double getScanRate(long now) {
+		if (startTime == 0 || now <= startTime)
+			return 0.0;
+
+		return channelsScanned * 1000.0 / (now - startTime);
+	}
+}
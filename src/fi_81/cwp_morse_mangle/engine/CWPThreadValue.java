@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+/**
+ * Class for passing messages from other threads to IO-thread. Instances are
+ * preallocated slots of CWPCommandRing and are filled in place.
+ */
+class CWPThreadValue {
+	protected static final int TYPE_CONFIGURATION = 0;
+	protected static final int TYPE_STATE_CHANGE = 1;
+	protected static final int TYPE_FREQ_CHANGE = 2;
+	protected static final int TYPE_MORSE_MESSAGE = 3;
+	protected static final int TYPE_STATE_REQUEST = 4;
+	protected static final int TYPE_CLEAR_MESSAGES = 5;
+	protected static final int TYPE_ADD_CONNECTION = 6;
+	protected static final int TYPE_REMOVE_CONNECTION = 7;
+	protected static final int TYPE_OUTPUT_POLICY = 8;
+	protected static final int TYPE_DECODER_THREAD = 9;
+
+	protected int type;
+
+	/* Target connection id, used by CWPMultiEngine */
+	protected int target;
+
+	protected long argLong0;
+	protected int argInt0;
+	protected boolean argBool0;
+	protected Object argObj0;
+
+	/* Position of slot in CWPCommandRing, set when claimed */
+	protected long position;
+
+	protected void setConfiguration(String hostName, int hostPort,
+			int morseSpeed, boolean useLatencyManagement) {
+		type = TYPE_CONFIGURATION;
+		argObj0 = hostName;
+		argLong0 = hostPort;
+		argInt0 = morseSpeed;
+		argBool0 = useLatencyManagement;
+	}
+
+	protected void setStateChange(boolean isStateUp) {
+		setValues(TYPE_STATE_CHANGE, isStateUp ? 1 : 0, null);
+	}
+
+	protected void setFreqChange(long freq) {
+		setValues(TYPE_FREQ_CHANGE, freq, null);
+	}
+
+	protected void setMorseMessage(String morse) {
+		setValues(TYPE_MORSE_MESSAGE, 0, morse);
+	}
+
+	protected void setStateRequest() {
+		setValues(TYPE_STATE_REQUEST, 0, null);
+	}
+
+	protected void setClearMessages() {
+		setValues(TYPE_CLEAR_MESSAGES, 0, null);
+	}
+
+	protected void setOutputPolicy(int policy, long windowMillis) {
+		setValues(TYPE_OUTPUT_POLICY, windowMillis, null);
+		argInt0 = policy;
+	}
+
+	protected void setDecoderThread(boolean useDecoderThread) {
+		setValues(TYPE_DECODER_THREAD, 0, null);
+		argBool0 = useDecoderThread;
+	}
+
+	protected void setAddConnection(CWPConnection connection) {
+		setValues(TYPE_ADD_CONNECTION, 0, connection);
+	}
+
+	protected void setRemoveConnection() {
+		setValues(TYPE_REMOVE_CONNECTION, 0, null);
+	}
+
+	private void setValues(int type, long argLong0, Object argObj0) {
+		this.type = type;
+		this.argObj0 = argObj0;
+		this.argLong0 = argLong0;
+		this.argInt0 = 0;
+		this.argBool0 = false;
+	}
+
+	/** Drop references held by slot after command has been handled */
+	protected void clear() {
+		argObj0 = null;
+	}
+
+	/** Pass connection command to connection, on IO-thread */
+	protected void applyTo(CWPConnection connection) {
+		switch (type) {
+		case TYPE_CONFIGURATION:
+			connection.setConfiguration(getHostName(), getHostPort(),
+					getMorseSpeed(), getUseLatencyManagement());
+			break;
+		case TYPE_STATE_CHANGE:
+			connection.setSendingState(isStateUp());
+			break;
+		case TYPE_FREQ_CHANGE:
+			connection.setFrequency(getFrequency());
+			break;
+		case TYPE_MORSE_MESSAGE:
+			connection.sendMorseMessage(getMorseMessage());
+			break;
+		case TYPE_STATE_REQUEST:
+			connection.requestCurrentState();
+			break;
+		case TYPE_CLEAR_MESSAGES:
+			connection.clearMessages();
+			break;
+		case TYPE_OUTPUT_POLICY:
+			connection.setOutputPolicy(getOutputPolicy(),
+					getCoalesceWindow());
+			break;
+
+		case TYPE_DECODER_THREAD:
+			connection.setUseDecoderThread(getUseDecoderThread());
+			break;
+		}
+	}
+
+	/*
+	 * Values for TYPE_CONFIGURATION
+	 */
+	protected String getHostName() {
+		return (String) argObj0;
+	}
+
+	protected int getHostPort() {
+		return (int) argLong0;
+	}
+
+	protected int getMorseSpeed() {
+		return argInt0;
+	}
+
+	protected boolean getUseLatencyManagement() {
+		return argBool0;
+	}
+
+	/*
+	 * Values for TYPE_STATE_CHANGE
+	 */
+	protected boolean isStateUp() {
+		return argLong0 == 1;
+	}
+
+	/*
+	 * Values for TYPE_FREQUENCY_CHANGE
+	 */
+	protected long getFrequency() {
+		return argLong0;
+	}
+
+	/*
+	 * Values for TYPE_MORSE_MESSAGE
+	 */
+	protected String getMorseMessage() {
+		return (String) argObj0;
+	}
+
+	/*
+	 * Values for TYPE_OUTPUT_POLICY
+	 */
+	protected int getOutputPolicy() {
+		return argInt0;
+	}
+
+	protected long getCoalesceWindow() {
+		return argLong0;
+	}
+
+	/*
+	 * Values for TYPE_DECODER_THREAD
+	 */
+	protected boolean getUseDecoderThread() {
+		return argBool0;
+	}
+
+	/*
+	 * Values for TYPE_ADD_CONNECTION
+	 */
+	protected CWPConnection getConnection() {
+		return (CWPConnection) argObj0;
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.engine;
+
+import java.util.Arrays;
+
+/*
+ * Indexed binary min-heap of deadlines, one entry per integer id. Scheduling
+ * an id that is already in heap moves its entry, so each id has at most one
+ * pending deadline. All operations are O(log n), peek is O(1).
+ */
+public class CWPTimerHeap {
+	/* Heap array of ids, ordered by their deadline */
+	private int[] heap;
+	private int size;
+
+	/* Per-id deadline and position in heap, -1 when not scheduled */
+	private long[] deadlines;
+	private int[] positions;
+
+	public CWPTimerHeap() {
+		this(16);
+	}
+
+	public CWPTimerHeap(int initialCapacity) {
+		initialCapacity = Math.max(1, initialCapacity);
+
+		heap = new int[initialCapacity];
+		deadlines = new long[initialCapacity];
+		positions = new int[initialCapacity];
+		Arrays.fill(positions, -1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isScheduled(int id) {
+		return id < positions.length && positions[id] >= 0;
+	}
+
+	/* Set deadline for id, replacing earlier deadline */
+	public void schedule(int id, long deadline) {
+		ensureIdCapacity(id);
+
+		int pos = positions[id];
+		if (pos < 0) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			pos = size++;
+			heap[pos] = id;
+			positions[id] = pos;
+			deadlines[id] = deadline;
+			siftUp(pos);
+			return;
+		}
+
+		long oldDeadline = deadlines[id];
+		deadlines[id] = deadline;
+
+		if (deadline < oldDeadline)
+			siftUp(pos);
+		else if (deadline > oldDeadline)
+			siftDown(pos);
+	}
+
+	public void cancel(int id) {
+		if (!isScheduled(id))
+			return;
+
+		removeAt(positions[id]);
+	}
+
+	/* Earliest deadline, Long.MAX_VALUE if heap is empty */
+	public long peekDeadline() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+
+		return deadlines[heap[0]];
+	}
+
+	/* Remove and return id with earliest deadline if due, otherwise -1 */
+	public int pollDue(long now) {
+		if (size == 0 || deadlines[heap[0]] > now)
+			return -1;
+
+		int id = heap[0];
+		removeAt(0);
+		return id;
+	}
+
+	private void removeAt(int pos) {
+		int id = heap[pos];
+
+		positions[id] = -1;
+		size--;
+
+		if (pos == size)
+			return;
+
+		/* Move last entry to hole and restore heap order */
+		int last = heap[size];
+		heap[pos] = last;
+		positions[last] = pos;
+
+		siftDown(pos);
+		if (heap[pos] == last)
+			siftUp(pos);
+	}
+
+	private void siftUp(int pos) {
+		int id = heap[pos];
+		long deadline = deadlines[id];
+
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			int parentId = heap[parent];
+
+			if (deadlines[parentId] <= deadline)
+				break;
+
+			heap[pos] = parentId;
+			positions[parentId] = pos;
+			pos = parent;
+		}
+
+		heap[pos] = id;
+		positions[id] = pos;
+	}
+
+	private void siftDown(int pos) {
+		int id = heap[pos];
+		long deadline = deadlines[id];
+		int half = size >>> 1;
+
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+
+			if (right < size && deadlines[heap[right]] < deadlines[heap[child]])
+				child = right;
+
+			int childId = heap[child];
+			if (deadline <= deadlines[childId])
+				break;
+
+			heap[pos] = childId;
+			positions[childId] = pos;
+			pos = child;
+		}
+
+		heap[pos] = id;
+		positions[id] = pos;
+	}
+
+	private void ensureIdCapacity(int id) {
+		if (id < positions.length)
+			return;
+
+		int oldLength = positions.length;
+		int newLength = Math.max(id + 1, oldLength * 2);
+
+		deadlines = Arrays.copyOf(deadlines, newLength);
+		positions = Arrays.copyOf(positions, newLength);
+		Arrays.fill(positions, oldLength, newLength, -1);
+	}
+}
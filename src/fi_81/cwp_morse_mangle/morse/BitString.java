@@ -24,72 +24,121 @@
 package fi_81.cwp_morse_mangle.morse;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /*
  * Bit format string, originally implemented with BitSet as backing buffer, but as
  * it appeared to be too slow (profiling results on Motorola Defy+), reverted to String.
+ * 
+ * Now bits are packed to long[] words (bit 'i' is stored at word i / 64, at bit
+ * position i % 64) and append/compare/split are done with word operations. String
+ * presentation of bits is only created when needed through CharSequence
+ * interface and then cached.
+ * 
+ * BitString is immutable, so substring() and split() return views (offset and
+ * length) to shared backing words instead of copying bits. Bits outside of
+ * view might be anything, so all operations mask by offset and length.
  */
 public class BitString implements Comparable<BitString>, CharSequence {
+	private static final int WORD_SHIFT = 6;
+	private static final int WORD_BITS = 1 << WORD_SHIFT;
+
+	private final long[] words;
+	private final int offset;
+	private final int length;
+
+	/* Lazily created '0'/'1' string presentation of bits */
 	private String bits;
 
-	/* Format input to BitString */
-	private static String makeBits(CharSequence chars) {
-		int i, len;
+	private static int numWords(int numBits) {
+		return (numBits + WORD_BITS - 1) >>> WORD_SHIFT;
+	}
 
-		/* Check if can accept input as is */
-		for (i = 0, len = chars.length(); i < len; i++) {
-			char ch = chars.charAt(i);
-			if (ch != '0' && ch != '1')
-				break;
-		}
+	/* Get 64 bits starting at bit position 'pos', bits past array are zero */
+	private static long extractWord(long[] src, int pos) {
+		int idx = pos >>> WORD_SHIFT;
+		int shift = pos & (WORD_BITS - 1);
+		long word;
 
-		if (i == len) {
-			/* Already in correct bit-format */
-			return chars.toString();
-		}
+		if (idx >= src.length)
+			return 0;
 
-		StringBuffer sb = localStringBuffer.get();
-		sb.setLength(0);
+		word = src[idx] >>> shift;
+		if (shift != 0 && idx + 1 < src.length)
+			word |= src[idx + 1] << (WORD_BITS - shift);
+
+		return word;
+	}
+
+	/* OR 'len' bits from 'src' (at 'srcPos') in to 'dst' at 'dstPos' */
+	private static void orBits(long[] dst, int dstPos, long[] src, int srcPos,
+			int len) {
+		while (len > 0) {
+			int n = len < WORD_BITS ? len : WORD_BITS;
+			int idx = dstPos >>> WORD_SHIFT;
+			int shift = dstPos & (WORD_BITS - 1);
+			long word = extractWord(src, srcPos);
+
+			if (n < WORD_BITS)
+				word &= (1L << n) - 1;
+
+			dst[idx] |= word << shift;
+			if (shift != 0 && idx + 1 < dst.length)
+				dst[idx + 1] |= word >>> (WORD_BITS - shift);
+
+			dstPos += n;
+			srcPos += n;
+			len -= n;
+		}
+	}
 
-		sb.append(chars, 0, i);
+	/* Format input to packed bits */
+	private static long[] makeBits(CharSequence chars) {
+		int len = chars.length();
+		long[] words = new long[numWords(len)];
 
-		for (; i < len; i++) {
-			char ch = chars.charAt(i);
-			sb.append(ch == '1' ? '1' : '0');
+		for (int i = 0; i < len; i++) {
+			if (chars.charAt(i) == '1')
+				words[i >>> WORD_SHIFT] |= 1L << i;
 		}
 
-		return sb.toString();
+		return words;
 	}
 
 	/* Internal constructor for buffer that already is in bit-format */
-	private BitString(String str, boolean alreadyBits) {
-		if (alreadyBits)
-			bits = str;
-		else
-			this.bits = makeBits(str);
+	private BitString(long[] words, int offset, int length) {
+		this.words = words;
+		this.offset = offset;
+		this.length = length;
 	}
 
 	/* Public constructor */
 	public BitString(CharSequence chars) {
-		this.bits = makeBits(chars);
+		this.words = makeBits(chars);
+		this.offset = 0;
+		this.length = chars.length();
 	}
 
 	/* Empty constructor */
 	public BitString() {
-		this.bits = "";
+		this.words = emptyWords;
+		this.offset = 0;
+		this.length = 0;
 	}
 
 	/*
 	 * Helper builders
 	 */
 	public static BitString newFilled(char oneOrZero, int numChars) {
-		StringBuffer sb = localStringBuffer.get();
-		sb.setLength(0);
+		long[] words = new long[numWords(numChars)];
 
-		for (int i = 0; i < numChars; i++)
-			sb.append(oneOrZero);
+		if (oneOrZero == '1') {
+			for (int i = 0; i < words.length; i++)
+				words[i] = -1L;
+		}
 
-		return new BitString(sb.toString(), true);
+		return new BitString(words, 0, numChars);
 	}
 
 	public static BitString newZeros(int numZeros) {
@@ -101,32 +150,132 @@ public class BitString implements Comparable<BitString>, CharSequence {
 	}
 
 	public static BitString newBits(String onesAndZeros) {
-		return new BitString(onesAndZeros, true);
+		return new BitString(onesAndZeros);
+	}
+
+	/* Get bit at index */
+	public boolean getBit(int index) {
+		if (index < 0 || index >= length)
+			throw new StringIndexOutOfBoundsException(index);
+
+		index += offset;
+
+		return ((words[index >>> WORD_SHIFT] >>> index) & 1) != 0;
 	}
 
 	public char charAt(int index) {
-		return bits.charAt(index);
+		return getBit(index) ? '1' : '0';
 	}
 
 	public int length() {
-		return bits.length();
+		return length;
 	}
 
 	public CharSequence subSequence(int start, int end) {
-		return bits.subSequence(start, end);
+		return substring(start, end);
 	}
 
+	/* Compare as '0'/'1' strings would be compared by String.compareTo() */
 	public int compareTo(BitString another) {
-		return bits.compareTo(another.bits);
+		return compareTo(0, length, another);
+	}
+
+	/* Compare range [start, end) of this to another BitString */
+	public int compareTo(int start, int end, BitString another) {
+		int rangeLength = end - start;
+		int minLength = rangeLength < another.length ? rangeLength
+				: another.length;
+
+		for (int i = 0; i < minLength; i += WORD_BITS) {
+			long diff = extractWord(words, offset + start + i)
+					^ extractWord(another.words, another.offset + i);
+
+			if (minLength - i < WORD_BITS)
+				diff &= (1L << (minLength - i)) - 1;
+
+			if (diff == 0)
+				continue;
+
+			return getBit(start + i + Long.numberOfTrailingZeros(diff)) ? 1
+					: -1;
+		}
+
+		return rangeLength - another.length;
 	}
 
 	@Override
 	public String toString() {
-		return bits;
+		String str = bits;
+
+		if (str == null) {
+			char[] chars = new char[length];
+
+			for (int i = 0, pos = offset; i < length; i++, pos++)
+				chars[i] = ((words[pos >>> WORD_SHIFT] >>> pos) & 1) != 0 ? '1'
+						: '0';
+
+			str = new String(chars);
+			bits = str;
+		}
+
+		return str;
 	}
 
+	/*
+	 * Get substring as view to same backing words. Note that view keeps whole
+	 * backing buffer of original string alive.
+	 */
 	public BitString substring(int start, int end) {
-		return new BitString(bits.substring(start, end), true);
+		if (start < 0 || end > length || start > end)
+			throw new StringIndexOutOfBoundsException();
+
+		if (start == 0 && end == length)
+			return this;
+
+		return new BitString(words, offset + start, end - start);
+	}
+
+	/*
+	 * Package internal helpers for building BitStrings directly from packed
+	 * words (bit 'i' at words[i / 64], bit position i % 64).
+	 */
+	static BitString wrapWords(long[] words, int length) {
+		return new BitString(words, 0, length);
+	}
+
+	/* OR up to 64 'bits' to 'words' at bit position 'pos' */
+	static void putBits(long[] words, int pos, long bits, int numBits) {
+		int idx = pos >>> WORD_SHIFT;
+		int shift = pos & (WORD_BITS - 1);
+
+		if (numBits < WORD_BITS)
+			bits &= (1L << numBits) - 1;
+
+		words[idx] |= bits << shift;
+		if (shift != 0 && shift + numBits > WORD_BITS)
+			words[idx + 1] |= bits >>> (WORD_BITS - shift);
+	}
+
+	/* Get up to 64 bits starting from 'start' packed in long */
+	long getBits(int start, int numBits) {
+		long word = extractWord(words, offset + start);
+
+		if (numBits < WORD_BITS)
+			word &= (1L << numBits) - 1;
+
+		return word;
+	}
+
+	/* Get copy of bits with own backing buffer */
+	public BitString compact() {
+		if (offset == 0 && words.length == numWords(length))
+			return this;
+
+		long[] newWords = new long[numWords(length)];
+
+		orBits(newWords, 0, words, offset, length);
+
+		return new BitString(newWords, 0, length);
 	}
 
 	/* Check if object is same as this. */
@@ -140,64 +289,212 @@ public class BitString implements Comparable<BitString>, CharSequence {
 
 		BitString obs = (BitString) o;
 
-		return (bits == null ? obs.bits == null : bits.equals(obs.bits));
+		if (length != obs.length)
+			return false;
+
+		return regionMatches(0, obs, 0, length);
+	}
+
+	@Override
+	public int hashCode() {
+		long hash = length;
+
+		for (int i = 0; i < length; i += WORD_BITS) {
+			long word = extractWord(words, offset + i);
+
+			if (length - i < WORD_BITS)
+				word &= (1L << (length - i)) - 1;
+
+			hash = hash * 31 + word;
+		}
+
+		return (int) (hash ^ (hash >>> 32));
 	}
 
 	/** Append another BitString at end of this and return resulting BitString */
 	public BitString append(BitString endBits) {
-		StringBuffer sb = localStringBuffer.get();
-		sb.setLength(0);
+		if (endBits.length == 0)
+			return this;
+		if (length == 0)
+			return endBits;
 
-		sb.append(bits);
-		sb.append(endBits.bits);
+		int newLength = length + endBits.length;
+		long[] newWords = new long[numWords(newLength)];
 
-		return new BitString(sb.toString(), true);
+		orBits(newWords, 0, words, offset, length);
+		orBits(newWords, length, endBits.words, endBits.offset,
+				endBits.length);
+
+		return new BitString(newWords, 0, newLength);
 	}
 
-	public BitString[] split(BitString splitString) {
-		/* Emulate String.split() as closely as possible */
-		int stringLength = bits.length();
-		int splitStringLength = splitString.bits.length();
+	/* Check if 'len' bits at 'pos' match with bits of 'other' at 'otherPos' */
+	private boolean regionMatches(int pos, BitString other, int otherPos,
+			int len) {
+		pos += offset;
+		otherPos += other.offset;
+
+		while (len > 0) {
+			long diff = extractWord(words, pos)
+					^ extractWord(other.words, otherPos);
+
+			if (len < WORD_BITS) {
+				diff &= (1L << len) - 1;
+				len = 0;
+			} else {
+				len -= WORD_BITS;
+			}
+
+			if (diff != 0)
+				return false;
+
+			pos += WORD_BITS;
+			otherPos += WORD_BITS;
+		}
+
+		return true;
+	}
+
+	/* Find first set (value == true) or clear bit in range [from, to) */
+	private int nextBit(int from, int to, boolean value) {
+		if (from < 0)
+			from = 0;
+		if (from >= to)
+			return -1;
+
+		int pos = offset + from;
+		int end = offset + to;
+		int idx = pos >>> WORD_SHIFT;
+		long word = (value ? words[idx] : ~words[idx]) & (-1L << pos);
+
+		while (true) {
+			if (word != 0) {
+				pos = (idx << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+
+				return pos < end ? pos - offset : -1;
+			}
 
+			if (++idx >= words.length || (idx << WORD_SHIFT) >= end)
+				return -1;
+
+			word = value ? words[idx] : ~words[idx];
+		}
+	}
+
+	/* Find last set (value == true) or clear bit in range [to, from] */
+	private int previousBit(int from, int to, boolean value) {
+		if (from >= length)
+			from = length - 1;
+		if (from < to)
+			return -1;
+
+		int pos = offset + from;
+		int end = offset + to;
+		int idx = pos >>> WORD_SHIFT;
+		long word = (value ? words[idx] : ~words[idx])
+				& (-1L >>> (WORD_BITS - 1 - (pos & (WORD_BITS - 1))));
+
+		while (true) {
+			if (word != 0) {
+				pos = (idx << WORD_SHIFT) + WORD_BITS - 1
+						- Long.numberOfLeadingZeros(word);
+
+				return pos >= end ? pos - offset : -1;
+			}
+
+			if (--idx < 0 || ((idx + 1) << WORD_SHIFT) <= end)
+				return -1;
+
+			word = value ? words[idx] : ~words[idx];
+		}
+	}
+
+	/* Index of first '1' at or after 'from', -1 if none */
+	public int nextSetBit(int from) {
+		return nextBit(from, length, true);
+	}
+
+	/* Index of first '0' at or after 'from', -1 if none */
+	public int nextClearBit(int from) {
+		return nextBit(from, length, false);
+	}
+
+	/* Index of last '1' at or before 'from', -1 if none */
+	public int previousSetBit(int from) {
+		return previousBit(from, 0, true);
+	}
+
+	/* Find index of 'str' at or after position 'from', -1 if not found */
+	public int indexOf(BitString str, int from) {
+		return indexOf(str, from, length);
+	}
+
+	/* Find index of 'str' within range [from, to), -1 if not found */
+	public int indexOf(BitString str, int from, int to) {
+		int strLength = str.length;
+		int last = to - strLength;
+
+		if (from < 0)
+			from = 0;
+
+		if (strLength == 0)
+			return from < to ? from : -1;
+
+		boolean first = str.getBit(0);
+
+		while (from <= last) {
+			/* Skip quickly to next candidate position with word scan */
+			from = nextBit(from, last + 1, first);
+			if (from < 0)
+				return -1;
+
+			if (regionMatches(from, str, 0, strLength))
+				return from;
+
+			from++;
+		}
+
+		return -1;
+	}
+
+	/* Get iterator for split views, emulating split() */
+	public SplitIterator splitIterator(BitString splitString) {
+		return new SplitIterator().reset(this, splitString);
+	}
+
+	public BitString[] split(BitString splitString) {
 		/*
 		 * Empty string gives array with one cell, and that cell is empty
 		 * string.
 		 */
-		if (stringLength == 0) {
+		if (length == 0) {
 			BitString array[] = new BitString[1];
 			array[0] = this;
 			return array;
 		}
 
 		ArrayList<BitString> list = localArrayList.get();
-		int idx = 0, prev = 0;
+		SplitIterator iter = localSplitIterator.get();
 
 		list.clear();
 
 		/* Iterate through all split strings and copy to array */
-		while ((idx = bits.indexOf(splitString.bits, idx)) >= 0) {
-			list.add(new BitString(bits.substring(prev, idx), true));
-
-			if (splitStringLength > 0)
-				idx += splitStringLength;
-			else
-				idx++; /* Avoid endless loop */
-
-			prev = idx;
-		}
-
-		/* Finally, copy the last split string */
-		idx = stringLength;
-		list.add(new BitString(bits.substring(prev, idx), true));
+		iter.reset(this, splitString);
+		while (iter.hasNext())
+			list.add(iter.next());
 
 		BitString splits[] = list.toArray(emptyArray);
 		list.clear();
+		iter.reset(null, null);
 
 		return splits;
 	}
 
 	public boolean endWith(BitString suffix) {
-		return bits.endsWith(suffix.bits);
+		if (suffix.length > length)
+			return false;
+
+		return regionMatches(length - suffix.length, suffix, 0, suffix.length);
 	}
 
 	/* Helper for handling endWith for StringBuffer */
@@ -212,21 +509,111 @@ public class BitString implements Comparable<BitString>, CharSequence {
 		return stringBuf.lastIndexOf(suffix.toString(), bufferLen - suffixLen) != -1;
 	}
 
-	/* Cached empty object to avoid allocation in split() */
+	/*
+	 * Iterator over split() pieces of BitString. Pieces can be either read as
+	 * views with next() or, without any allocations, as ranges of source
+	 * BitString with nextRange() + getStart()/getEnd(). Iterator can be reused
+	 * with reset().
+	 * 
+	 * Emulates String.split() as closely as possible, except trailing empty
+	 * pieces are kept.
+	 */
+	public static class SplitIterator implements Iterator<BitString> {
+		private BitString string;
+		private BitString splitString;
+		private int pos;
+		private int limit;
+		private int start;
+		private int end;
+		private boolean done;
+
+		public SplitIterator() {
+			done = true;
+		}
+
+		public SplitIterator reset(BitString string, BitString splitString) {
+			return reset(string, splitString, 0,
+					string != null ? string.length : 0);
+		}
+
+		/* Split only range [from, to) of string */
+		public SplitIterator reset(BitString string, BitString splitString,
+				int from, int to) {
+			this.string = string;
+			this.splitString = splitString;
+			this.pos = from;
+			this.limit = to;
+			this.start = from;
+			this.end = from;
+			this.done = (string == null);
+
+			return this;
+		}
+
+		/* Move to next piece, return false if no more pieces */
+		public boolean nextRange() {
+			if (done)
+				return false;
+
+			int idx = string.indexOf(splitString, pos, limit);
+
+			start = pos;
+
+			if (idx < 0) {
+				/* Last piece */
+				end = limit;
+				done = true;
+				return true;
+			}
+
+			end = idx;
+			pos = idx + (splitString.length > 0 ? splitString.length : 1);
+
+			return true;
+		}
+
+		/* Start index of current piece in source string */
+		public int getStart() {
+			return start;
+		}
+
+		/* End index (exclusive) of current piece in source string */
+		public int getEnd() {
+			return end;
+		}
+
+		public boolean hasNext() {
+			return !done;
+		}
+
+		public BitString next() {
+			if (!nextRange())
+				throw new NoSuchElementException();
+
+			return string.substring(start, end);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/* Cached empty objects to avoid allocation */
+	private final static long[] emptyWords = new long[0];
 	private final static BitString[] emptyArray = new BitString[0];
 
 	/* Cached thread-local objects to reduce memory allocations by BitString */
-	private final static ThreadLocal<StringBuffer> localStringBuffer = new ThreadLocal<StringBuffer>() {
+	private final static ThreadLocal<ArrayList<BitString>> localArrayList = new ThreadLocal<ArrayList<BitString>>() {
 		@Override
-		protected StringBuffer initialValue() {
-			return new StringBuffer();
+		protected ArrayList<BitString> initialValue() {
+			return new ArrayList<BitString>();
 		}
 	};
 
-	private final static ThreadLocal<ArrayList<BitString>> localArrayList = new ThreadLocal<ArrayList<BitString>>() {
+	private final static ThreadLocal<SplitIterator> localSplitIterator = new ThreadLocal<SplitIterator>() {
 		@Override
-		protected ArrayList<BitString> initialValue() {
-			return new ArrayList<BitString>();
+		protected SplitIterator initialValue() {
+			return new SplitIterator();
 		}
 	};
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.morse;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Bulk encoding and decoding of large amounts of messages with pool of worker
+ * threads. Input is split to chunks that are processed in parallel, results
+ * are passed back in same order as input. Each worker thread uses its own
+ * scratch state (thread-local, as the single message codec does), so workers
+ * do not share any mutable state.
+ */
+public class MorseBatchCodec {
+	/* Callback for ordered results of stream processing */
+	public interface ResultNotification<T> {
+		public abstract void result(int index, T result);
+	}
+
+	/* Default number of messages processed as one work item */
+	private static final int DEFAULT_CHUNK_SIZE = 256;
+
+	private final ExecutorService executor;
+	private final int numWorkers;
+	private final int chunkSize;
+
+	public MorseBatchCodec(int numWorkers, int chunkSize) {
+		if (numWorkers < 1)
+			numWorkers = 1;
+		if (chunkSize < 1)
+			chunkSize = 1;
+
+		this.numWorkers = numWorkers;
+		this.chunkSize = chunkSize;
+		this.executor = Executors.newFixedThreadPool(numWorkers);
+	}
+
+	public MorseBatchCodec(int numWorkers) {
+		this(numWorkers, DEFAULT_CHUNK_SIZE);
+	}
+
+	/* One worker per available processor */
+	public MorseBatchCodec() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/* Stop worker threads */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/* Encode array of messages to morse code */
+	public BitString[] encodeAll(CharSequence[] messages) {
+		BitString[] results = new BitString[messages.length];
+
+		runChunks(new EncodeChunk(messages, results), messages.length);
+
+		return results;
+	}
+
+	/* Decode array of morse codes to messages */
+	public String[] decodeAll(BitString[] morse) {
+		String[] results = new String[morse.length];
+
+		runChunks(new DecodeChunk(morse, results), morse.length);
+
+		return results;
+	}
+
+	/*
+	 * Encode stream of messages, results are passed to 'notify' in input
+	 * order. Only limited number of chunks are kept in flight at once.
+	 */
+	public int encodeAll(Iterator<? extends CharSequence> messages,
+			ResultNotification<BitString> notify) {
+		return processStream(messages, notify, true);
+	}
+
+	/*
+	 * Decode stream of morse codes, results are passed to 'notify' in input
+	 * order. Only limited number of chunks are kept in flight at once.
+	 */
+	public int decodeAll(Iterator<BitString> morse,
+			ResultNotification<String> notify) {
+		return processStream(morse, notify, false);
+	}
+
+	/* Work item for processing range [start, end) of input array */
+	private static abstract class Chunk implements Callable<Void> {
+		protected int start;
+		protected int end;
+
+		protected abstract Chunk copy(int start, int end);
+
+		public Void call() {
+			for (int i = start; i < end; i++)
+				process(i);
+
+			return null;
+		}
+
+		protected abstract void process(int i);
+	}
+
+	private static class EncodeChunk extends Chunk {
+		private final CharSequence[] input;
+		private final Object[] output;
+
+		private EncodeChunk(CharSequence[] input, Object[] output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		protected Chunk copy(int start, int end) {
+			EncodeChunk chunk = new EncodeChunk(input, output);
+
+			chunk.start = start;
+			chunk.end = end;
+
+			return chunk;
+		}
+
+		@Override
+		protected void process(int i) {
+			output[i] = MorseCodec.encodeMessageToMorse(input[i]);
+		}
+	}
+
+	private static class DecodeChunk extends Chunk {
+		private final BitString[] input;
+		private final Object[] output;
+
+		private DecodeChunk(BitString[] input, Object[] output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		protected Chunk copy(int start, int end) {
+			DecodeChunk chunk = new DecodeChunk(input, output);
+
+			chunk.start = start;
+			chunk.end = end;
+
+			return chunk;
+		}
+
+		@Override
+		protected void process(int i) {
+			/* Per-worker output buffer */
+			StringBuffer sb = localStringBuffer.get();
+
+			sb.setLength(0);
+			MorseCodec.decodeMorseToMessage(input[i], sb);
+			output[i] = sb.toString();
+		}
+	}
+
+	/* Split array work to chunks and wait all to complete */
+	private void runChunks(Chunk work, int length) {
+		ArrayDeque<Future<Void>> futures = new ArrayDeque<Future<Void>>();
+
+		/* Split to at least one chunk per worker */
+		int size = (length + numWorkers - 1) / numWorkers;
+		if (size > chunkSize)
+			size = chunkSize;
+		if (size < 1)
+			size = 1;
+
+		for (int start = 0; start < length; start += size) {
+			int end = start + size < length ? start + size : length;
+
+			futures.add(executor.submit(work.copy(start, end)));
+		}
+
+		while (!futures.isEmpty())
+			waitFuture(futures.remove());
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> int processStream(Iterator<?> input,
+			ResultNotification<T> notify, boolean encode) {
+		ArrayDeque<Future<Void>> futures = new ArrayDeque<Future<Void>>();
+		ArrayDeque<Object[]> outputs = new ArrayDeque<Object[]>();
+		int maxInFlight = numWorkers * 2;
+		int index = 0;
+
+		while (input.hasNext() || !futures.isEmpty()) {
+			/* Fill pipeline */
+			while (input.hasNext() && futures.size() < maxInFlight) {
+				Chunk chunk;
+				int n = 0;
+
+				if (encode) {
+					CharSequence[] in = new CharSequence[chunkSize];
+
+					while (n < chunkSize && input.hasNext())
+						in[n++] = (CharSequence) input.next();
+
+					chunk = new EncodeChunk(in, new Object[n]);
+					outputs.add(((EncodeChunk) chunk).output);
+				} else {
+					BitString[] in = new BitString[chunkSize];
+
+					while (n < chunkSize && input.hasNext())
+						in[n++] = (BitString) input.next();
+
+					chunk = new DecodeChunk(in, new Object[n]);
+					outputs.add(((DecodeChunk) chunk).output);
+				}
+
+				chunk.start = 0;
+				chunk.end = n;
+				futures.add(executor.submit(chunk));
+			}
+
+			/* Pass oldest chunk forward in order */
+			waitFuture(futures.remove());
+
+			for (Object result : outputs.remove())
+				notify.result(index++, (T) result);
+		}
+
+		return index;
+	}
+
+	private static void waitFuture(Future<Void> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/* Cached thread-local objects, scratch state for each worker thread */
+	private final static ThreadLocal<StringBuffer> localStringBuffer = new ThreadLocal<StringBuffer>() {
+		@Override
+		protected StringBuffer initialValue() {
+			return new StringBuffer();
+		}
+	};
+}
@@ -32,9 +32,41 @@ public class MorseCharList {
 	public static final char SPECIAL_SOS = 'X';
 	public static final char SPECIAL_STOP_MESSAGE = '©';
 
+	/* Node handles for walking compiled decode trie */
+	public static final int TRIE_ROOT = 0;
+	public static final int TRIE_NONE = -1;
+
+	/* Cached empty code, must be initialized before fillInMorseCharacters() */
+	private final static BitString emptyCode = new BitString();
+
 	private final static MorseChar characters[] = fillInMorseCharacters();
 	private static char allowedMorseChars[];
 
+	/*
+	 * Compiled decode trie. Node 'n' has dit child at trieNodes[n * 2] and dah
+	 * child at trieNodes[n * 2 + 1] (TRIE_NONE if no child) and decoded
+	 * character at trieChars[n] ('\0' if no character ends at node).
+	 */
+	private static int trieNodes[];
+	private static char trieChars[];
+	private static int trieNodeCount;
+
+	/*
+	 * Encode tables. Characters in Latin-1 range index directly to slot
+	 * 0..255, other characters are binary searched from encodeExtraChars and
+	 * use slot 256 + index.
+	 * 
+	 * encodeCodes[] packs code bits and code length in to one long, see
+	 * morseCodeBits() and morseCodeLength(). Zero means no code.
+	 */
+	private static final int ENCODE_DENSE_SIZE = 256;
+	private static final int CODE_LENGTH_BITS = 6;
+	private static final int CODE_MAX_LENGTH = Long.SIZE - CODE_LENGTH_BITS;
+
+	private static char encodeExtraChars[];
+	private static long encodeCodes[];
+	private static BitString encodeStrings[];
+
 	/*
 	 * Longest length of morse code (excluding out internal
 	 * SPECIAL_STOP_MESSAGE)
@@ -145,14 +177,14 @@ public class MorseCharList {
 			offset += dataStrings[i].length();
 		}
 
-		String gatheredCodesString = gatheredCodes.toString();
+		BitString gatheredCodesBits = new BitString(gatheredCodes);
 
 		longestMorseBits = 0;
 		for (int i = 0, len = codeOffsets.length; i < len; i++) {
 			int nextOffset = (i + 1 < len) ? codeOffsets[i + 1] : gatheredCodes
 					.length();
-			BitString bs = BitString.newBits(gatheredCodesString.substring(
-					codeOffsets[i], nextOffset));
+			BitString bs = gatheredCodesBits.substring(codeOffsets[i],
+					nextOffset);
 			char ch = dataStrings[i * 2 + 1].charAt(0);
 
 			chars[i] = new MorseChar(bs, ch);
@@ -172,9 +204,90 @@ public class MorseCharList {
 		Arrays.sort(chars);
 		Arrays.sort(allowedMorseChars);
 
+		buildDecodeTrie(chars, gatheredCodes.length());
+		buildEncodeTables(chars);
+
 		return chars;
 	}
 
+	/* Compile morse codes to dit/dah trie for allocation free decoding */
+	private static void buildDecodeTrie(MorseChar chars[], int totalBits) {
+		/* Each code symbol takes at least two bits, '1' and separating '0' */
+		int maxNodes = 1 + (totalBits + 1) / 2;
+		int numNodes = 1;
+
+		trieNodes = new int[maxNodes * 2];
+		trieChars = new char[maxNodes];
+		Arrays.fill(trieNodes, TRIE_NONE);
+
+		for (MorseChar morseChar : chars) {
+			BitString code = morseChar.getMorseString();
+			int node = TRIE_ROOT;
+			int pos = 0, len = code.length();
+
+			while (pos < len) {
+				int runEnd = code.nextClearBit(pos);
+				if (runEnd < 0)
+					runEnd = len;
+
+				int child = node * 2 + (runEnd - pos == 1 ? 0 : 1);
+				if (trieNodes[child] == TRIE_NONE)
+					trieNodes[child] = numNodes++;
+
+				node = trieNodes[child];
+				pos = runEnd + 1;
+			}
+
+			trieChars[node] = morseChar.getCharacter();
+		}
+
+		trieNodeCount = numNodes;
+	}
+
+	/* Build character indexed encode tables */
+	private static void buildEncodeTables(MorseChar chars[]) {
+		StringBuffer extra = new StringBuffer();
+
+		for (MorseChar morseChar : chars) {
+			if (morseChar.getCharacter() >= ENCODE_DENSE_SIZE)
+				extra.append(morseChar.getCharacter());
+		}
+
+		encodeExtraChars = extra.toString().toCharArray();
+		Arrays.sort(encodeExtraChars);
+
+		encodeCodes = new long[ENCODE_DENSE_SIZE + encodeExtraChars.length];
+		encodeStrings = new BitString[encodeCodes.length];
+		Arrays.fill(encodeStrings, emptyCode);
+
+		for (MorseChar morseChar : chars) {
+			BitString code = morseChar.getMorseString();
+			int slot = encodeSlot(morseChar.getCharacter());
+			int len = code.length();
+
+			if (len > CODE_MAX_LENGTH)
+				throw new IllegalStateException(
+						"Morse code too long for encode table: " + morseChar);
+
+			encodeCodes[slot] = (code.getBits(0, len) << CODE_LENGTH_BITS)
+					| len;
+
+			encodeStrings[slot] = code;
+		}
+	}
+
+	/* Get index to encode tables for character, -1 if not in tables */
+	private static int encodeSlot(char ch) {
+		if (ch < ENCODE_DENSE_SIZE)
+			return ch;
+
+		int index = Arrays.binarySearch(encodeExtraChars, ch);
+		if (index < 0)
+			return -1;
+
+		return ENCODE_DENSE_SIZE + index;
+	}
+
 	public static char[] getAllowedCharacters() {
 		return allowedMorseChars;
 	}
@@ -184,22 +297,102 @@ public class MorseCharList {
 	 * code. Return zero if not found.
 	 */
 	public static char morseBitsToCharacter(BitString bits) {
-		/* Binary search from sorted list */
-		int index = Arrays.binarySearch(characters,
-				MorseChar.createSearchCode(bits));
+		return morseBitsToCharacter(bits, 0, bits.length());
+	}
 
-		if (index < 0)
+	/*
+	 * Search morse code in range [start, end) of 'bits'. Walks decode trie,
+	 * O(code length) and no allocations.
+	 */
+	public static char morseBitsToCharacter(BitString bits, int start, int end) {
+		int node = TRIE_ROOT;
+		int pos = start;
+
+		/* Empty code */
+		if (pos >= end)
+			return 'Z';
+
+		while (true) {
+			/* Each symbol is run of '1's, either dit (1) or dah (111) */
+			int runEnd = bits.nextClearBit(pos);
+			if (runEnd < 0 || runEnd > end)
+				runEnd = end;
+
+			int runLength = runEnd - pos;
+			if (runLength == 1)
+				node = nextTrieNode(node, false);
+			else if (runLength == 3)
+				node = nextTrieNode(node, true);
+			else
+				return 'Z';
+
+			if (runEnd == end)
+				break;
+
+			/* Symbols are separated by single '0' */
+			pos = runEnd + 1;
+			if (pos >= end || !bits.getBit(pos))
+				return 'Z';
+		}
+
+		return trieNodeToCharacter(node);
+	}
+
+	/*
+	 * Step decode trie by one symbol (dit or dah). Streaming decoders can start
+	 * from TRIE_ROOT and resolve character with trieNodeToCharacter() when
+	 * character gap is received. Returns TRIE_NONE if there is no such code.
+	 */
+	public static int nextTrieNode(int node, boolean isDah) {
+		if (node == TRIE_NONE)
+			return TRIE_NONE;
+
+		return trieNodes[node * 2 + (isDah ? 1 : 0)];
+	}
+
+	/* Number of nodes in decode trie, nodes are numbered from TRIE_ROOT */
+	public static int getTrieNodeCount() {
+		return trieNodeCount;
+	}
+
+	/* Get character for trie node, 'Z' if no character ends at node */
+	public static char trieNodeToCharacter(int node) {
+		if (node == TRIE_NONE || trieChars[node] == '\0')
 			return 'Z'; /* 'Z' reserved for "unknown" */
-		else
-			return characters[index].getCharacter();
+
+		return trieChars[node];
 	}
 
-	/* Search character from the list and return morse signal for this character */
+	/* Get morse signal for character, empty BitString if not found */
 	public static BitString characterToMorseString(char ch) {
-		for (MorseChar morse_char : characters)
-			if (morse_char.getCharacter() == ch)
-				return morse_char.getMorseString();
+		int slot = encodeSlot(ch);
+
+		if (slot < 0)
+			return emptyCode;
+
+		return encodeStrings[slot];
+	}
+
+	/*
+	 * Get morse code for character packed with its length in to single long,
+	 * zero if not found. Unpack with morseCodeBits() and morseCodeLength().
+	 */
+	public static long characterToMorseCode(char ch) {
+		int slot = encodeSlot(ch);
+
+		if (slot < 0)
+			return 0;
+
+		return encodeCodes[slot];
+	}
+
+	/* Code bits of packed code, first bit of code at lowest bit */
+	public static long morseCodeBits(long packedCode) {
+		return packedCode >>> CODE_LENGTH_BITS;
+	}
 
-		return new BitString();
+	/* Length of packed code in bits */
+	public static int morseCodeLength(long packedCode) {
+		return (int) (packedCode & ((1 << CODE_LENGTH_BITS) - 1));
 	}
 }
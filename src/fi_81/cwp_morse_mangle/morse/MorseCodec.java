@@ -42,10 +42,13 @@ public class MorseCodec {
 
 	/* Message string to morse code */
 	public static BitString encodeMessageToMorse(CharSequence message) {
-		StringBuffer output = new StringBuffer();
 		boolean addCharStop = false;
 		boolean addWordStop = false;
 		int i, len = message.length();
+		int pos = 0;
+
+		/* Packed output bits, initial guess of ~16 bits per character */
+		long words[] = new long[len / 4 + 1];
 
 		for (i = 0; i < len; i++) {
 			char cur_char = message.charAt(i);
@@ -64,75 +67,96 @@ public class MorseCodec {
 				continue;
 			}
 
-			BitString morse = MorseCharList.characterToMorseString(cur_char);
-			if (morse.length() == 0)
+			/* Table lookup, code bits and length packed together */
+			long code = MorseCharList.characterToMorseCode(cur_char);
+			int codeLength = MorseCharList.morseCodeLength(code);
+			if (codeLength == 0)
 				continue;
 
 			/*
 			 * add character-stop or word-stop between previous and current
-			 * character
+			 * character (zero bits, only move position)
 			 */
 			if (addCharStop) {
-				output.append(charStop);
+				pos += charStop.length();
 				addCharStop = false;
 			}
 			if (addWordStop) {
-				output.append(wordStop);
+				pos += wordStop.length();
 				addWordStop = false;
 			}
 
-			output.append(morse);
+			/* Grow output buffer if needed */
+			if (((pos + codeLength) >>> 6) >= words.length)
+				words = Arrays.copyOf(words, words.length * 2);
+
+			BitString.putBits(words, pos, MorseCharList.morseCodeBits(code),
+					codeLength);
+			pos += codeLength;
 			addCharStop = true;
 		}
 
-		return BitString.newBits(output.toString());
+		/* Trim buffer to final length */
+		int numWords = (pos + 63) >>> 6;
+		if (numWords < words.length)
+			words = Arrays.copyOf(words, numWords);
+
+		return BitString.wrapWords(words, pos);
 	}
 
 	public static BitString trimMorseString(BitString morse) {
-		int i, start = -1, end = -1, len = morse.length();
-
 		/* Find first and last non-zero signal */
-		for (i = 0; i < len; i++) {
-			if (start == -1 && morse.charAt(i) == '1')
-				start = i;
-
-			if (end == -1 && morse.charAt(len - (i + 1)) == '1')
-				end = len - (i + 1);
-
-			/* stop if both ends have been found */
-			if (end != -1 && start != -1)
-				break;
-		}
+		int start = morse.nextSetBit(0);
+		int end = morse.previousSetBit(morse.length() - 1);
 
 		/* empty morse message */
-		if (end == -1 && start == -1)
+		if (start == -1)
 			return new BitString();
 
-		/* nothing to trim? */
-		if (start == 0 && end == len - 1)
-			return morse;
-
+		/* nothing to trim? (substring returns 'morse' as is) */
 		return morse.substring(start, end + 1);
 	}
 
 	/* Decode morse to message */
 	public static String decodeMorseToMessage(BitString morse) {
 		StringBuffer output = new StringBuffer();
+
+		decodeMorseToMessage(morse, output);
+
+		return output.toString();
+	}
+
+	/* Decode morse and append message to caller provided buffer */
+	public static void decodeMorseToMessage(BitString morse,
+			StringBuffer output) {
 		boolean first_word = true;
 
+		/*
+		 * Split and trim with index ranges to original BitString, so that
+		 * decoding does not allocate intermediate BitStrings.
+		 */
+		BitString.SplitIterator morse_words = localWordIterator.get();
+		BitString.SplitIterator morse_chars = localCharIterator.get();
+
 		/* trim leading/trailing spaces */
-		morse = trimMorseString(morse);
+		int start = morse.nextSetBit(0);
+		int end = morse.previousSetBit(morse.length() - 1) + 1;
+
+		/* empty morse message */
+		if (start < 0)
+			return;
 
 		/* Split morse message by "0000000"-word separators */
-		BitString morse_words[] = morse.split(wordStop);
+		morse_words.reset(morse, wordStop, start, end);
 
-		for (BitString morse_word : morse_words) {
+		while (morse_words.nextRange()) {
 			/*
 			 * Trim leading/trailing spaces. This is here to protect from
 			 * invalid morse code from untested/buggy clients.
 			 */
-			morse_word = trimMorseString(morse_word);
-			if (morse_word.length() == 0)
+			int wordStart = morse.nextSetBit(morse_words.getStart());
+			int wordEnd = morse.previousSetBit(morse_words.getEnd() - 1) + 1;
+			if (wordStart < 0 || wordStart >= wordEnd)
 				continue;
 
 			/* add space between words */
@@ -142,20 +166,26 @@ public class MorseCodec {
 			first_word = false;
 
 			/* Split morse word by "000"-word separators */
-			BitString morse_chars[] = morse_word.split(charStop);
+			morse_chars.reset(morse, charStop, wordStart, wordEnd);
 
-			for (BitString morse_char : morse_chars) {
+			while (morse_chars.nextRange()) {
 				/*
 				 * Trim leading/trailing spaces. This is here to protect from
 				 * invalid morse code from untested/buggy clients.
 				 */
-				morse_char = trimMorseString(morse_char);
+				int charStart = morse.nextSetBit(morse_chars.getStart());
+				int charEnd = morse.previousSetBit(morse_chars.getEnd() - 1) + 1;
+				if (charStart < 0 || charStart >= charEnd)
+					charStart = charEnd = morse_chars.getStart();
 
-				output.append(MorseCharList.morseBitsToCharacter(morse_char));
+				output.append(MorseCharList.morseBitsToCharacter(morse,
+						charStart, charEnd));
 			}
 		}
 
-		return output.toString();
+		/* Release reference to input */
+		morse_words.reset(null, null);
+		morse_chars.reset(null, null);
 	}
 
 	/* Check if character allowed for _input_ */
@@ -166,4 +196,19 @@ public class MorseCodec {
 
 		return Arrays.binarySearch(MorseCharList.getAllowedCharacters(), ch) >= 0;
 	}
+
+	/* Cached thread-local objects to reduce memory allocations */
+	private final static ThreadLocal<BitString.SplitIterator> localWordIterator = new ThreadLocal<BitString.SplitIterator>() {
+		@Override
+		protected BitString.SplitIterator initialValue() {
+			return new BitString.SplitIterator();
+		}
+	};
+
+	private final static ThreadLocal<BitString.SplitIterator> localCharIterator = new ThreadLocal<BitString.SplitIterator>() {
+		@Override
+		protected BitString.SplitIterator initialValue() {
+			return new BitString.SplitIterator();
+		}
+	};
 }
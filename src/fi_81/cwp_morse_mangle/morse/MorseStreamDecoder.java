@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.morse;
+
+/*
+ * Push-based incremental morse decoder. Input is fed as bits or as runs of
+ * ones/zeros and each character is passed to notification as soon as its
+ * character gap (000) is received, and space when word gap (0000000) is
+ * received. Only constant amount of state is kept, decoding walks
+ * MorseCharList decode trie one dit/dah at time.
+ * 
+ * Output matches MorseCodec.decodeMorseToMessage() for same bits, except
+ * that word gap at end of input gives trailing space (which batch decoder
+ * trims away).
+ */
+public class MorseStreamDecoder {
+	/* Callback for decoded characters */
+	public interface DecoderNotification {
+		public abstract void morseCharacter(char ch);
+	}
+
+	/* Gap lengths (in bits) for character and word separators */
+	private static final int CHAR_STOP_BITS = 3;
+	private static final int WORD_STOP_BITS = 7;
+
+	private final DecoderNotification notify;
+
+	/* Current position in decode trie and state of current character */
+	private int trieNode;
+	private boolean inCharacter;
+	private boolean invalidCharacter;
+
+	/* Characters decoded in current word */
+	private int wordCharacters;
+
+	/* Length of current run of ones or zeros */
+	private int oneRun;
+	private int zeroRun;
+
+	public MorseStreamDecoder(DecoderNotification notify) {
+		this.notify = notify;
+
+		reset();
+	}
+
+	/* Drop all pending state */
+	public void reset() {
+		trieNode = MorseCharList.TRIE_ROOT;
+		inCharacter = false;
+		invalidCharacter = false;
+		wordCharacters = 0;
+		oneRun = 0;
+		zeroRun = 0;
+	}
+
+	/* Check if partially received character is pending */
+	public boolean hasPendingCharacter() {
+		return inCharacter || oneRun > 0;
+	}
+
+	/* Push all bits of BitString */
+	public void pushBits(BitString bits) {
+		pushBits(bits, 0, bits.length());
+	}
+
+	/* Push bits in range [start, end) of BitString, run by run */
+	public void pushBits(BitString bits, int start, int end) {
+		int pos = start;
+
+		while (pos < end) {
+			boolean isOne = bits.getBit(pos);
+			int runEnd = isOne ? bits.nextClearBit(pos) : bits.nextSetBit(pos);
+
+			if (runEnd < 0 || runEnd > end)
+				runEnd = end;
+
+			pushRun(isOne, runEnd - pos);
+			pos = runEnd;
+		}
+	}
+
+	/* Push single bit */
+	public void pushBit(boolean isOne) {
+		pushRun(isOne, 1);
+	}
+
+	/* Push run of 'length' ones or zeros */
+	public void pushRun(boolean isOne, int length) {
+		if (length <= 0)
+			return;
+
+		if (isOne) {
+			if (zeroRun > 0)
+				endZeroRun();
+
+			oneRun += length;
+			return;
+		}
+
+		if (oneRun > 0)
+			endOneRun();
+
+		/* Nothing to do for leading zeros */
+		if (!inCharacter && wordCharacters == 0) {
+			zeroRun = 0;
+			return;
+		}
+
+		int oldZeroRun = zeroRun;
+
+		zeroRun += length;
+		if (zeroRun < 0)
+			zeroRun = Integer.MAX_VALUE; /* overflow */
+
+		/* Character gap received, character is complete */
+		if (oldZeroRun < CHAR_STOP_BITS && zeroRun >= CHAR_STOP_BITS
+				&& inCharacter)
+			endCharacter();
+
+		/* Word gap received */
+		if (oldZeroRun < WORD_STOP_BITS && zeroRun >= WORD_STOP_BITS
+				&& wordCharacters > 0) {
+			wordCharacters = 0;
+			notify.morseCharacter(' ');
+		}
+	}
+
+	/* End of input, pass pending character forward and reset state */
+	public void flush() {
+		if (oneRun > 0)
+			endOneRun();
+
+		if (inCharacter)
+			endCharacter();
+
+		reset();
+	}
+
+	/* Run of ones ended, walk trie by dit or dah */
+	private void endOneRun() {
+		if (oneRun == 1)
+			trieNode = MorseCharList.nextTrieNode(trieNode, false);
+		else if (oneRun == 3)
+			trieNode = MorseCharList.nextTrieNode(trieNode, true);
+		else
+			invalidCharacter = true;
+
+		inCharacter = true;
+		oneRun = 0;
+	}
+
+	/* Run of zeros ended by one */
+	private void endZeroRun() {
+		/* Two zeros inside character is invalid */
+		if (zeroRun == 2 && inCharacter)
+			invalidCharacter = true;
+
+		/*
+		 * Six zeros inside word contain two character gaps with empty
+		 * character between them, which decodes as unknown.
+		 */
+		if (zeroRun == 2 * CHAR_STOP_BITS && wordCharacters > 0)
+			notify.morseCharacter('Z');
+
+		zeroRun = 0;
+	}
+
+	private void endCharacter() {
+		char ch;
+
+		if (invalidCharacter)
+			ch = 'Z'; /* 'Z' reserved for "unknown" */
+		else
+			ch = MorseCharList.trieNodeToCharacter(trieNode);
+
+		trieNode = MorseCharList.TRIE_ROOT;
+		inCharacter = false;
+		invalidCharacter = false;
+		wordCharacters++;
+
+		notify.morseCharacter(ch);
+	}
+}
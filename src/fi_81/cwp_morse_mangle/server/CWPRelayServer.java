@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import fi_81.cwp_morse_mangle.cwp.CWClock;
+import fi_81.cwp_morse_mangle.cwp.CWMonotonicClock;
+import fi_81.cwp_morse_mangle.cwp.CWStateChange;
+
+/*
+ * CWP relay server on NIO selector. Clients speak same wire format as
+ * CWInput/CWOutput: in down state 4-byte up-timestamp or negated frequency,
+ * in up state 2-byte duration. Clients are subscribed to frequency (1 on
+ * connect) and state changes of senders are fanned out to all other
+ * subscribers of same frequency, with timestamps rewritten to connection time
+ * of each receiver. Concurrent senders are merged, receiver sees channel up
+ * while any other sender is up.
+ */
+public class CWPRelayServer implements Runnable {
+	public static final int DEFAULT_PORT = 20000;
+
+	private static final int IN_BUFFER_SIZE = 1024;
+	private static final int OUT_BUFFER_SIZE = 8192;
+
+	/* Subscribers and active senders of one frequency */
+	private static class Channel {
+		private final long frequency;
+		private final ArrayList<Client> subscribers = new ArrayList<Client>();
+		private final ArrayList<Client> upSenders = new ArrayList<Client>();
+
+		private Channel(long frequency) {
+			this.frequency = frequency;
+		}
+	}
+
+	private static class Client {
+		private final SocketChannel socket;
+		private SelectionKey key;
+		private final long connStartTime;
+		private final ByteBuffer inBuf = ByteBuffer.allocate(IN_BUFFER_SIZE);
+		private final ByteBuffer outBuf = ByteBuffer
+				.allocate(OUT_BUFFER_SIZE);
+		private Channel channel;
+
+		/* Sending side, parsed from client stream */
+		private boolean sendingUp = false;
+		private long upStartTime;
+
+		/* Receiving side, state of stream written to client */
+		private boolean recvStateUp = false;
+		private int recvUpTimestamp = 0;
+		private int recvLastTimestamp = 0;
+
+		/* Output buffered since, for latency statistics */
+		private long pendingSinceNanos = 0;
+		private boolean flushQueued = false;
+		private boolean dropping = false;
+		private boolean closed = false;
+
+		private Client(SocketChannel socket, long connStartTime) {
+			this.socket = socket;
+			this.connStartTime = connStartTime;
+			outBuf.flip();
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final CWClock clock = new CWMonotonicClock();
+	private final HashMap<Long, Channel> channels = new HashMap<Long, Channel>();
+	private final ArrayList<Client> flushQueue = new ArrayList<Client>();
+	private final ArrayList<Client> dropQueue = new ArrayList<Client>();
+	private final CWStateChange outState = new CWStateChange();
+	private volatile boolean isServerKilled = false;
+	private boolean echoToSender = false;
+
+	/* Time of current input event, for latency statistics */
+	private long eventNanos;
+
+	/* Statistics, written only by server thread */
+	private volatile int clients = 0;
+	private volatile int peakClients = 0;
+	private volatile long eventsIn = 0;
+	private volatile long messagesOut = 0;
+	private volatile long bytesOut = 0;
+	private volatile long writes = 0;
+	private volatile long droppedClients = 0;
+	private volatile long latencySamples = 0;
+	private volatile long latencySumNanos = 0;
+	private volatile long latencyMaxNanos = 0;
+
+	public CWPRelayServer(InetSocketAddress address) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, 1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/* Server on loopback, port 0 selects free port */
+	public CWPRelayServer(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getByName(null), port));
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/* Also send state changes back to sender itself */
+	public void setEchoToSender(boolean echo) {
+		echoToSender = echo;
+	}
+
+	/** Run server loop on current thread until shutdown() */
+	public void run() {
+		while (!isServerKilled) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				break;
+			}
+
+			Iterator<SelectionKey> keyIter = selector.selectedKeys()
+					.iterator();
+
+			while (keyIter.hasNext()) {
+				SelectionKey key = keyIter.next();
+				keyIter.remove();
+
+				if (!key.isValid())
+					continue;
+
+				if (key.isAcceptable()) {
+					acceptClients();
+					continue;
+				}
+
+				Client client = (Client) key.attachment();
+
+				if (key.isReadable())
+					readClient(client);
+				if (!client.closed && key.isValid() && key.isWritable())
+					flushClient(client);
+			}
+
+			/* Slow receivers are dropped outside of fan-out loops */
+			for (int i = 0; i < dropQueue.size(); i++)
+				closeClient(dropQueue.get(i));
+			dropQueue.clear();
+
+			/* Write out all fanned out data once per loop */
+			for (int i = 0; i < flushQueue.size(); i++) {
+				Client client = flushQueue.get(i);
+
+				client.flushQueued = false;
+				if (!client.closed)
+					flushClient(client);
+			}
+			flushQueue.clear();
+		}
+
+		/*
+		 * Server has been shut down, do clean up
+		 */
+
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public void shutdown() {
+		isServerKilled = true;
+		selector.wakeup();
+	}
+
+	private void acceptClients() {
+		SocketChannel socket;
+
+		try {
+			while ((socket = serverChannel.accept()) != null) {
+				Client client = new Client(socket, clock.currentTimeMillis());
+
+				socket.configureBlocking(false);
+				socket.socket().setTcpNoDelay(true);
+				client.key = socket.register(selector, SelectionKey.OP_READ,
+						client);
+
+				joinChannel(client, 1);
+
+				clients++;
+				if (clients > peakClients)
+					peakClients = clients;
+			}
+		} catch (IOException e) {
+			/* Failed accept, client will retry */
+		}
+	}
+
+	private void readClient(Client client) {
+		int bytes;
+
+		try {
+			bytes = client.socket.read(client.inBuf);
+		} catch (IOException e) {
+			bytes = -1;
+		}
+
+		if (bytes < 0) {
+			closeClient(client);
+			return;
+		}
+
+		eventNanos = System.nanoTime();
+
+		ByteBuffer inBuf = client.inBuf;
+		inBuf.flip();
+
+		while (!client.closed) {
+			if (!client.sendingUp) {
+				if (inBuf.remaining() < 4)
+					break;
+
+				int value = inBuf.getInt();
+
+				eventsIn++;
+				if (value < 0) {
+					/* Negative value means frequency-change */
+					changeFrequency(client, -(long) value);
+				} else {
+					client.sendingUp = true;
+					client.upStartTime = client.connStartTime + value;
+
+					client.channel.upSenders.add(client);
+					updateChannel(client.channel, client.upStartTime);
+				}
+			} else {
+				if (inBuf.remaining() < 2)
+					break;
+
+				/* Unsigned 16bit duration */
+				int duration = inBuf.getShort() & 0xffff;
+
+				eventsIn++;
+				senderDown(client, client.upStartTime + duration);
+			}
+		}
+
+		inBuf.compact();
+	}
+
+	private void senderDown(Client client, long endTime) {
+		client.sendingUp = false;
+
+		client.channel.upSenders.remove(client);
+		updateChannel(client.channel, endTime);
+	}
+
+	/* Pass change of channel state to subscribers whose view changed */
+	private void updateChannel(Channel channel, long time) {
+		ArrayList<Client> subscribers = channel.subscribers;
+
+		for (int i = 0; i < subscribers.size(); i++) {
+			Client receiver = subscribers.get(i);
+			boolean visibleUp = isVisibleUp(channel, receiver);
+
+			if (visibleUp == receiver.recvStateUp)
+				continue;
+
+			if (visibleUp)
+				sendUp(receiver, time);
+			else
+				sendDown(receiver, time);
+		}
+	}
+
+	private boolean isVisibleUp(Channel channel, Client receiver) {
+		int upSenders = channel.upSenders.size();
+
+		/* Receiver does not see its own signal */
+		if (!echoToSender && receiver.sendingUp)
+			upSenders--;
+
+		return upSenders > 0;
+	}
+
+	private void changeFrequency(Client client, long frequency) {
+		long now = clock.currentTimeMillis();
+
+		/* Frequency change is sent only in down state */
+		Channel channel = client.channel;
+		channel.subscribers.remove(client);
+		if (client.recvStateUp)
+			sendDown(client, now);
+
+		if (channel.subscribers.isEmpty())
+			channels.remove(Long.valueOf(channel.frequency));
+
+		/* Acknowledge frequency change to client */
+		outState.setValues(CWStateChange.TYPE_FREQUENCY_CHANGE,
+				(int) -frequency, 0);
+		writeState(client);
+
+		joinChannel(client, frequency);
+		if (isVisibleUp(client.channel, client))
+			sendUp(client, now);
+	}
+
+	private void joinChannel(Client client, long frequency) {
+		Long key = Long.valueOf(frequency);
+		Channel channel = channels.get(key);
+
+		if (channel == null) {
+			channel = new Channel(frequency);
+			channels.put(key, channel);
+		}
+
+		channel.subscribers.add(client);
+		client.channel = channel;
+	}
+
+	private void sendUp(Client receiver, long time) {
+		long timestamp = time - receiver.connStartTime;
+
+		/* Timestamps of receiver stream must not go backwards */
+		if (timestamp < receiver.recvLastTimestamp)
+			timestamp = receiver.recvLastTimestamp;
+		if (timestamp > Integer.MAX_VALUE)
+			timestamp = Integer.MAX_VALUE;
+
+		receiver.recvStateUp = true;
+		receiver.recvUpTimestamp = (int) timestamp;
+
+		outState.setValues(CWStateChange.TYPE_DOWN_TO_UP, (int) timestamp, 0);
+		writeState(receiver);
+	}
+
+	private void sendDown(Client receiver, long time) {
+		long duration = time - receiver.connStartTime
+				- receiver.recvUpTimestamp;
+
+		if (duration < 0)
+			duration = 0;
+		else if (duration > 0xffff)
+			duration = 0xffff;
+
+		receiver.recvStateUp = false;
+		receiver.recvLastTimestamp = receiver.recvUpTimestamp
+				+ (int) duration;
+
+		outState.setValues(CWStateChange.TYPE_UP_TO_DOWN, (int) duration, 0);
+		writeState(receiver);
+	}
+
+	/* Append outState to output of client, flushed at end of loop */
+	private void writeState(Client client) {
+		ByteBuffer outBuf = client.outBuf;
+
+		if (client.closed || client.dropping)
+			return;
+
+		/* Switch to write mode */
+		outBuf.compact();
+		boolean fits = outState.writeToBuffer(outBuf);
+		outBuf.flip();
+
+		if (!fits) {
+			/* Receiver does not keep up, drop it */
+			droppedClients++;
+			client.dropping = true;
+			dropQueue.add(client);
+			return;
+		}
+
+		messagesOut++;
+
+		if (client.pendingSinceNanos == 0)
+			client.pendingSinceNanos = eventNanos;
+
+		if (!client.flushQueued) {
+			client.flushQueued = true;
+			flushQueue.add(client);
+		}
+	}
+
+	private void flushClient(Client client) {
+		ByteBuffer outBuf = client.outBuf;
+		int bytes;
+
+		if (outBuf.remaining() > 0) {
+			try {
+				bytes = client.socket.write(outBuf);
+			} catch (IOException e) {
+				closeClient(client);
+				return;
+			}
+
+			writes++;
+			bytesOut += bytes;
+		}
+
+		if (outBuf.remaining() > 0) {
+			/* Socket buffer full, continue when writable */
+			client.key.interestOps(SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE);
+			return;
+		}
+
+		client.key.interestOps(SelectionKey.OP_READ);
+
+		if (client.pendingSinceNanos != 0) {
+			long latency = System.nanoTime() - client.pendingSinceNanos;
+
+			latencySamples++;
+			latencySumNanos += latency;
+			if (latency > latencyMaxNanos)
+				latencyMaxNanos = latency;
+
+			client.pendingSinceNanos = 0;
+		}
+	}
+
+	private void closeClient(Client client) {
+		if (client.closed)
+			return;
+
+		client.closed = true;
+		clients--;
+
+		/* End signal of disconnected sender */
+		if (client.sendingUp)
+			senderDown(client, clock.currentTimeMillis());
+
+		Channel channel = client.channel;
+		channel.subscribers.remove(client);
+		if (channel.subscribers.isEmpty())
+			channels.remove(Long.valueOf(channel.frequency));
+
+		client.key.cancel();
+		try {
+			client.socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public int getClientCount() {
+		return clients;
+	}
+
+	public int getPeakClientCount() {
+		return peakClients;
+	}
+
+	/* State changes and frequency changes received from clients */
+	public long getEventsIn() {
+		return eventsIn;
+	}
+
+	/* State changes and frequency changes fanned out to clients */
+	public long getMessagesOut() {
+		return messagesOut;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getWrites() {
+		return writes;
+	}
+
+	public long getDroppedClients() {
+		return droppedClients;
+	}
+
+	/* Average time from reading event to writing it out, in microseconds */
+	public double getAverageLatencyMicros() {
+		long samples = latencySamples;
+
+		return samples > 0 ? latencySumNanos / 1000.0 / samples : 0.0;
+	}
+
+	public double getMaxLatencyMicros() {
+		return latencyMaxNanos / 1000.0;
+	}
+
+	/*
+	 * Usage: CWPRelayServer [-e] [port]
+	 * 
+	 * Runs relay server and prints fan-out statistics every 5 seconds. With
+	 * -e, state changes are echoed also back to sender.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		int port = DEFAULT_PORT;
+		boolean echo = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-e"))
+				echo = true;
+			else
+				port = Integer.parseInt(args[i]);
+		}
+
+		CWPRelayServer server = new CWPRelayServer(new InetSocketAddress(port));
+		Thread thread = new Thread(server, "CWPRelayServer");
+
+		server.setEchoToSender(echo);
+		thread.start();
+
+		System.out.println("CWP relay server on port " + server.getPort());
+
+		long lastTime = System.currentTimeMillis();
+		long lastEvents = 0, lastMessages = 0;
+
+		while (thread.isAlive()) {
+			Thread.sleep(5000);
+
+			long now = System.currentTimeMillis();
+			long events = server.getEventsIn();
+			long messages = server.getMessagesOut();
+			double seconds = (now - lastTime) / 1000.0;
+
+			System.out.println(String.format("%d clients (peak %d), "
+					+ "%.0f events/s in, %.0f messages/s out, latency avg "
+					+ "%.1f us max %.1f us, %d dropped",
+					server.getClientCount(), server.getPeakClientCount(),
+					(events - lastEvents) / seconds, (messages - lastMessages)
+							/ seconds, server.getAverageLatencyMicros(),
+					server.getMaxLatencyMicros(), server.getDroppedClients()));
+
+			lastTime = now;
+			lastEvents = events;
+			lastMessages = messages;
+		}
+	}
+}
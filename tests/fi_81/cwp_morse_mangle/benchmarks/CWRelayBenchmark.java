@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.benchmarks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import fi_81.cwp_morse_mangle.server.CWPRelayServer;
+
+/*
+ * Fans out keying of one sender to many receivers through local relay
+ * server. Receivers are drained by single selector thread. Prints relayed
+ * messages per second and latency measured by server.
+ * 
+ * Usage: CWRelayBenchmark [numReceivers] [seconds]
+ */
+public class CWRelayBenchmark {
+	private static volatile boolean running = true;
+	private static volatile long bytesReceived = 0;
+
+	private static Thread startDrain(final Selector selector) {
+		Thread thread = new Thread("drain") {
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+
+				try {
+					while (running) {
+						selector.select(100);
+
+						Iterator<SelectionKey> iter = selector.selectedKeys()
+								.iterator();
+						while (iter.hasNext()) {
+							SelectionKey key = iter.next();
+							iter.remove();
+
+							buf.clear();
+							int bytes = ((SocketChannel) key.channel())
+									.read(buf);
+							if (bytes < 0)
+								key.cancel();
+							else
+								bytesReceived += bytes;
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		thread.start();
+		return thread;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numReceivers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		CWPRelayServer server = new CWPRelayServer(0);
+		Thread serverThread = new Thread(server, "CWPRelayServer");
+		InetSocketAddress addr = new InetSocketAddress(
+				InetAddress.getByName(null), server.getPort());
+		Selector selector = Selector.open();
+		SocketChannel[] receivers = new SocketChannel[numReceivers];
+
+		serverThread.start();
+
+		for (int i = 0; i < numReceivers; i++) {
+			receivers[i] = SocketChannel.open(addr);
+			receivers[i].configureBlocking(false);
+			receivers[i].register(selector, SelectionKey.OP_READ);
+		}
+
+		Thread drainThread = startDrain(selector);
+
+		while (server.getClientCount() < numReceivers)
+			Thread.sleep(10);
+
+		Socket sender = new Socket(addr.getAddress(), addr.getPort());
+		sender.setTcpNoDelay(true);
+		DataOutputStream out = new DataOutputStream(sender.getOutputStream());
+
+		long start = System.currentTimeMillis();
+		long end = start + seconds * 1000L;
+		int pulses = 0;
+
+		/* One short pulse per millisecond of connection time */
+		while (System.currentTimeMillis() < end) {
+			int timestamp = (int) (System.currentTimeMillis() - start);
+
+			out.writeInt(timestamp);
+			out.writeShort(1);
+			out.flush();
+			pulses++;
+
+			Thread.sleep(1);
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+
+		sender.close();
+		server.shutdown();
+		serverThread.join();
+		running = false;
+		drainThread.join();
+
+		for (int i = 0; i < numReceivers; i++)
+			receivers[i].close();
+		selector.close();
+
+		System.out.println("receivers:        " + numReceivers);
+		System.out.println("pulses sent:      " + pulses);
+		System.out.println("messages relayed: " + server.getMessagesOut());
+		System.out.println("messages/s:       "
+				+ (server.getMessagesOut() * 1000 / elapsed));
+		System.out.println("bytes received:   " + bytesReceived);
+		System.out.println("writes:           " + server.getWrites());
+		System.out.println("dropped clients:  " + server.getDroppedClients());
+		System.out.println("avg latency (us): "
+				+ (long) server.getAverageLatencyMicros());
+		System.out.println("max latency (us): "
+				+ server.getMaxLatencyMicros());
+	}
+}
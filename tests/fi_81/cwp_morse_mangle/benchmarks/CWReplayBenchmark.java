@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.benchmarks;
+
+import java.nio.ByteBuffer;
+
+import fi_81.cwp_morse_mangle.cwp.CWInput;
+import fi_81.cwp_morse_mangle.cwp.CWInput.CWInputNotification;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+import fi_81.cwp_morse_mangle.cwp.CWOutput.CWOutputNotification;
+import fi_81.cwp_morse_mangle.cwp.CWStateChangeQueueFromMorseCode;
+import fi_81.cwp_morse_mangle.cwp.CWVirtualClock;
+import fi_81.cwp_morse_mangle.morse.BitString;
+
+/*
+ * Replays messages through full CWOutput -> CWInput stack on virtual clock.
+ * Time advances straight to next scheduled work, so replay runs without
+ * sleeping. Prints simulated on-air time against wall time used.
+ * 
+ * Usage: CWReplayBenchmark [numMessages] [signalWidth]
+ */
+public class CWReplayBenchmark {
+	private static final String MESSAGE = "cq cq cq de oh2 test test k";
+
+	private static long replay(CWVirtualClock clock, int[] bitCount) {
+		CWOutput cwo = new CWOutput(clock.currentTimeMillis());
+		CWInput cwi = new CWInput(10000, clock.currentTimeMillis());
+		CWOutputNotification notifyOut = new CWOutput.NotificationNone();
+		final int[] bits = bitCount;
+		CWInputNotification notifyIn = new CWInput.NotificationNone() {
+			public void morseMessage(BitString morseBits) {
+				bits[0] += morseBits.length();
+			}
+		};
+		long start = clock.currentTimeMillis();
+
+		cwo.setClock(clock);
+		cwi.setClock(clock);
+		cwo.sendMorseMessage(MESSAGE);
+
+		ByteBuffer outBuf = cwo.getOutputBuffer();
+		ByteBuffer inBuf = cwi.getInBuffer();
+
+		while (true) {
+			cwo.processOutput(notifyOut);
+			while (outBuf.hasRemaining() && inBuf.hasRemaining())
+				inBuf.put(outBuf.get());
+			cwi.processInput(notifyIn);
+
+			long next = Math.min(cwo.timeToNextWork(), cwi.timeToNextWork());
+			if (next == Long.MAX_VALUE && cwo.queueSize() == 0
+					&& !outBuf.hasRemaining())
+				break;
+
+			clock.advance(Math.max(1, Math.min(next, 1000)));
+		}
+		cwi.flushStaleMorseBits(notifyIn, true);
+
+		return clock.currentTimeMillis() - start;
+	}
+
+	public static void main(String[] args) {
+		int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		CWVirtualClock clock = new CWVirtualClock(0);
+		int[] bitCount = new int[1];
+		long virtualTime = 0;
+
+		CWStateChangeQueueFromMorseCode.setSignalWidth(width);
+
+		/* Warm up */
+		for (int i = 0; i < numMessages / 10; i++)
+			replay(clock, bitCount);
+
+		bitCount[0] = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < numMessages; i++)
+			virtualTime += replay(clock, bitCount);
+
+		long wallNanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%d messages, signal width %d, "
+				+ "%d morse bits received", numMessages, width, bitCount[0]));
+		System.out.println(String.format("virtual time %.1f s, wall time "
+				+ "%.3f s, %.0fx real time", virtualTime / 1000.0,
+				wallNanos / 1e9, virtualTime * 1e6 / wallNanos));
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.benchmarks;
+
+import java.util.Random;
+
+import fi_81.cwp_morse_mangle.cwp.CWInputQueue;
+import fi_81.cwp_morse_mangle.cwp.CWaveDecoder;
+import fi_81.cwp_morse_mangle.cwp.CWaveQueueToMorseCode;
+import fi_81.cwp_morse_mangle.cwp.CWaveQueueViterbiDecoder;
+import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseCharList;
+import fi_81.cwp_morse_mangle.morse.MorseCodec;
+
+/*
+ * Compares decoder engines on synthetic noisy channel. Messages are keyed with
+ * random per-wave timing jitter and decoded with each engine. Prints character
+ * error rate (edit distance to sent text) and CPU time per received wave.
+ * 
+ * Usage: CWaveDecoderBenchmark [numMessages] [signalWidth]
+ */
+public class CWaveDecoderBenchmark {
+	private static final double JITTERS[] = { 0.0, 0.1, 0.2, 0.3, 0.4 };
+
+	private static String[] buildCorpus(int numMessages, Random random) {
+		char[] allowed = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+		String[] corpus = new String[numMessages];
+		StringBuffer sb = new StringBuffer();
+
+		for (int i = 0; i < numMessages; i++) {
+			int words = 2 + random.nextInt(6);
+
+			sb.setLength(0);
+			for (int j = 0; j < words; j++) {
+				if (j > 0)
+					sb.append(' ');
+
+				int len = 1 + random.nextInt(7);
+				for (int k = 0; k < len; k++)
+					sb.append(allowed[random.nextInt(allowed.length)]);
+			}
+
+			corpus[i] = sb.toString();
+		}
+
+		return corpus;
+	}
+
+	/* Convert morse bits to wave durations with gaussian jitter */
+	private static int[] keyMessage(BitString bits, int width, double jitter,
+			Random random) {
+		int[] durations = new int[bits.length()];
+		int count = 0;
+
+		for (int i = 0; i < bits.length();) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			double duration = (end - i) * width
+					* (1.0 + jitter * random.nextGaussian() / 2);
+
+			durations[count++] = Math.max(1, (int) Math.round(duration));
+			i = end;
+		}
+
+		int[] result = new int[count];
+		System.arraycopy(durations, 0, result, 0, count);
+		return result;
+	}
+
+	private static int editDistance(String a, String b) {
+		int[] prev = new int[b.length() + 1];
+		int[] curr = new int[b.length() + 1];
+
+		for (int j = 0; j <= b.length(); j++)
+			prev[j] = j;
+
+		for (int i = 1; i <= a.length(); i++) {
+			curr[0] = i;
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+
+				curr[j] = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1),
+						prev[j - 1] + cost);
+			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+
+		return prev[b.length()];
+	}
+
+	private static String normalize(String text) {
+		return text.replace(MorseCharList.SPECIAL_STOP_MESSAGE, ' ')
+				.replaceAll(" +", " ").trim();
+	}
+
+	private static String decode(CWaveDecoder decoder, int[] durations,
+			StringBuffer received, long[] cpuTime) {
+		CWInputQueue queue = new CWInputQueue();
+		int timestamp = 0;
+		long start = System.nanoTime();
+		BitString bits;
+
+		received.setLength(0);
+
+		for (int i = 0; i < durations.length; i += 2) {
+			queue.pushStateUp(timestamp);
+			queue.pushStateDown(durations[i]);
+			timestamp += durations[i];
+			if (i + 1 < durations.length)
+				timestamp += durations[i + 1];
+
+			while ((bits = decoder.tryDecode(queue, false)) != null)
+				received.append(bits);
+		}
+
+		/* End of message gap */
+		queue.pushStateUp(timestamp + 100000);
+		queue.pushStateDown(1);
+		while ((bits = decoder.tryDecode(queue, false)) != null)
+			received.append(bits);
+		bits = decoder.flushStalled(true);
+		if (bits != null)
+			received.append(bits);
+
+		cpuTime[0] += System.nanoTime() - start;
+
+		return MorseCodec.decodeMorseToMessage(new BitString(received));
+	}
+
+	public static void main(String[] args) {
+		int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		Random random = new Random(1);
+		String[] corpus = buildCorpus(numMessages, random);
+		StringBuffer received = new StringBuffer();
+
+		System.out.println(String.format("%d messages, signal width %d",
+				numMessages, width));
+
+		for (double jitter : JITTERS) {
+			long totalChars = 0, totalWaves = 0;
+			long heuristicErrors = 0, viterbiErrors = 0;
+			long[] heuristicTime = new long[1], viterbiTime = new long[1];
+
+			for (int i = 0; i < numMessages; i++) {
+				int[] durations = keyMessage(
+						MorseCodec.encodeMessageToMorse(corpus[i]), width,
+						jitter, random);
+
+				totalChars += corpus[i].length();
+				totalWaves += durations.length;
+
+				heuristicErrors += editDistance(corpus[i],
+						normalize(decode(new CWaveQueueToMorseCode(),
+								durations, received, heuristicTime)));
+				viterbiErrors += editDistance(corpus[i],
+						normalize(decode(new CWaveQueueViterbiDecoder(),
+								durations, received, viterbiTime)));
+			}
+
+			System.out.println(String.format("jitter %.2f: heuristic CER "
+					+ "%6.2f%% %7.0f ns/wave, viterbi CER %6.2f%% "
+					+ "%7.0f ns/wave", jitter, 100.0 * heuristicErrors
+					/ totalChars, (double) heuristicTime[0] / totalWaves,
+					100.0 * viterbiErrors / totalChars,
+					(double) viterbiTime[0] / totalWaves));
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.benchmarks;
+
+import java.util.Random;
+
+import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseBatchCodec;
+import fi_81.cwp_morse_mangle.morse.MorseCharList;
+
+/*
+ * Throughput benchmark for MorseBatchCodec. Encodes and decodes synthetic
+ * corpus with 1..N worker threads and prints messages per second and speed-up
+ * compared to single worker.
+ * 
+ * Usage: MorseBatchBenchmark [numMessages] [maxWorkers]
+ */
+public class MorseBatchBenchmark {
+	private static final int ROUNDS = 5;
+
+	private static String[] buildCorpus(int numMessages, long seed) {
+		char[] allowed = MorseCharList.getAllowedCharacters();
+		Random random = new Random(seed);
+		String[] corpus = new String[numMessages];
+		StringBuffer sb = new StringBuffer();
+
+		for (int i = 0; i < numMessages; i++) {
+			int len = 20 + random.nextInt(200);
+
+			sb.setLength(0);
+			for (int j = 0; j < len; j++) {
+				if (random.nextInt(6) == 0)
+					sb.append(' ');
+				else
+					sb.append(allowed[random.nextInt(allowed.length)]);
+			}
+
+			corpus[i] = sb.toString();
+		}
+
+		return corpus;
+	}
+
+	public static void main(String[] args) {
+		int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxWorkers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		String[] corpus = buildCorpus(numMessages, 1);
+		double baseEncode = 0, baseDecode = 0;
+
+		System.out.println(String.format("%d messages, %d processors",
+				numMessages, Runtime.getRuntime().availableProcessors()));
+
+		/* Powers of two, then maxWorkers itself if not one of them */
+		for (int workers = 1;; workers = Math.min(workers * 2,
+				maxWorkers)) {
+			MorseBatchCodec codec = new MorseBatchCodec(workers);
+			double encodeRate = 0, decodeRate = 0;
+			BitString[] encoded = null;
+
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				encoded = codec.encodeAll(corpus);
+				long mid = System.nanoTime();
+				String[] decoded = codec.decodeAll(encoded);
+				long end = System.nanoTime();
+
+				if (!decoded[numMessages - 1].equals(corpus[numMessages - 1]
+						.trim().replaceAll(" +", " ")))
+					throw new IllegalStateException("round-trip mismatch");
+
+				/* First round is warm-up */
+				if (round == 0)
+					continue;
+
+				encodeRate = Math.max(encodeRate, numMessages * 1e9
+						/ (mid - start));
+				decodeRate = Math.max(decodeRate, numMessages * 1e9
+						/ (end - mid));
+			}
+
+			codec.shutdown();
+
+			if (workers == 1) {
+				baseEncode = encodeRate;
+				baseDecode = decodeRate;
+			}
+
+			System.out.println(String.format(
+					"workers %2d: encode %10.0f msg/s (x%.2f), "
+							+ "decode %10.0f msg/s (x%.2f)", workers,
+					encodeRate, encodeRate / baseEncode, decodeRate,
+					decodeRate / baseDecode));
+
+			if (workers >= maxWorkers)
+				break;
+		}
+	}
+}
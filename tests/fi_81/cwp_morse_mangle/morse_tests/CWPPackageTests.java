@@ -23,10 +23,12 @@
 
 package fi_81.cwp_morse_mangle.morse_tests;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.Random;
 import java.util.regex.Matcher;
 
 import junit.framework.TestCase;
@@ -37,12 +39,26 @@ import android.util.Log;
 
 import fi_81.cwp_morse_mangle.cwp.CWInput;
 import fi_81.cwp_morse_mangle.cwp.CWInput.CWInputNotification;
+import fi_81.cwp_morse_mangle.cwp.CWDecodeBatch;
+import fi_81.cwp_morse_mangle.cwp.CWDecodeBudget;
+import fi_81.cwp_morse_mangle.cwp.CWDecoderThread;
 import fi_81.cwp_morse_mangle.cwp.CWInputQueue;
 import fi_81.cwp_morse_mangle.cwp.CWOutput;
 import fi_81.cwp_morse_mangle.cwp.CWOutput.CWOutputNotification;
+import fi_81.cwp_morse_mangle.cwp.CWSampledClock;
+import fi_81.cwp_morse_mangle.cwp.CWSignalWidthEstimator;
+import fi_81.cwp_morse_mangle.cwp.CWSpeedChangeDetector;
+import fi_81.cwp_morse_mangle.cwp.CWSpscLongRing;
+import fi_81.cwp_morse_mangle.cwp.CWSpscRing;
 import fi_81.cwp_morse_mangle.cwp.CWStateChange;
 import fi_81.cwp_morse_mangle.cwp.CWStateChangeQueueFromMorseCode;
+import fi_81.cwp_morse_mangle.cwp.CWTransmissionCache;
+import fi_81.cwp_morse_mangle.cwp.CWTransmissionTemplate;
+import fi_81.cwp_morse_mangle.cwp.CWVirtualClock;
 import fi_81.cwp_morse_mangle.cwp.CWave;
+import fi_81.cwp_morse_mangle.cwp.CWaveDecoder;
+import fi_81.cwp_morse_mangle.cwp.CWaveQueueToMorseCode;
+import fi_81.cwp_morse_mangle.cwp.CWaveQueueViterbiDecoder;
 import fi_81.cwp_morse_mangle.morse.BitString;
 import fi_81.cwp_morse_mangle.morse.MorseCodec;
 
@@ -101,7 +117,6 @@ public class CWPPackageTests extends TestCase {
 	@Test
 	public void test2_CWInputQueue() {
 		CWInputQueue cwiq;
-		ArrayList<CWave> arlist;
 
 		/* test create */
 		cwiq = new CWInputQueue();
@@ -125,9 +140,8 @@ public class CWPPackageTests extends TestCase {
 		assertEquals(cwiq.getCurrentStateTimestamp(), 10);
 		assertEquals(cwiq.queueLength(), 1);
 		assertFalse(cwiq.isQueueReadReady());
-		assertEquals(0,
-				cwiq.getQueue().peek()
-						.compareTo(new CWave(CWave.TYPE_DOWN, 10)));
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(0));
+		assertEquals(10, cwiq.getWaveDuration(0));
 
 		/* push wrong up state */
 		try {
@@ -139,24 +153,51 @@ public class CWPPackageTests extends TestCase {
 
 		/* push correct down state */
 		cwiq.pushStateDown(1);
-		arlist = new ArrayList<CWave>(cwiq.getQueue());
 		assertEquals(CWave.TYPE_DOWN, cwiq.getCurrentState());
 		assertEquals(cwiq.getCurrentStateTimestamp(), 11);
 		assertEquals(cwiq.queueLength(), 2);
 		assertTrue(cwiq.isQueueReadReady());
-		assertEquals(0, arlist.get(0).compareTo(new CWave(CWave.TYPE_DOWN, 10)));
-		assertEquals(0, arlist.get(1).compareTo(new CWave(CWave.TYPE_UP, 1)));
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(0));
+		assertEquals(10, cwiq.getWaveDuration(0));
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(1));
+		assertEquals(1, cwiq.getWaveDuration(1));
 
 		/* pushing up-wave of length 0xffff */
 		cwiq.pushStateUp(cwiq.getCurrentStateTimestamp() + 1);
 		cwiq.pushStateDown(0xffff);
-		arlist = new ArrayList<CWave>(cwiq.getQueue());
 		assertEquals(cwiq.getCurrentStateTimestamp(), 12 + 0xffff);
 		assertEquals(cwiq.queueLength(), 4);
 		assertTrue(cwiq.isQueueReadReady());
-		assertEquals(0, arlist.get(2).compareTo(new CWave(CWave.TYPE_DOWN, 1)));
-		assertEquals(0,
-				arlist.get(3).compareTo(new CWave(CWave.TYPE_UP, 0xffff)));
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(2));
+		assertEquals(1, cwiq.getWaveDuration(2));
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(3));
+		assertEquals(0xffff, cwiq.getWaveDuration(3));
+
+		/* completing waves from start keeps indexing relative to head */
+		cwiq.completeWavesFromBegining(3);
+		assertEquals(cwiq.queueLength(), 1);
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(0));
+		assertEquals(0xffff, cwiq.getWaveDuration(0));
+		try {
+			cwiq.getWaveDuration(1);
+			fail("Must fail here!");
+		} catch (IndexOutOfBoundsException e) {
+			assertTrue(true);
+		}
+
+		/* queue grows past initial capacity, wrapping around ring */
+		for (int i = 0; i < 1000; i++) {
+			cwiq.pushStateUp(cwiq.getCurrentStateTimestamp() + i + 1);
+			cwiq.pushStateDown(i + 2);
+			if (i % 3 == 0)
+				cwiq.completeWavesFromBegining(2);
+		}
+		assertEquals(1 + 2 * 1000 - 2 * 334, cwiq.queueLength());
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(cwiq.queueLength() - 1));
+		assertEquals(1001, cwiq.getWaveDuration(cwiq.queueLength() - 1));
+		assertEquals(CWave.TYPE_DOWN,
+				cwiq.getWaveType(cwiq.queueLength() - 2));
+		assertEquals(1000, cwiq.getWaveDuration(cwiq.queueLength() - 2));
 
 		/* handling of special case of Up-wave longer than 0xffff */
 		cwiq = new CWInputQueue();
@@ -164,13 +205,13 @@ public class CWPPackageTests extends TestCase {
 		cwiq.pushStateDown(0xffff);
 		cwiq.pushStateUp(cwiq.getCurrentStateTimestamp());
 		cwiq.pushStateDown(1);
-		arlist = new ArrayList<CWave>(cwiq.getQueue());
 		assertTrue(cwiq.isQueueReadReady());
 		assertEquals(cwiq.getCurrentStateTimestamp(), 1 + 0xffff + 1);
 		assertEquals(cwiq.queueLength(), 2);
-		assertEquals(0, arlist.get(0).compareTo(new CWave(CWave.TYPE_DOWN, 1)));
-		assertEquals(0,
-				arlist.get(1).compareTo(new CWave(CWave.TYPE_UP, 0x10000)));
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(0));
+		assertEquals(1, cwiq.getWaveDuration(0));
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(1));
+		assertEquals(0x10000, cwiq.getWaveDuration(1));
 	}
 
 	private static byte b(int i) {
@@ -703,4 +744,900 @@ public class CWPPackageTests extends TestCase {
 		privateTestCWMorse("abcdefghijklmopqrstuvwxyzåäö", 2,
 				"0123456789,?\'!/()&:;=+-_\"$@", 1);
 	}
+
+	@Test
+	public void test7_CWStateChangeQueueFromMessage() {
+		ArrayDeque<CWStateChange> bitsQueue = new ArrayDeque<CWStateChange>();
+		ArrayDeque<CWStateChange> textQueue = new ArrayDeque<CWStateChange>();
+		CWStateChangeQueueFromMorseCode morseToWave = new CWStateChangeQueueFromMorseCode();
+		String message = "  StestC  sos 123, I åäö? ";
+
+		CWStateChangeQueueFromMorseCode.setSignalJitter(Integer.MAX_VALUE, 0.0);
+		CWStateChangeQueueFromMorseCode.setSignalWidth(3);
+
+		/* Encoding directly from text must match encoding through BitString */
+		morseToWave.encode(bitsQueue,
+				MorseCodec.encodeMessageToMorse(message));
+		int duration = morseToWave.encode(textQueue, message);
+
+		assertEquals(bitsQueue.size(), textQueue.size());
+		assertEquals(MorseCodec.encodeMessageToMorse(message).length() * 3,
+				duration);
+
+		while (!bitsQueue.isEmpty()) {
+			CWStateChange expected = bitsQueue.remove();
+			CWStateChange state = textQueue.remove();
+
+			assertEquals(expected.getType(), state.getType());
+			assertEquals(expected.getValue(), state.getValue());
+			assertEquals(expected.getOutTime(), state.getOutTime());
+		}
+
+		/* Encoding to wire format, "et" => up 0, down 1, up 4, down 3 */
+		CWStateChangeQueueFromMorseCode.setSignalWidth(1);
+
+		ByteBuffer bb = ByteBuffer.allocate(12);
+		assertEquals(7, morseToWave.encode(bb, "et", 100));
+		bb.flip();
+		assertEquals(100, bb.getInt());
+		assertEquals(1, bb.getShort());
+		assertEquals(104, bb.getInt());
+		assertEquals(3, bb.getShort());
+
+		/* Too small buffer */
+		try {
+			morseToWave.encode(ByteBuffer.allocate(8), "et", 0);
+			fail("Must fail here!");
+		} catch (BufferOverflowException e) {
+			assertTrue(true);
+		}
+	}
+
+	@Test
+	public void test8_CWTransmissionCache() {
+		ArrayDeque<CWStateChange> textQueue = new ArrayDeque<CWStateChange>();
+		ArrayDeque<CWStateChange> templateQueue = new ArrayDeque<CWStateChange>();
+		CWStateChangeQueueFromMorseCode morseToWave = new CWStateChangeQueueFromMorseCode();
+		String message = "StestC sos 123";
+
+		CWStateChangeQueueFromMorseCode.setSignalJitter(Integer.MAX_VALUE, 0.0);
+		CWStateChangeQueueFromMorseCode.setSignalWidth(3);
+
+		/* Rebased template must match direct encoding */
+		CWTransmissionTemplate template = CWTransmissionTemplate
+				.compile(message);
+		int duration = morseToWave.encode(textQueue, message);
+
+		assertEquals(3, template.getSignalWidth());
+		assertEquals(duration, template.getDuration());
+		assertEquals(textQueue.size(), template.getNumStateChanges());
+		assertEquals(textQueue.size(), template.appendTo(templateQueue, 1000));
+
+		while (!textQueue.isEmpty()) {
+			CWStateChange expected = textQueue.remove();
+			CWStateChange state = templateQueue.remove();
+
+			expected.addTimestamp(1000);
+
+			assertEquals(expected.getType(), state.getType());
+			assertEquals(expected.getValue(), state.getValue());
+			assertEquals(expected.getOutTime(), state.getOutTime());
+		}
+
+		/* Cache is keyed by message and signal width */
+		CWTransmissionCache cache = new CWTransmissionCache(2);
+
+		assertNull(cache.lookup(message));
+		cache.put(message, template);
+		assertSame(template, cache.lookup(message));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		CWStateChangeQueueFromMorseCode.setSignalWidth(2);
+		assertNull(cache.lookup(message));
+		cache.put(message, CWTransmissionTemplate.compile(message));
+		assertNotNull(cache.lookup(message));
+
+		/* Least recently used entry is evicted */
+		cache.put("sos", CWTransmissionTemplate.compile("sos"));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.lookup("sos"));
+		CWStateChangeQueueFromMorseCode.setSignalWidth(3);
+		assertNull(cache.lookup(message));
+		assertEquals(3, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		/* Templates are not used with jitter */
+		CWStateChangeQueueFromMorseCode.setSignalJitter(1, 0.1);
+		cache.put("sos", CWTransmissionTemplate.compile("sos"));
+		assertNull(cache.lookup("sos"));
+
+		/* Encoders with own signal ignore process-wide width and jitter */
+		CWStateChangeQueueFromMorseCode slow = new CWStateChangeQueueFromMorseCode();
+		CWStateChangeQueueFromMorseCode fast = new CWStateChangeQueueFromMorseCode();
+
+		slow.setSignal(60, Integer.MAX_VALUE, 0.0);
+		fast.setSignal(20, Integer.MAX_VALUE, 0.0);
+		CWStateChangeQueueFromMorseCode.setSignalWidth(5);
+
+		template = CWTransmissionTemplate.compile("sos", slow);
+		assertEquals(60, template.getSignalWidth());
+		assertEquals(slow.encode(textQueue, "sos"),
+				3 * fast.encode(textQueue, "sos"));
+
+		cache.put("sos", template, slow);
+		assertSame(template, cache.lookup("sos", slow));
+		assertNull(cache.lookup("sos", fast));
+		assertNull(cache.lookup("sos"));
+
+		CWStateChangeQueueFromMorseCode.setSignalJitter(Integer.MAX_VALUE, 0.0);
+		CWStateChangeQueueFromMorseCode.setSignalWidth(1);
+	}
+
+	@Test
+	public void test9_CWInputQueueOverflow() {
+		CWInputQueue cwiq;
+
+		/* Drop oldest, queue keeps newest waves and requests flush */
+		cwiq = new CWInputQueue(4, CWInputQueue.OVERFLOW_DROP_OLDEST);
+		for (int i = 1; i <= 3; i++) {
+			cwiq.pushStateUp(cwiq.getCurrentStateTimestamp() + i);
+			cwiq.pushStateDown(10 + i);
+		}
+		assertEquals(4, cwiq.queueLength());
+		assertEquals(2, cwiq.getDroppedWaves());
+		assertEquals(0, cwiq.getCoalescedWaves());
+		assertTrue(cwiq.takeOverflowFlushRequest());
+		assertFalse(cwiq.takeOverflowFlushRequest());
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(0));
+		assertEquals(2, cwiq.getWaveDuration(0));
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(3));
+		assertEquals(13, cwiq.getWaveDuration(3));
+
+		/* Coalesce, oldest up-wave is merged into surrounding down-waves */
+		cwiq = new CWInputQueue(4, CWInputQueue.OVERFLOW_COALESCE);
+		for (int i = 1; i <= 3; i++) {
+			cwiq.pushStateUp(cwiq.getCurrentStateTimestamp() + i);
+			cwiq.pushStateDown(10 + i);
+		}
+		/* down 1, up 11, down 2, up 12 => down 14, up 12, down 3, up 13 */
+		assertEquals(4, cwiq.queueLength());
+		assertEquals(0, cwiq.getDroppedWaves());
+		assertEquals(2, cwiq.getCoalescedWaves());
+		assertFalse(cwiq.takeOverflowFlushRequest());
+		assertEquals(CWave.TYPE_DOWN, cwiq.getWaveType(0));
+		assertEquals(14, cwiq.getWaveDuration(0));
+		assertEquals(CWave.TYPE_UP, cwiq.getWaveType(1));
+		assertEquals(12, cwiq.getWaveDuration(1));
+		assertEquals(13, cwiq.getWaveDuration(3));
+
+		/* Total time is preserved by coalescing */
+		int total = 0;
+		for (int i = 0; i < cwiq.queueLength(); i++)
+			total += cwiq.getWaveDuration(i);
+		assertEquals(cwiq.getCurrentStateTimestamp(), total);
+
+		/* Invalid configuration */
+		try {
+			new CWInputQueue(1, CWInputQueue.OVERFLOW_COALESCE);
+			fail("Must fail here!");
+		} catch (IllegalArgumentException e) {
+			assertTrue(true);
+		}
+
+		/* Noise that never decodes stays bounded in input */
+		CWInput cwi = new CWInput(new CWInputQueue(16,
+				CWInputQueue.OVERFLOW_DROP_OLDEST), null);
+		ByteBuffer bb = cwi.getInBuffer();
+		int timestamp = 0;
+
+		for (int i = 0; i < 1000; i++) {
+			timestamp += 5000 + i;
+			bb.putInt(timestamp);
+			bb.putShort((short) 3000);
+			timestamp += 3000;
+			cwi.processInput(new CWInput.NotificationNone());
+			assertTrue(cwi.getMorseQueue().queueLength() <= 16);
+		}
+	}
+
+	@Test
+	public void test10_CWSignalWidthEstimator() {
+		CWSignalWidthEstimator estimator = new CWSignalWidthEstimator();
+
+		assertFalse(estimator.hasEstimate());
+		estimator.seed(50.0);
+		assertTrue(estimator.hasEstimate());
+		assertEquals(0.5,
+				estimator.getTolerance(CWSignalWidthEstimator.CLASS_SHORT));
+
+		/* Clean sender, width converges and tolerances tighten */
+		for (int i = 0; i < 200; i++) {
+			estimator.update(60, CWSignalWidthEstimator.CLASS_SHORT);
+			estimator.update(180, CWSignalWidthEstimator.CLASS_LONG);
+		}
+		assertEquals(60.0, estimator.getWidth(), 0.1);
+		assertEquals(0.25,
+				estimator.getTolerance(CWSignalWidthEstimator.CLASS_SHORT),
+				0.001);
+		assertEquals(0.15,
+				estimator.getTolerance(CWSignalWidthEstimator.CLASS_LONG),
+				0.001);
+
+		/* Sloppy sender, tolerance grows but stays within bounds */
+		for (int i = 0; i < 200; i++)
+			estimator.update(i % 2 == 0 ? 40 : 80,
+					CWSignalWidthEstimator.CLASS_SHORT);
+		assertEquals(0.6,
+				estimator.getTolerance(CWSignalWidthEstimator.CLASS_SHORT),
+				0.001);
+
+		/* Decoder follows sender that slows down during message */
+		String message = "the quick brown fox jumps over the lazy dog";
+		BitString bits = MorseCodec.encodeMessageToMorse(message);
+		CWInputQueue cwiq = new CWInputQueue();
+		CWaveQueueToMorseCode decoder = new CWaveQueueToMorseCode();
+		StringBuffer received = new StringBuffer();
+		int timestamp = 100;
+
+		for (int i = 0; i < bits.length();) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			int duration = 0;
+			for (int j = i; j < end; j++)
+				duration += 40 + (30 * j) / bits.length();
+
+			if (bits.getBit(i)) {
+				cwiq.pushStateUp(timestamp);
+				cwiq.pushStateDown(duration);
+			}
+			timestamp += duration;
+
+			BitString decoded;
+			while ((decoded = decoder.tryDecode(cwiq, false)) != null)
+				received.append(decoded);
+
+			i = end;
+		}
+		BitString decoded = decoder.flushStalled(true);
+		if (decoded != null)
+			received.append(decoded);
+
+		assertEquals(message,
+				MorseCodec.decodeMorseToMessage(new BitString(received))
+						.substring(0, message.length()));
+		assertEquals(70.0, decoder.getSignalWidthEstimator().getWidth(), 3.0);
+	}
+
+	private static String decodeWaves(CWaveDecoder decoder, BitString bits,
+			int width, int stretchedWave, double stretch) {
+		CWInputQueue cwiq = new CWInputQueue();
+		StringBuffer received = new StringBuffer();
+		BitString decoded;
+		int timestamp = 100;
+		int wave = 0;
+
+		for (int i = 0; i < bits.length(); wave++) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			/* Alternate timing error of +-10% */
+			double jitter = (wave % 3 - 1) * 0.1;
+			if (wave == stretchedWave)
+				jitter = stretch - 1.0;
+
+			int duration = (int) Math.round((end - i) * width * (1.0 + jitter));
+
+			if (bits.getBit(i)) {
+				cwiq.pushStateUp(timestamp);
+				cwiq.pushStateDown(duration);
+			}
+			timestamp += duration;
+
+			while ((decoded = decoder.tryDecode(cwiq, false)) != null)
+				received.append(decoded);
+
+			i = end;
+		}
+
+		decoded = decoder.flushStalled(true);
+		if (decoded != null)
+			received.append(decoded);
+
+		assertTrue(BitString.stringBufferEndWithBits(received,
+				MorseCodec.endSequence));
+
+		return MorseCodec.decodeMorseToMessage(new BitString(received));
+	}
+
+	@Test
+	public void test11_CWaveQueueViterbiDecoder() {
+		String message = "cq cq de oh2 test";
+		BitString bits = MorseCodec.encodeMessageToMorse(message);
+
+		/* Both engines decode mildly jittered message */
+		assertTrue(decodeWaves(new CWaveQueueToMorseCode(), bits, 50, -1, 1.0)
+				.startsWith(message));
+		assertTrue(decodeWaves(new CWaveQueueViterbiDecoder(), bits, 50, -1,
+				1.0).startsWith(message));
+
+		/*
+		 * Second dah of first 'q' stretched to 4.5 widths, over tolerance of
+		 * heuristic decoder.
+		 */
+		assertFalse(decodeWaves(new CWaveQueueToMorseCode(), bits, 50, 10,
+				1.5).startsWith(message));
+		assertTrue(decodeWaves(new CWaveQueueViterbiDecoder(), bits, 50, 10,
+				1.5).startsWith(message));
+
+		/* Decoder engine can be selected for input */
+		CWInput cwi = new CWInput(new CWaveQueueViterbiDecoder(), 0, 0);
+		assertFalse(cwi.hadPendingBits());
+	}
+
+	@Test
+	public void test12_CWSpeedChangeDetector() {
+		CWSpeedChangeDetector detector = new CWSpeedChangeDetector();
+
+		/* Jitter around width does not trigger change */
+		for (int i = 0; i < 100; i++)
+			assertFalse(detector.update(i % 2 == 0 ? 45 : 55, 1, 50.0));
+		assertEquals(0, detector.getChangeCount());
+
+		/* Sender slows down by 30%, detected within few waves */
+		int waves = 0;
+		while (!detector.update(65 * 3, 3, 50.0))
+			assertTrue(++waves < 10);
+		assertEquals(1, detector.getChangeCount());
+		assertEquals(65.0, detector.getAnchoredWidth(), 0.5);
+
+		/* Two operators, second one twice as slow, without pause between */
+		String first = "cq cq de oh2";
+		String second = "test test";
+		BitString bits = MorseCodec.encodeMessageToMorse(first).append(
+				BitString.newZeros(7)).append(
+				MorseCodec.encodeMessageToMorse(second));
+		int switchBit = MorseCodec.encodeMessageToMorse(first).length();
+
+		CWInputQueue cwiq = new CWInputQueue();
+		CWaveQueueToMorseCode decoder = new CWaveQueueToMorseCode();
+		StringBuffer received = new StringBuffer();
+		BitString decoded;
+		int timestamp = 100;
+
+		for (int i = 0; i < bits.length();) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			int duration = (end - i) * (i <= switchBit ? 40 : 80);
+
+			if (bits.getBit(i)) {
+				cwiq.pushStateUp(timestamp);
+				cwiq.pushStateDown(duration);
+			}
+			timestamp += duration;
+
+			while ((decoded = decoder.tryDecode(cwiq, false)) != null)
+				received.append(decoded);
+
+			i = end;
+		}
+		decoded = decoder.flushStalled(true);
+		if (decoded != null)
+			received.append(decoded);
+
+		/* Message continues over speed change, not split in two */
+		assertEquals(first + " " + second + "©",
+				MorseCodec.decodeMorseToMessage(new BitString(received)));
+		assertTrue(decoder.getSpeedChangeDetector().getChangeCount() > 0);
+		assertEquals(80.0, decoder.getSignalWidthEstimator().getWidth(), 4.0);
+	}
+
+	/* Decode waves and collect characters and confidences from batches */
+	private static String decodeBatches(CWaveDecoder decoder, BitString bits,
+			int width, int stretchedWave, double stretch,
+			StringBuffer confidences) {
+		CWInputQueue cwiq = new CWInputQueue();
+		StringBuffer chars = new StringBuffer();
+		CWDecodeBatch batch = decoder.getDecodeBatch();
+		int timestamp = 100;
+		int wave = 0;
+
+		for (int i = 0; i <= bits.length(); wave++) {
+			BitString decoded;
+
+			while ((decoded = decoder.tryDecode(cwiq, false)) != null
+					|| (i == bits.length() && (decoded = decoder
+							.flushStalled(true)) != null)) {
+				for (int j = 0; j < batch.getNumCharacters(); j++) {
+					chars.append(batch.getCharacter(j));
+					confidences.append(batch.getCharacterConfidence(j) >= 0.8 ? '+'
+							: '-');
+				}
+				if (batch.isEndOfMessage())
+					chars.append(batch.isForcedFlush() ? '!' : '.');
+			}
+
+			if (i == bits.length())
+				break;
+
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			int duration = (end - i) * width;
+			if (wave == stretchedWave)
+				duration = (int) (duration * stretch);
+
+			if (bits.getBit(i)) {
+				cwiq.pushStateUp(timestamp);
+				cwiq.pushStateDown(duration);
+			}
+			timestamp += duration;
+
+			i = end;
+		}
+
+		return chars.toString();
+	}
+
+	@Test
+	public void test13_CWDecodeBatch() {
+		BitString bits = MorseCodec.encodeMessageToMorse("ab ca");
+		StringBuffer conf = new StringBuffer();
+
+		/* Clean input, all characters confident */
+		assertEquals("ab ca!", decodeBatches(new CWaveQueueToMorseCode(), bits,
+				50, -1, 1.0, conf));
+		assertEquals("+++++", conf.toString());
+
+		conf.setLength(0);
+		assertEquals("ab ca!", decodeBatches(new CWaveQueueViterbiDecoder(),
+				bits, 50, -1, 1.0, conf));
+		assertEquals("+++++", conf.toString());
+
+		/* Dah of 'b' stretched near threshold of dah, only 'b' uncertain */
+		conf.setLength(0);
+		assertEquals("ab ca!", decodeBatches(new CWaveQueueToMorseCode(), bits,
+				50, 4, 1.25, conf));
+		assertEquals("+-+++", conf.toString());
+
+		/* Dah of 'b' shrunk between dit and dah */
+		conf.setLength(0);
+		assertEquals("ab ca!", decodeBatches(new CWaveQueueViterbiDecoder(),
+				bits, 50, 4, 0.67, conf));
+		assertEquals("+-+++", conf.toString());
+
+		/* Batch arrays grow and are cleared between morse codes */
+		CWDecodeBatch batch = new CWDecodeBatch();
+		for (int i = 0; i < 100; i++) {
+			batch.addSymbol(CWDecodeBatch.SYMBOL_DIT, i == 50 ? 0.2 : 1.0);
+			batch.endCharacter('E', 50.0);
+		}
+		assertEquals(100, batch.getNumCharacters());
+		assertEquals(0.2f, batch.getMinConfidence(), 0.001f);
+		assertEquals(1, batch.getCharacterWaves(99));
+		batch.complete();
+		assertFalse(batch.hasPendingSymbols());
+		batch.addSymbol(CWDecodeBatch.SYMBOL_DAH, 1.0);
+		assertEquals(0, batch.getNumCharacters());
+		assertTrue(batch.hasPendingSymbols());
+	}
+
+	@Test
+	public void test14_CWDecodeBudget() {
+		Random random = new Random(14);
+		CWInputQueue cwiq = new CWInputQueue(8192,
+				CWInputQueue.OVERFLOW_DROP_OLDEST);
+		int timestamp = 100;
+
+		/* Long backlog of garbage that does not match any signal width */
+		for (int i = 0; i < 4000; i++) {
+			int duration = 1 + random.nextInt(2000);
+
+			cwiq.pushStateUp(timestamp);
+			cwiq.pushStateDown(duration);
+			timestamp += duration + 1 + random.nextInt(2000);
+		}
+
+		/* Each round does bounded work and continues from previous one */
+		CWaveQueueToMorseCode decoder = new CWaveQueueToMorseCode();
+		CWDecodeBudget budget = new CWDecodeBudget(64, 0);
+		int rounds = 0;
+
+		while (cwiq.queueLength() > 0 && rounds < 100000) {
+			budget.start();
+			while (decoder.tryDecode(cwiq, true, budget) != null
+					&& !budget.isExhausted())
+				;
+			budget.finish();
+			rounds++;
+
+			assertTrue(budget.getLastRoundWaves() <= 64 + 24);
+			if (!budget.isExhausted())
+				break;
+		}
+		assertTrue(rounds > 1);
+		assertEquals(rounds - 1, budget.getExhaustedRounds());
+		assertTrue(budget.getMaxRoundNanos() >= budget.getLastRoundNanos());
+
+		/* Unlimited forced decoding of backlog does not recurse */
+		for (int i = 0; i < 4000; i++) {
+			int duration = 1 + random.nextInt(2000);
+
+			cwiq.pushStateUp(timestamp);
+			cwiq.pushStateDown(duration);
+			timestamp += duration + 1 + random.nextInt(2000);
+		}
+		while (decoder.tryDecode(cwiq, true) != null)
+			;
+		decoder.flushStalled(true);
+		assertEquals(0, cwiq.queueLength());
+
+		/* CWInput continues decoding on next rounds when budget is used */
+		String message = "paris paris";
+		BitString bits = MorseCodec.encodeMessageToMorse(message);
+		ByteBuffer bb = ByteBuffer.allocate(bits.length() * 6);
+
+		timestamp = 0;
+		for (int i = 0; i < bits.length();) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			if (bits.getBit(i)) {
+				bb.putInt(timestamp);
+				bb.putShort((short) ((end - i) * 50));
+			}
+			timestamp += (end - i) * 50;
+			i = end;
+		}
+		bb.flip();
+
+		final StringBuffer received = new StringBuffer();
+		CWInput cwi = new CWInput(new CWInputQueue(), bb);
+		CWInputNotification notify = new CWInput.NotificationNone() {
+			public void morseMessage(BitString morseBits) {
+				received.append(morseBits);
+			}
+		};
+
+		cwi.setDecodeBudget(new CWDecodeBudget(16, 0));
+		cwi.processInput(notify);
+		assertEquals(0, cwi.timeToNextWork());
+
+		rounds = 1;
+		while (cwi.timeToNextWork() == 0
+				&& cwi.getMorseQueue().queueLength() > 0) {
+			cwi.processInput(notify);
+			rounds++;
+		}
+		cwi.flushStaleMorseBits(notify, true);
+
+		assertTrue(rounds > 2);
+		assertEquals(message + "©",
+				MorseCodec.decodeMorseToMessage(new BitString(received)));
+	}
+
+	@Test
+	public void test15_CWDecoderThread() throws InterruptedException {
+		/* Ring capacity rounded to power of two, full ring refuses */
+		CWSpscLongRing ring = new CWSpscLongRing(5);
+		long values[] = new long[8];
+
+		assertEquals(8, ring.capacity());
+		for (int i = 0; i < 8; i++)
+			assertTrue(ring.offer(i));
+		assertFalse(ring.offer(8));
+		assertEquals(3, ring.drain(values, 3));
+		assertEquals(2, values[2]);
+		assertTrue(ring.offer(8));
+		assertEquals(6, ring.drain(values, values.length));
+		assertEquals(8, values[5]);
+		assertTrue(ring.isEmpty());
+
+		/* Order is kept between threads */
+		final CWSpscRing<Integer> objRing = new CWSpscRing<Integer>(16);
+		final int count = 100000;
+		Thread producer = new Thread() {
+			public void run() {
+				for (int i = 0; i < count; i++)
+					while (!objRing.offer(Integer.valueOf(i)))
+						Thread.yield();
+			}
+		};
+		producer.start();
+		for (int i = 0; i < count; i++) {
+			Integer value;
+
+			while ((value = objRing.poll()) == null)
+				Thread.yield();
+			assertEquals(i, value.intValue());
+		}
+		producer.join();
+		assertNull(objRing.poll());
+
+		/* CWInput decodes on decoder thread */
+		String message = "paris paris";
+		BitString bits = MorseCodec.encodeMessageToMorse(message);
+		ByteBuffer bb = ByteBuffer.allocate(bits.length() * 6);
+		int timestamp = 0;
+		int marks = 0;
+
+		for (int i = 0; i < bits.length();) {
+			int end = bits.getBit(i) ? bits.nextClearBit(i) : bits
+					.nextSetBit(i);
+			if (end < 0)
+				end = bits.length();
+
+			if (bits.getBit(i)) {
+				marks++;
+				bb.putInt(timestamp);
+				bb.putShort((short) ((end - i) * 50));
+			}
+			timestamp += (end - i) * 50;
+			i = end;
+		}
+		bb.flip();
+
+		final StringBuffer received = new StringBuffer();
+		final LinkedList<Integer> stateChanges = new LinkedList<Integer>();
+		CWInput cwi = new CWInput(new CWInputQueue(), bb);
+		CWInputNotification notify = new CWInput.NotificationNone() {
+			public void stateChange(byte newState, int value) {
+				stateChanges.add(value);
+			}
+
+			public void morseMessage(BitString morseBits) {
+				received.append(morseBits);
+			}
+		};
+
+		cwi.startDecoderThread(null);
+		cwi.processInput(notify);
+
+		/* State changes are passed without waiting for decoder */
+		assertEquals(marks * 2, stateChanges.size());
+		assertEquals(0, cwi.getMorseQueue().queueLength());
+
+		/* Forced flush is queued, codes are collected on later round */
+		cwi.flushStaleMorseBits(notify, true);
+		long flushEnd = System.currentTimeMillis() + 5000;
+		while (cwi.isDecoderFlushPending()
+				&& System.currentTimeMillis() < flushEnd)
+			Thread.sleep(1);
+		assertFalse(cwi.isDecoderFlushPending());
+		cwi.processInput(notify);
+		cwi.stopDecoderThread();
+
+		assertEquals(message + "©",
+				MorseCodec.decodeMorseToMessage(new BitString(received)));
+
+		/* Events lost on full ring, decoder restarts from current state */
+		CWDecoderThread decoderThread = new CWDecoderThread(
+				new CWaveQueueToMorseCode(), 4, null);
+		for (int i = 0; i < 8; i++) {
+			decoderThread.publishStateUp(i * 100);
+			decoderThread.publishStateDown(50);
+		}
+		assertTrue(decoderThread.getDroppedEvents() > 0);
+
+		decoderThread.start();
+		assertTrue(decoderThread.flush(1000));
+		decoderThread.publishStateUp(1000);
+		decoderThread.publishStateDown(50);
+		assertTrue(decoderThread.flush(1000));
+		assertTrue(decoderThread.isAlive());
+		decoderThread.shutdown();
+		assertFalse(decoderThread.isAlive());
+
+		/* Short trailing message is decoded after flush timeout */
+		decoderThread = new CWDecoderThread(new CWaveQueueToMorseCode(), 16,
+				null);
+		decoderThread.start();
+		decoderThread.publishStateUp(0);
+		decoderThread.publishStateDown(60);
+
+		BitString trailing = null;
+		long end = System.currentTimeMillis() + 5000;
+		while (trailing == null && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+			trailing = decoderThread.pollMorseMessage();
+		}
+
+		assertNotNull(trailing);
+		assertTrue(MorseCodec.decodeMorseToMessage(trailing).startsWith("e"));
+		Thread.sleep(50);
+		assertFalse(decoderThread.hadPendingBits());
+		decoderThread.shutdown();
+	}
+
+	/* Send message from CWOutput to CWInput on virtual clock */
+	private static String replayVirtual(String message, CWVirtualClock clock,
+			StringBuffer received) {
+		CWOutput cwo = new CWOutput(clock.currentTimeMillis());
+		CWInput cwi = new CWInput(10000, clock.currentTimeMillis());
+		CWOutputNotification notifyOut = new CWOutput.NotificationNone();
+		final StringBuffer text = received;
+		CWInputNotification notifyIn = new CWInput.NotificationNone() {
+			public void morseMessage(BitString morseBits) {
+				/* Flushes may split message, decode each part separately */
+				text.append(MorseCodec.decodeMorseToMessage(morseBits));
+			}
+		};
+
+		cwo.setClock(clock);
+		cwi.setClock(clock);
+		cwo.sendMorseMessage(message);
+
+		ByteBuffer outBuf = cwo.getOutputBuffer();
+		ByteBuffer inBuf = cwi.getInBuffer();
+
+		while (true) {
+			cwo.processOutput(notifyOut);
+			while (outBuf.hasRemaining() && inBuf.hasRemaining())
+				inBuf.put(outBuf.get());
+			cwi.processInput(notifyIn);
+
+			long next = Math.min(cwo.timeToNextWork(), cwi.timeToNextWork());
+			if (next == Long.MAX_VALUE && cwo.queueSize() == 0
+					&& !outBuf.hasRemaining())
+				break;
+
+			clock.advance(Math.max(1, Math.min(next, 1000)));
+		}
+		cwi.flushStaleMorseBits(notifyIn, true);
+
+		return received.toString().replace("©", "").replace(" ", "");
+	}
+
+	@Test
+	public void test16_CWVirtualClock() {
+		CWStateChangeQueueFromMorseCode.setSignalWidth(50);
+		CWStateChangeQueueFromMorseCode.setSignalJitter(0, 0.0);
+
+		/* Replay runs on virtual time, without sleeping */
+		String message = "cq cq de oh2 test";
+		CWVirtualClock clock = new CWVirtualClock(1000);
+		StringBuffer first = new StringBuffer();
+		long wallStart = System.currentTimeMillis();
+
+		assertEquals(message.replace(" ", ""),
+				replayVirtual(message, clock, first));
+
+		long virtualTime = clock.currentTimeMillis() - 1000;
+		assertTrue(virtualTime > MorseCodec.encodeMessageToMorse(message)
+				.length() * 50);
+		assertTrue(System.currentTimeMillis() - wallStart < virtualTime);
+
+		/* Same input on same virtual time gives same result */
+		StringBuffer second = new StringBuffer();
+		clock.setTimeMillis(1000);
+		replayVirtual(message, clock, second);
+		assertEquals(first.toString(), second.toString());
+		assertEquals(virtualTime, clock.currentTimeMillis() - 1000);
+
+		/* Sampled clock keeps time until next sample */
+		CWSampledClock sampled = new CWSampledClock(clock);
+		long sampledTime = sampled.currentTimeMillis();
+		clock.advance(10);
+		assertEquals(sampledTime, sampled.currentTimeMillis());
+		assertEquals(clock.nanoTime(), sampled.nanoTime());
+		sampled.sample();
+		assertEquals(sampledTime + 10, sampled.currentTimeMillis());
+		assertTrue(sampled.getLiveClock() == clock);
+	}
+
+	/* Collects added latencies reported by CWOutput */
+	private static class WriteRecorder extends CWOutput.NotificationNone
+			implements CWOutput.CWOutputWriteNotification {
+		private final ArrayList<Long> latencies = new ArrayList<Long>();
+
+		public void stateChangeWritten(long addedLatency) {
+			latencies.add(Long.valueOf(addedLatency));
+		}
+	}
+
+	@Test
+	public void test17_CWOutputPolicy() {
+		CWVirtualClock clock = new CWVirtualClock(0);
+		CWOutput cwo = new CWOutput(0);
+		ByteBuffer outBuf = cwo.getOutputBuffer();
+		WriteRecorder notify = new WriteRecorder();
+
+		cwo.setClock(clock);
+
+		/* Immediate policy writes each state change when due */
+		assertEquals(CWOutput.OUTPUT_IMMEDIATE, cwo.getOutputPolicy());
+		assertTrue(cwo.sendUp());
+		assertTrue(cwo.processOutput(notify));
+		assertEquals(4, outBuf.remaining());
+		clock.advance(10);
+		assertTrue(cwo.sendDown());
+		assertTrue(cwo.processOutput(notify));
+		assertEquals(6, outBuf.remaining());
+		assertEquals(0L, notify.latencies.get(0).longValue());
+		outBuf.position(outBuf.limit());
+
+		/* Coalescing holds due state changes back up to window */
+		cwo.setOutputPolicy(CWOutput.OUTPUT_COALESCE, 20);
+		notify.latencies.clear();
+		clock.advance(10);
+		assertTrue(cwo.sendUp());
+		assertFalse(cwo.processOutput(notify));
+		assertEquals(20, cwo.timeToNextWork());
+		clock.advance(5);
+		assertTrue(cwo.sendDown());
+
+		/* Manual keying is not blocked by held back state changes */
+		clock.advance(5);
+		assertTrue(cwo.sendUp());
+		assertFalse(cwo.processOutput(notify));
+		clock.advance(10);
+		assertTrue(cwo.processOutput(notify));
+		assertEquals(4 + 2 + 4, outBuf.remaining());
+		assertEquals(3, notify.latencies.size());
+		assertEquals(20L, notify.latencies.get(0).longValue());
+		assertEquals(15L, notify.latencies.get(1).longValue());
+		assertEquals(10L, notify.latencies.get(2).longValue());
+		outBuf.position(outBuf.limit());
+		clock.advance(10);
+		assertTrue(cwo.sendDown());
+		clock.advance(20);
+		assertTrue(cwo.processOutput(notify));
+		outBuf.position(outBuf.limit());
+
+		/* Manual keying is blocked while message is queued */
+		cwo.setOutputPolicy(CWOutput.OUTPUT_BATCH, 0);
+		notify.latencies.clear();
+		CWStateChangeQueueFromMorseCode.setSignalWidth(20);
+		assertTrue(cwo.sendMorseMessage("ee"));
+		assertFalse(cwo.sendUp());
+
+		/* Batch policy writes whole message once first state change is due */
+		while (!cwo.processOutput(notify))
+			clock.advance(1);
+		assertEquals(0, cwo.queueSize());
+		assertEquals(2 * (4 + 2), outBuf.remaining());
+		assertEquals(4, notify.latencies.size());
+		assertTrue(notify.latencies.get(3).longValue() < 0);
+		assertTrue(cwo.sendUp());
+		assertTrue(cwo.processOutput(notify));
+		outBuf.position(outBuf.limit());
+
+		/* Message can follow held back manual state change */
+		cwo.setOutputPolicy(CWOutput.OUTPUT_COALESCE, 20);
+		notify.latencies.clear();
+		clock.advance(10);
+		assertTrue(cwo.sendDown());
+		assertTrue(cwo.sendMorseMessage("e"));
+		assertFalse(cwo.sendUp());
+		assertEquals(20, cwo.timeToNextWork());
+
+		/* Only message is rebased, manual state change keeps timestamp */
+		while (cwo.queueSize() > 0) {
+			clock.advance(1);
+			cwo.processOutput(notify);
+			outBuf.position(outBuf.limit());
+		}
+		assertTrue(notify.latencies.size() >= 3);
+		assertEquals(20L, notify.latencies.get(0).longValue());
+		assertTrue(cwo.sendUp());
+
+		/* Invalid configuration */
+		try {
+			cwo.setOutputPolicy(CWOutput.OUTPUT_COALESCE, -1);
+			fail("Must fail here!");
+		} catch (IllegalArgumentException e) {
+		}
+	}
 }
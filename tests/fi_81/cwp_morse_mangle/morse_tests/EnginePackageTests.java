@@ -0,0 +1,991 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.morse_tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import fi_81.cwp_morse_mangle.cwp.CWClock;
+import fi_81.cwp_morse_mangle.cwp.CWInput;
+import fi_81.cwp_morse_mangle.cwp.CWOutput;
+import fi_81.cwp_morse_mangle.cwp.CWSampledClock;
+import fi_81.cwp_morse_mangle.cwp.CWVirtualClock;
+import fi_81.cwp_morse_mangle.engine.CWPConnection;
+import fi_81.cwp_morse_mangle.engine.CWPConnectionStats;
+import fi_81.cwp_morse_mangle.engine.CWPEngine;
+import fi_81.cwp_morse_mangle.engine.CWPEngineControl;
+import fi_81.cwp_morse_mangle.engine.CWPEngineListener;
+import fi_81.cwp_morse_mangle.engine.CWPMultiEngine;
+import fi_81.cwp_morse_mangle.engine.CWPResolver;
+import fi_81.cwp_morse_mangle.engine.CWPScanner;
+import fi_81.cwp_morse_mangle.engine.CWPTimerHeap;
+
+public class EnginePackageTests extends TestCase {
+	/* Loopback server echoing everything back to sender */
+	private static class EchoServer extends Thread {
+		private final ServerSocket server;
+
+		private EchoServer() throws IOException {
+			server = new ServerSocket(0, 50, InetAddress.getByName(null));
+			setDaemon(true);
+		}
+
+		private int getPort() {
+			return server.getLocalPort();
+		}
+
+		private void close() {
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket client = server.accept();
+
+					Thread echo = new Thread() {
+						public void run() {
+							byte[] buf = new byte[256];
+							int len;
+
+							try {
+								InputStream in = client.getInputStream();
+								OutputStream out = client.getOutputStream();
+
+								while ((len = in.read(buf)) > 0)
+									out.write(buf, 0, len);
+							} catch (IOException e) {
+							}
+						}
+					};
+					echo.setDaemon(true);
+					echo.start();
+				}
+			} catch (IOException e) {
+				/* server closed */
+			}
+		}
+	}
+
+	/* Loopback server keying short waves to clients on active frequencies */
+	private static class TrafficServer extends Thread {
+		private final ServerSocket server;
+		private final long[] activeFrequencies;
+
+		private TrafficServer(long[] activeFrequencies) throws IOException {
+			this.server = new ServerSocket(0, 50, InetAddress.getByName(null));
+			this.activeFrequencies = activeFrequencies;
+			setDaemon(true);
+		}
+
+		private int getPort() {
+			return server.getLocalPort();
+		}
+
+		private void close() {
+			try {
+				server.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private boolean isActive(long freq) {
+			for (int i = 0; i < activeFrequencies.length; i++)
+				if (activeFrequencies[i] == freq)
+					return true;
+
+			return false;
+		}
+
+		private void serve(final Socket client) throws IOException {
+			final long connStart = System.currentTimeMillis();
+			final long[] clientFreq = new long[] { 1 };
+			final DataInputStream in = new DataInputStream(
+					client.getInputStream());
+			final DataOutputStream out = new DataOutputStream(
+					client.getOutputStream());
+
+			/* Track frequency of client from its CWP stream */
+			Thread reader = new Thread() {
+				public void run() {
+					boolean stateUp = false;
+
+					try {
+						while (true) {
+							if (stateUp) {
+								in.readShort();
+								stateUp = false;
+								continue;
+							}
+
+							int value = in.readInt();
+							if (value < 0) {
+								synchronized (clientFreq) {
+									clientFreq[0] = -(long) value;
+								}
+							} else
+								stateUp = true;
+						}
+					} catch (IOException e) {
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+
+			/* Key waves while client listens active frequency */
+			Thread writer = new Thread() {
+				public void run() {
+					try {
+						while (true) {
+							long freq;
+
+							synchronized (clientFreq) {
+								freq = clientFreq[0];
+							}
+
+							if (isActive(freq)) {
+								out.writeInt((int) (System.currentTimeMillis() - connStart));
+								out.flush();
+								Thread.sleep(20);
+								out.writeShort(20);
+								out.flush();
+							}
+							Thread.sleep(20);
+						}
+					} catch (IOException e) {
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true)
+					serve(server.accept());
+			} catch (IOException e) {
+				/* server closed */
+			}
+		}
+	}
+
+	/* Collects engine events for test thread */
+	private static class TestListener implements CWPEngineListener {
+		private int connState = CWPConnection.CONN_NO_CONFIGURATION;
+		private String morse = "";
+		private int sendsCompleted = 0;
+		private int stateChanges = 0;
+		private boolean sendStateUp = false;
+		private final ArrayList<Long> errorTimes = new ArrayList<Long>();
+
+		public synchronized void connectionStateChange(int connState) {
+			this.connState = connState;
+			notifyAll();
+		}
+
+		public synchronized void connectionError(String reason) {
+			errorTimes.add(System.currentTimeMillis());
+			notifyAll();
+		}
+
+		public void frequencyChange(long freq) {
+		}
+
+		public synchronized void stateChange(boolean recvStateUp,
+				boolean sendStateUp) {
+			this.sendStateUp = sendStateUp;
+			stateChanges++;
+			notifyAll();
+		}
+
+		public synchronized void morseUpdates(String morse) {
+			this.morse = morse;
+			notifyAll();
+		}
+
+		public synchronized void morseMessageSendingState(boolean complete,
+				String sendMorse) {
+			if (complete)
+				sendsCompleted++;
+			notifyAll();
+		}
+
+		private synchronized void waitConnState(int state, long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (connState != state && System.currentTimeMillis() < end)
+				wait(10);
+		}
+
+		private synchronized void waitMorse(String text, long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (getMorse().indexOf(text) < 0
+					&& System.currentTimeMillis() < end)
+				wait(10);
+		}
+
+		private synchronized void waitStateChange(int count, long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (stateChanges < count && System.currentTimeMillis() < end)
+				wait(10);
+		}
+
+		private synchronized void waitSendCompleted(long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (sendsCompleted == 0 && System.currentTimeMillis() < end)
+				wait(10);
+		}
+
+		/* Received text, with word gaps collapsed to single space */
+		private synchronized String getMorse() {
+			return morse.replaceAll(" +", " ");
+		}
+	}
+
+	@Test
+	public void test1_CWPEngine() throws Exception {
+		EchoServer server = new EchoServer();
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener);
+		Thread thread = new Thread(engine, "CWPEngine");
+
+		server.start();
+
+		/* Commands given before engine is started are not lost */
+		engine.setNewConfiguration("localhost", server.getPort(), 20, false);
+		thread.start();
+
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+		assertEquals(CWPConnection.CONN_CONNECTED, listener.connState);
+
+		/* Echoed message is decoded back by same engine */
+		engine.sendMorseMessage("engine test");
+		listener.waitMorse("engine test", 10000);
+		assertTrue(listener.getMorse().indexOf("engine test") >= 0);
+
+		/* End-of-contact code is still being sent after message text */
+		listener.waitSendCompleted(5000);
+		assertTrue(listener.sendsCompleted > 0);
+
+		/* Clearing received messages */
+		engine.requestClearMessages();
+		Thread.sleep(100);
+		assertTrue(listener.getMorse().indexOf("engine") < 0);
+
+		/* Shutdown stops engine thread and closes connection */
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertTrue(engine.isShutdown());
+		assertEquals(CWPConnection.CONN_RESOLVING_ADDRESS, listener.connState);
+
+		server.close();
+	}
+
+	@Test
+	public void test2_CWPTimerHeap() {
+		CWPTimerHeap heap = new CWPTimerHeap(2);
+		Random random = new Random(1);
+		long[] deadlines = new long[100];
+
+		assertEquals(Long.MAX_VALUE, heap.peekDeadline());
+		assertEquals(-1, heap.pollDue(Long.MAX_VALUE));
+
+		/* Reschedule and cancel randomly, heap grows as needed */
+		for (int i = 0; i < 10000; i++) {
+			int id = random.nextInt(deadlines.length);
+
+			if (random.nextInt(4) == 0) {
+				heap.cancel(id);
+				deadlines[id] = 0;
+			} else {
+				deadlines[id] = 1 + random.nextInt(1000);
+				heap.schedule(id, deadlines[id]);
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < deadlines.length; i++) {
+			assertEquals(deadlines[i] > 0, heap.isScheduled(i));
+			if (deadlines[i] > 0)
+				count++;
+		}
+		assertEquals(count, heap.size());
+
+		/* Only due entries are returned, in deadline order */
+		long prev = 0;
+		int id;
+
+		while ((id = heap.pollDue(500)) >= 0) {
+			assertTrue(deadlines[id] <= 500);
+			assertTrue(deadlines[id] >= prev);
+			prev = deadlines[id];
+			deadlines[id] = 0;
+		}
+		assertTrue(heap.peekDeadline() > 500);
+
+		while ((id = heap.pollDue(Long.MAX_VALUE)) >= 0) {
+			assertTrue(deadlines[id] >= prev);
+			prev = deadlines[id];
+			deadlines[id] = 0;
+		}
+		assertTrue(heap.isEmpty());
+	}
+
+	@Test
+	public void test3_CWPMultiEngine() throws Exception {
+		final int numConnections = 20;
+		EchoServer server = new EchoServer();
+		CWPMultiEngine engine = new CWPMultiEngine();
+		Thread thread = new Thread(engine, "CWPMultiEngine");
+		TestListener[] listeners = new TestListener[numConnections];
+		CWPEngineControl[] controls = new CWPEngineControl[numConnections];
+
+		server.start();
+		thread.start();
+
+		/* Many connections on one engine thread, each on own frequency */
+		for (int i = 0; i < numConnections; i++) {
+			listeners[i] = new TestListener();
+			controls[i] = engine.addConnection(listeners[i]);
+			controls[i].setFrequency(100 + i);
+			controls[i].setNewConfiguration("localhost", server.getPort(),
+					20, false);
+		}
+		assertEquals(numConnections, engine.getConnectionCount());
+
+		for (int i = 0; i < numConnections; i++) {
+			listeners[i].waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+			assertEquals(CWPConnection.CONN_CONNECTED, listeners[i].connState);
+		}
+
+		/* Every connection decodes only its own echoed message */
+		for (int i = 0; i < numConnections; i++)
+			controls[i].sendMorseMessage("m" + i);
+
+		for (int i = 0; i < numConnections; i++) {
+			listeners[i].waitMorse("m" + i + " ", 10000);
+			assertTrue(listeners[i].getMorse().indexOf("m" + i + " ") >= 0);
+		}
+
+		/* Work is batched, not handled one connection at time */
+		assertTrue(engine.getConnectionsPerLoop() > 0.0);
+
+		/* Removed connection is closed, others continue */
+		engine.removeConnection(controls[0]);
+		listeners[0].waitConnState(CWPConnection.CONN_RESOLVING_ADDRESS,
+				5000);
+		assertEquals(CWPConnection.CONN_RESOLVING_ADDRESS,
+				listeners[0].connState);
+		assertEquals(numConnections - 1, engine.getConnectionCount());
+
+		controls[1].requestClearMessages();
+		controls[1].sendMorseMessage("again");
+		listeners[1].waitMorse("again", 10000);
+		assertTrue(listeners[1].getMorse().indexOf("again") >= 0);
+
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		for (int i = 1; i < numConnections; i++)
+			assertEquals(CWPConnection.CONN_RESOLVING_ADDRESS,
+					listeners[i].connState);
+
+		server.close();
+	}
+
+	@Test
+	public void test4_CWPScanner() throws Exception {
+		TrafficServer server = new TrafficServer(new long[] { 7, 13 });
+		CWPMultiEngine engine = new CWPMultiEngine();
+		Thread thread = new Thread(engine, "CWPMultiEngine");
+		final long[] lockedFrequency = new long[] { -1 };
+		CWPScanner scanner = new CWPScanner(engine, 4, 1, 20, 1,
+				new CWPScanner.ScanListener() {
+					public void channelScanned(CWPScanner.Channel channel,
+							int stateChanges) {
+					}
+
+					public void channelLocked(CWPScanner.Channel channel) {
+						lockedFrequency[0] = channel.getFrequency();
+					}
+
+					public void morseUpdates(CWPScanner.Channel channel,
+							String morse) {
+					}
+				});
+
+		server.start();
+		thread.start();
+
+		scanner.setDwellTime(200);
+		scanner.setLockOn(4, 1);
+		scanner.connect("localhost", server.getPort(), 20, false);
+
+		/* Sweep range until both active channels have been found */
+		long start = System.currentTimeMillis();
+		long now = start;
+		while (now - start < 10000) {
+			scanner.step(now);
+
+			if (scanner.getSweeps() >= 2)
+				break;
+
+			Thread.sleep(10);
+			now = System.currentTimeMillis();
+		}
+
+		assertTrue(scanner.getSweeps() >= 2);
+		assertTrue(scanner.getChannelsScanned() >= 20);
+		assertTrue(scanner.getScanRate(now) > 0.0);
+
+		/* Active channels are ranked first, inactive have no activity */
+		List<CWPScanner.Channel> ranking = scanner.getRanking(3);
+		assertEquals(3, ranking.size());
+		long first = ranking.get(0).getFrequency();
+		long second = ranking.get(1).getFrequency();
+		assertTrue((first == 7 && second == 13) || (first == 13 && second == 7));
+		assertTrue(ranking.get(1).getActivity() > 0.0);
+		assertEquals(0.0, ranking.get(2).getActivity());
+
+		/* One connection locked on active channel */
+		assertEquals(1, scanner.getLockedCount());
+		assertTrue(lockedFrequency[0] == 7 || lockedFrequency[0] == 13);
+
+		scanner.disconnect();
+		engine.shutdown();
+		thread.join(5000);
+		server.close();
+	}
+
+	@Test
+	public void test5_CWPEngineCommandOrder() throws Exception {
+		ServerSocket server = new ServerSocket(0, 50,
+				InetAddress.getByName(null));
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener);
+		Thread thread = new Thread(engine, "CWPEngine");
+
+		/* Commands queued before engine starts are applied in order */
+		engine.setNewConfiguration("localhost", server.getLocalPort(), 20,
+				false);
+		for (int freq = 2; freq <= 100; freq++)
+			engine.setFrequency(freq);
+		thread.start();
+
+		Socket client = server.accept();
+		DataInputStream in = new DataInputStream(client.getInputStream());
+
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+		assertEquals(CWPConnection.CONN_CONNECTED, listener.connState);
+		assertEquals(-100, in.readInt());
+
+		/* Rapid keying, many times more commands than fit in queue */
+		for (int i = 0; i < 5000; i++) {
+			engine.setSendingState(true);
+			engine.setSendingState(false);
+		}
+
+		/* Commands are handled in order, so last one leaves sender down */
+		int stateChanges = listener.stateChanges;
+		engine.requestCurrentState();
+		listener.waitStateChange(stateChanges + 1, 5000);
+		assertFalse(listener.sendStateUp);
+
+		/* Server sees well-formed stream ending in down state */
+		boolean upState = false;
+		int ups = 0;
+
+		client.setSoTimeout(300);
+		try {
+			while (true) {
+				if (!upState) {
+					if (in.readInt() >= 0) {
+						upState = true;
+						ups++;
+					}
+				} else {
+					in.readShort();
+					upState = false;
+				}
+			}
+		} catch (IOException e) {
+			/* no more data */
+		}
+
+		assertTrue(ups > 0);
+		assertFalse(upState);
+
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		client.close();
+		server.close();
+	}
+
+	/* CWP stream of message keyed from connection start, without delays */
+	private static byte[] renderMorse(String message) {
+		CWVirtualClock clock = new CWVirtualClock(0);
+		CWOutput cwo = new CWOutput(0);
+		CWOutput.CWOutputNotification notify = new CWOutput.NotificationNone();
+		ByteBuffer outBuf = cwo.getOutputBuffer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		cwo.setClock(clock);
+		cwo.sendMorseMessage(message);
+
+		while (true) {
+			cwo.processOutput(notify);
+			while (outBuf.hasRemaining())
+				bytes.write(outBuf.get());
+
+			long next = cwo.timeToNextWork();
+			if (next == Long.MAX_VALUE && cwo.queueSize() == 0)
+				break;
+
+			clock.advance(Math.max(1, Math.min(next, 1000)));
+		}
+
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void test6_CWPConnectionBatchRead() throws Exception {
+		ServerSocket server = new ServerSocket(0, 50,
+				InetAddress.getByName(null));
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener, 8192, 256);
+		Thread thread = new Thread(engine, "CWPEngine");
+		String message = "backlog one backlog two backlog three backlog four"
+				+ " backlog five backlog six backlog seven backlog eight";
+		byte[] backlog = renderMorse(message);
+
+		/* Backlog is many times larger than default buffer */
+		assertTrue(backlog.length > 8 * CWInput.DEFAULT_BUFFER_SIZE);
+
+		thread.start();
+		engine.setNewConfiguration("localhost", server.getLocalPort(), 20,
+				false);
+
+		Socket client = server.accept();
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+
+		/* Whole backlog arrives at once */
+		OutputStream out = client.getOutputStream();
+		out.write(backlog);
+		out.flush();
+
+		listener.waitMorse(message, 10000);
+		assertTrue(listener.getMorse().indexOf(message) >= 0);
+
+		/* Read in few large reads */
+		CWPConnectionStats stats = engine.getStats();
+		assertEquals(backlog.length, stats.getBytesRead());
+		assertTrue(stats.getBytesPerRead() > CWInput.DEFAULT_BUFFER_SIZE);
+		assertTrue(stats.getReadsPerWakeup() >= 1.0);
+
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test7_CWPEngineOutputPolicy() throws Exception {
+		EchoServer server = new EchoServer();
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener);
+		Thread thread = new Thread(engine, "CWPEngine");
+
+		server.start();
+
+		/* Invalid policy is rejected on calling thread */
+		try {
+			engine.setOutputPolicy(CWOutput.OUTPUT_COALESCE, -1);
+			fail("Must fail here!");
+		} catch (IllegalArgumentException e) {
+		}
+
+		engine.setOutputPolicy(CWOutput.OUTPUT_BATCH, 0);
+		engine.setNewConfiguration("localhost", server.getPort(), 20, false);
+		thread.start();
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+
+		/* Batched message is decoded from timestamps and durations */
+		engine.sendMorseMessage("batch");
+		listener.waitMorse("batch", 10000);
+		assertTrue(listener.getMorse().indexOf("batch") >= 0);
+		listener.waitSendCompleted(5000);
+
+		/* Whole message in few segments, only first one waits until due */
+		CWPConnectionStats stats = engine.getStats();
+		assertTrue(stats.getWrites() > 0);
+		assertTrue(stats.getStateChangesPerWrite() > 4.0);
+		assertTrue(stats.getMaxAddedLatency() < 50);
+
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		server.close();
+	}
+
+	/* Resolver with lookups held until released by test */
+	private static class HeldResolver extends CWPResolver {
+		private final CountDownLatch release = new CountDownLatch(1);
+		private volatile int lookups = 0;
+
+		private HeldResolver(long ttl, long negativeTtl, CWClock clock) {
+			super(1, ttl, negativeTtl, clock);
+		}
+
+		@Override
+		protected InetAddress lookupHost(String hostName)
+				throws UnknownHostException {
+			lookups++;
+
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new UnknownHostException(hostName);
+			}
+
+			if (hostName.equals("unknown"))
+				throw new UnknownHostException(hostName);
+			if (hostName.equals("denied"))
+				throw new SecurityException(hostName);
+
+			return InetAddress.getByName(null);
+		}
+	}
+
+	private static void waitLookup(CWPResolver.Lookup lookup)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+
+		while (!lookup.isDone() && System.currentTimeMillis() < end)
+			Thread.sleep(1);
+	}
+
+	@Test
+	public void test8_CWPResolver() throws Exception {
+		CWVirtualClock clock = new CWVirtualClock(0);
+		HeldResolver resolver = new HeldResolver(1000, 100, clock);
+
+		/* Concurrent lookups of same host share one request */
+		CWPResolver.Lookup first = resolver.resolve("server", null);
+		CWPResolver.Lookup second = resolver.resolve("server", null);
+		assertSame(first, second);
+		assertFalse(first.isDone());
+		assertNull(first.getAddress());
+
+		resolver.release.countDown();
+		waitLookup(first);
+		assertTrue(first.isDone());
+		assertNotNull(first.getAddress());
+		assertEquals(1, resolver.lookups);
+		assertEquals(1, resolver.getLookupsStarted());
+
+		/* Cached until TTL has passed */
+		clock.advance(999);
+		assertSame(first, resolver.resolve("server", null));
+		assertEquals(1, resolver.getCacheHits());
+
+		clock.advance(1);
+		CWPResolver.Lookup renewed = resolver.resolve("server", null);
+		assertTrue(renewed != first);
+		waitLookup(renewed);
+		assertEquals(2, resolver.lookups);
+
+		/* Failure is cached for negative TTL */
+		CWPResolver.Lookup failed = resolver.resolve("unknown", null);
+		waitLookup(failed);
+		assertTrue(failed.isDone());
+		assertNull(failed.getAddress());
+
+		clock.advance(99);
+		assertSame(failed, resolver.resolve("unknown", null));
+		clock.advance(1);
+		assertTrue(resolver.resolve("unknown", null) != failed);
+
+		/* Unchecked exception from lookup is failure too */
+		CWPResolver.Lookup denied = resolver.resolve("denied", null);
+		waitLookup(denied);
+		assertTrue(denied.isDone());
+		assertNull(denied.getAddress());
+
+		clock.advance(99);
+		assertSame(denied, resolver.resolve("denied", null));
+
+		resolver.shutdown();
+	}
+
+	@Test
+	public void test9_CWPConnectionAsyncResolve() throws Exception {
+		Selector selector = Selector.open();
+		CWSampledClock clock = new CWSampledClock(CWClock.SYSTEM);
+		TestListener listener = new TestListener();
+		CWPConnection connection = new CWPConnection(selector, clock,
+				listener);
+		HeldResolver resolver = new HeldResolver(
+				CWPResolver.DEFAULT_TTL, CWPResolver.DEFAULT_NEGATIVE_TTL,
+				CWClock.SYSTEM);
+
+		connection.setResolver(resolver);
+		connection.setConfiguration("server", 1, 20, false);
+		assertEquals(CWPConnection.CONN_RESOLVING_ADDRESS,
+				connection.getConnState());
+
+		/* Lookup does not block IO-thread */
+		long start = System.currentTimeMillis();
+		connection.resolveAddress();
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertEquals(CWPConnection.CONN_RESOLVING_ADDRESS,
+				connection.getConnState());
+		assertTrue(connection.timeToNextWork() > 0);
+
+		/* Completed lookup wakes up selector of connection */
+		resolver.release.countDown();
+		selector.select(5000);
+		clock.sample();
+		assertEquals(0, connection.timeToNextWork());
+
+		connection.resolveAddress();
+		assertEquals(CWPConnection.CONN_CREATE_CONNECTION,
+				connection.getConnState());
+
+		connection.close();
+		selector.close();
+		resolver.shutdown();
+	}
+
+	@Test
+	public void test10_CWPEngineReconnectBackoff() throws Exception {
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener);
+		Thread thread = new Thread(engine, "CWPEngine");
+		ServerSocket closed = new ServerSocket(0, 50,
+				InetAddress.getByName(null));
+		int port = closed.getLocalPort();
+
+		/* Nothing listening on port, every connect is refused */
+		closed.close();
+
+		engine.setNewConfiguration("localhost", port, 20, false);
+		thread.start();
+		Thread.sleep(2500);
+
+		/* Retries back off, each at least half of doubled delay */
+		ArrayList<Long> errors;
+		synchronized (listener) {
+			errors = new ArrayList<Long>(listener.errorTimes);
+		}
+
+		assertTrue(errors.size() >= 2);
+		assertTrue(errors.size() <= 6);
+
+		for (int i = 1; i < errors.size(); i++) {
+			long gap = errors.get(i) - errors.get(i - 1);
+			long minDelay = Math.min(CWPConnection.MIN_RETRY_DELAY << (i - 1),
+					CWPConnection.MAX_RETRY_DELAY) / 2;
+
+			assertTrue(gap >= minDelay - 20);
+		}
+
+		/* Shutdown is not held up by backoff */
+		long start = System.currentTimeMillis();
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertTrue(System.currentTimeMillis() - start < 500);
+	}
+
+	private static int countDecoderThreads() {
+		int count = 0;
+
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals("CWDecoderThread") && thread.isAlive())
+				count++;
+
+		return count;
+	}
+
+	private static void waitDecoderThreads(int count, long timeout)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+
+		while (countDecoderThreads() != count
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void test11_CWPEngineDecoderThread() throws Exception {
+		EchoServer server = new EchoServer();
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener);
+		Thread thread = new Thread(engine, "CWPEngine");
+		CWPMultiEngine multiEngine = new CWPMultiEngine();
+		Thread multiThread = new Thread(multiEngine, "CWPMultiEngine");
+		TestListener[] listeners = new TestListener[2];
+		CWPEngineControl[] controls = new CWPEngineControl[2];
+		int baseThreads = countDecoderThreads();
+
+		server.start();
+		thread.start();
+		multiThread.start();
+
+		/* Setting applies from next connect on */
+		engine.setUseDecoderThread(true);
+		engine.setNewConfiguration("localhost", server.getPort(), 20, false);
+
+		/* Only one of multiplexed connections uses decoder thread */
+		for (int i = 0; i < controls.length; i++) {
+			listeners[i] = new TestListener();
+			controls[i] = multiEngine.addConnection(listeners[i]);
+			controls[i].setUseDecoderThread(i == 0);
+			controls[i].setFrequency(200 + i);
+			controls[i].setNewConfiguration("localhost", server.getPort(),
+					20, false);
+		}
+
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+		for (int i = 0; i < controls.length; i++)
+			listeners[i].waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+
+		waitDecoderThreads(baseThreads + 2, 5000);
+		assertEquals(baseThreads + 2, countDecoderThreads());
+
+		/* Decoded morse reaches listener without other IO on connection */
+		engine.sendMorseMessage("single");
+		listener.waitMorse("single ", 10000);
+		assertTrue(listener.getMorse().indexOf("single ") >= 0);
+
+		for (int i = 0; i < controls.length; i++)
+			controls[i].sendMorseMessage("multi" + i);
+		for (int i = 0; i < controls.length; i++) {
+			listeners[i].waitMorse("multi" + i + " ", 10000);
+			assertTrue(listeners[i].getMorse().indexOf("multi" + i + " ")
+					>= 0);
+		}
+
+		/* Closing connections stops their decoder threads */
+		engine.shutdown();
+		multiEngine.shutdown();
+		thread.join(5000);
+		multiThread.join(5000);
+		assertFalse(thread.isAlive());
+		assertFalse(multiThread.isAlive());
+
+		waitDecoderThreads(baseThreads, 5000);
+		assertEquals(baseThreads, countDecoderThreads());
+
+		server.close();
+	}
+
+	private static void receiveBacklog(int bufferSize, String message,
+			byte[] backlog) throws Exception {
+		ServerSocket server = new ServerSocket(0, 50,
+				InetAddress.getByName(null));
+		TestListener listener = new TestListener();
+		CWPEngine engine = new CWPEngine(listener, bufferSize, bufferSize);
+		Thread thread = new Thread(engine, "CWPEngine");
+
+		thread.start();
+		engine.setNewConfiguration("localhost", server.getLocalPort(), 20,
+				false);
+
+		Socket client = server.accept();
+		listener.waitConnState(CWPConnection.CONN_CONNECTED, 5000);
+
+		OutputStream out = client.getOutputStream();
+		out.write(backlog);
+		out.flush();
+
+		listener.waitMorse(message, 20000);
+		assertTrue(listener.getMorse().indexOf(message) >= 0);
+		assertEquals(backlog.length, engine.getStats().getBytesRead());
+
+		engine.shutdown();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void test12_CWPConnectionBacklogOverQueue() throws Exception {
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; text.length() < 2400; i++)
+			text.append("backlog ").append(i).append(' ');
+
+		String message = text.toString().trim();
+		byte[] backlog = renderMorse(message);
+
+		/* Backlog holds more waves than input wave queue */
+		assertTrue(backlog.length > 6 * 4096);
+
+		/* No waves are dropped while draining, with small or large reads */
+		receiveBacklog(CWInput.DEFAULT_BUFFER_SIZE, message, backlog);
+		receiveBacklog(8192, message, backlog);
+	}
+}
@@ -24,15 +24,18 @@
 package fi_81.cwp_morse_mangle.morse_tests;
 
 import java.nio.CharBuffer;
+import java.util.Arrays;
 
 import org.junit.Test;
 
 import android.util.Log;
 
 import fi_81.cwp_morse_mangle.morse.BitString;
+import fi_81.cwp_morse_mangle.morse.MorseBatchCodec;
 import fi_81.cwp_morse_mangle.morse.MorseChar;
 import fi_81.cwp_morse_mangle.morse.MorseCharList;
 import fi_81.cwp_morse_mangle.morse.MorseCodec;
+import fi_81.cwp_morse_mangle.morse.MorseStreamDecoder;
 
 import junit.framework.TestCase;
 
@@ -102,6 +105,34 @@ public class MorsePackageTests extends TestCase {
 		assertEquals(MorseCharList.morseBitsToCharacter(new BitString("1111")),
 				'Z');
 
+		assertEquals(MorseCharList.morseBitsToCharacter(new BitString("110")),
+				'Z');
+		assertEquals(MorseCharList.morseBitsToCharacter(new BitString("1001")),
+				'Z');
+		assertEquals(MorseCharList.morseBitsToCharacter(new BitString("")),
+				'Z');
+
+		/* Walk decode trie one symbol at time, "-.-" is 'k' */
+		int node = MorseCharList.TRIE_ROOT;
+		node = MorseCharList.nextTrieNode(node, true);
+		assertEquals('t', MorseCharList.trieNodeToCharacter(node));
+		node = MorseCharList.nextTrieNode(node, false);
+		assertEquals('n', MorseCharList.trieNodeToCharacter(node));
+		node = MorseCharList.nextTrieNode(node, true);
+		assertEquals('k', MorseCharList.trieNodeToCharacter(node));
+
+		/* "------" is not valid code */
+		node = MorseCharList.TRIE_ROOT;
+		for (int i = 0; i < 6; i++)
+			node = MorseCharList.nextTrieNode(node, true);
+		assertEquals(MorseCharList.TRIE_NONE, node);
+		assertEquals('Z', MorseCharList.trieNodeToCharacter(node));
+
+		/* All characters decode back from their codes */
+		for (char ch : MorseCharList.getAllowedCharacters())
+			assertEquals(ch, MorseCharList.morseBitsToCharacter(MorseCharList
+					.characterToMorseString(ch)));
+
 		Log.d(TAG, new String(MorseCharList.getAllowedCharacters()));
 	}
 
@@ -142,6 +173,16 @@ public class MorsePackageTests extends TestCase {
 		assertEquals(MorseCodec.encodeMessageToMorse("eI IeIee  e"),
 				new BitString("1000000010001000100000001"));
 
+		/* packed code table: 'a' is "10111" (first bit at lowest bit) */
+		long code = MorseCharList.characterToMorseCode('a');
+		assertEquals(5, MorseCharList.morseCodeLength(code));
+		assertEquals(0x1d, MorseCharList.morseCodeBits(code));
+		assertEquals(0, MorseCharList.characterToMorseCode('I'));
+		assertEquals(0, MorseCharList.characterToMorseCode('\u1234'));
+		assertEquals(0, MorseCharList.characterToMorseString('I').length());
+		assertEquals(MorseCharList.characterToMorseString('@'),
+				new BitString("10111011101011101"));
+
 		Log.d(TAG, MorseCodec.encodeMessageToMorse("sos").toString());
 	}
 
@@ -174,4 +215,186 @@ public class MorsePackageTests extends TestCase {
 		assertEquals(MorseCodec.decodeMorseToMessage(new BitString(
 				"000010000000000000000001000")), "e e");
 	}
+
+	@Test
+	public void test5_BitString() {
+		String s0 = "1011101000111010101110111000000011100000000000000000000000000000101";
+		String s1 = "0000000111011101110001";
+		BitString b0 = new BitString(s0);
+		BitString b1 = new BitString(s1);
+
+		/* Packed bits must give same CharSequence view */
+		assertEquals(s0, b0.toString());
+		assertEquals(s0.length(), b0.length());
+		for (int i = 0; i < s0.length(); i++)
+			assertEquals(s0.charAt(i), b0.charAt(i));
+
+		/* Appending over word boundaries */
+		assertEquals(new BitString(s0 + s1), b0.append(b1));
+		assertEquals(new BitString(s1 + s0 + s1), b1.append(b0).append(b1));
+		assertEquals(new BitString(s0 + s1).hashCode(), b0.append(b1)
+				.hashCode());
+		assertEquals(b0, b0.append(new BitString()));
+
+		/* Substrings */
+		assertEquals(new BitString(s0.substring(3, 66)), b0.substring(3, 66));
+		assertEquals(new BitString(s0.substring(63, 66)), b0.substring(63, 66));
+		assertEquals(s0.substring(5, 9), b0.subSequence(5, 9).toString());
+
+		/* Compare as strings would */
+		assertEquals(s0.compareTo(s1), b0.compareTo(b1));
+		assertEquals(s1.compareTo(s0), b1.compareTo(b0));
+		assertEquals((s0 + s1).compareTo(s0), b0.append(b1).compareTo(b0));
+		assertEquals((s0 + "0").compareTo(s0 + "1"), b0.append(
+				BitString.newZeros(1)).compareTo(b0.append(BitString.newOnes(1))));
+		assertEquals(0, b0.compareTo(new BitString(s0)));
+
+		/* End-with checks */
+		assertTrue(b0.append(b1).endWith(b1));
+		assertTrue(b1.append(b0).endWith(b0));
+		assertFalse(b0.endWith(b1));
+		assertFalse(b1.endWith(b0));
+		assertTrue(BitString.newOnes(130).endWith(BitString.newOnes(67)));
+		assertFalse(BitString.newOnes(130).endWith(BitString.newZeros(1)));
+
+		/* Split like String.split(), but keeping trailing empty strings */
+		BitString splits[] = b0.append(b1).split(BitString.newZeros(3));
+		String strSplits[] = (s0 + s1).split("000", -1);
+		assertEquals(strSplits.length, splits.length);
+		for (int i = 0; i < splits.length; i++)
+			assertEquals(new BitString(strSplits[i]), splits[i]);
+	}
+
+	@Test
+	public void test6_BitStringViews() {
+		String str = "0001011100011101010000000101000";
+		BitString bits = new BitString(str);
+
+		/* Substring views over shared bits */
+		BitString view = bits.substring(3, 24);
+		assertEquals(new BitString(str.substring(3, 24)), view);
+		assertEquals(str.substring(3, 24), view.toString());
+		assertEquals(new BitString(str.substring(5, 10)), view.substring(2, 7));
+		assertEquals(view, view.compact());
+		assertEquals(str.indexOf('1', 4) - 3, view.nextSetBit(1));
+		assertEquals(str.lastIndexOf('1', 20) - 3, view.previousSetBit(17));
+		assertEquals(-1, BitString.newZeros(100).nextSetBit(0));
+		assertEquals(-1, BitString.newZeros(100).previousSetBit(99));
+
+		/* Split iterator ranges match split() views */
+		BitString splits[] = view.split(BitString.newZeros(3));
+		BitString.SplitIterator iter = view.splitIterator(BitString
+				.newZeros(3));
+		int i = 0;
+
+		while (iter.nextRange()) {
+			assertEquals(splits[i++],
+					view.substring(iter.getStart(), iter.getEnd()));
+		}
+		assertEquals(splits.length, i);
+		assertFalse(iter.hasNext());
+
+		i = 0;
+		iter.reset(view, BitString.newZeros(3));
+		while (iter.hasNext())
+			assertEquals(splits[i++], iter.next());
+
+		/* Decoding from view */
+		assertEquals("ad", MorseCodec.decodeMorseToMessage(view));
+		assertEquals("d i", MorseCodec.decodeMorseToMessage(bits.substring(9,
+				31)));
+		assertEquals('t', MorseCharList.morseBitsToCharacter(
+				new BitString("01110"), 1, 4));
+	}
+
+	@Test
+	public void test7_MorseStreamDecoder() {
+		final StringBuffer output = new StringBuffer();
+		MorseStreamDecoder decoder = new MorseStreamDecoder(
+				new MorseStreamDecoder.DecoderNotification() {
+					public void morseCharacter(char ch) {
+						output.append(ch);
+					}
+				});
+
+		/* Character is passed forward as soon as character gap is seen */
+		decoder.pushBits(new BitString("10101"));
+		assertEquals("", output.toString());
+		assertTrue(decoder.hasPendingCharacter());
+		decoder.pushBits(new BitString("00"));
+		assertEquals("", output.toString());
+		decoder.pushBit(false);
+		assertEquals("s", output.toString());
+		assertFalse(decoder.hasPendingCharacter());
+
+		/* Runs, "---" */
+		for (int i = 0; i < 3; i++) {
+			decoder.pushRun(true, 3);
+			decoder.pushRun(false, 1);
+		}
+		decoder.pushRun(false, 2);
+		assertEquals("so", output.toString());
+
+		/* Space on word gap */
+		decoder.pushRun(false, 4);
+		assertEquals("so ", output.toString());
+		decoder.pushRun(false, 100);
+		assertEquals("so ", output.toString());
+
+		/* Flush pending character at end of input */
+		decoder.pushBits(new BitString("101"));
+		decoder.flush();
+		assertEquals("so i", output.toString());
+
+		/* Must give same output as batch decoder */
+		String message = "hello world! 0123 åäö";
+		BitString bits = BitString.newZeros(5).append(
+				MorseCodec.encodeMessageToMorse(message));
+
+		output.setLength(0);
+		for (int i = 0; i < bits.length(); i++)
+			decoder.pushBit(bits.getBit(i));
+		decoder.flush();
+
+		assertEquals(MorseCodec.decodeMorseToMessage(bits), output.toString());
+		assertEquals(message, output.toString());
+	}
+
+	@Test
+	public void test8_MorseBatchCodec() {
+		String[] messages = new String[1000];
+		for (int i = 0; i < messages.length; i++)
+			messages[i] = "msg " + i + " hello world";
+
+		MorseBatchCodec codec = new MorseBatchCodec(3, 64);
+
+		try {
+			/* Array results must be in input order and match codec */
+			BitString[] encoded = codec.encodeAll(messages);
+			assertEquals(messages.length, encoded.length);
+			for (int i = 0; i < messages.length; i++)
+				assertEquals(MorseCodec.encodeMessageToMorse(messages[i]),
+						encoded[i]);
+
+			String[] decoded = codec.decodeAll(encoded);
+			assertTrue(Arrays.equals(messages, decoded));
+
+			/* Streamed results must be delivered in input order */
+			final String[] streamed = new String[messages.length];
+			final int[] next = new int[1];
+			int count = codec.decodeAll(Arrays.asList(encoded).iterator(),
+					new MorseBatchCodec.ResultNotification<String>() {
+						public void result(int index, String result) {
+							assertEquals(next[0]++, index);
+							streamed[index] = result;
+						}
+					});
+			assertEquals(messages.length, count);
+			assertTrue(Arrays.equals(messages, streamed));
+
+			assertEquals(0, codec.encodeAll(new String[0]).length);
+		} finally {
+			codec.shutdown();
+		}
+	}
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2012 Jussi Kivilinna <jussi.kivilinna@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package fi_81.cwp_morse_mangle.morse_tests;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import fi_81.cwp_morse_mangle.engine.CWPEngineControl;
+import fi_81.cwp_morse_mangle.engine.CWPEngineListener;
+import fi_81.cwp_morse_mangle.engine.CWPMultiEngine;
+import fi_81.cwp_morse_mangle.server.CWPRelayServer;
+
+public class ServerPackageTests extends TestCase {
+	/* Raw CWP client on blocking socket */
+	private static class RawClient {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		private RawClient(int port) throws IOException {
+			socket = new Socket(InetAddress.getByName(null), port);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(2000);
+			in = new DataInputStream(socket.getInputStream());
+			out = new DataOutputStream(socket.getOutputStream());
+		}
+
+		private void sendUp(int timestamp) throws IOException {
+			out.writeInt(timestamp);
+			out.flush();
+		}
+
+		private void sendDown(int duration) throws IOException {
+			out.writeShort(duration);
+			out.flush();
+		}
+
+		private void sendFrequency(long freq) throws IOException {
+			out.writeInt((int) -freq);
+			out.flush();
+		}
+
+		private int readInt() throws IOException {
+			return in.readInt();
+		}
+
+		private int readDuration() throws IOException {
+			return in.readShort() & 0xffff;
+		}
+
+		private boolean hasInput() throws IOException {
+			return in.available() > 0;
+		}
+
+		private void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	private static void waitClients(CWPRelayServer server, int count)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + 2000;
+
+		while (server.getClientCount() != count
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(5);
+	}
+
+	@Test
+	public void test1_CWPRelayServer() throws Exception {
+		CWPRelayServer server = new CWPRelayServer(0);
+		Thread thread = new Thread(server, "CWPRelayServer");
+
+		thread.start();
+
+		RawClient a = new RawClient(server.getPort());
+		waitClients(server, 1);
+		Thread.sleep(200);
+		RawClient b = new RawClient(server.getPort());
+		RawClient c = new RawClient(server.getPort());
+		waitClients(server, 3);
+
+		/* Frequency change is acknowledged */
+		c.sendFrequency(2);
+		assertEquals(-2, c.readInt());
+
+		/* Timestamp is rewritten to connection time of receiver */
+		a.sendUp(1000);
+		a.sendDown(50);
+
+		int timestamp = b.readInt();
+		assertTrue(timestamp >= 700 && timestamp <= 800);
+		assertEquals(50, b.readDuration());
+
+		/* Not to sender itself or other frequencies */
+		Thread.sleep(100);
+		assertFalse(a.hasInput());
+		assertFalse(c.hasInput());
+
+		/* Overlapping senders are merged for listeners */
+		c.sendFrequency(1);
+		assertEquals(-1, c.readInt());
+
+		a.sendUp(3000);
+		int upTimestamp = c.readInt();
+		assertTrue(upTimestamp > timestamp);
+
+		/* Both senders see each other */
+		b.readInt();
+		b.sendUp(2810);
+		a.readInt();
+		a.sendDown(100);
+		assertEquals(100, b.readDuration());
+		b.sendDown(100);
+		assertEquals(100, a.readDuration());
+
+		/* Merged signal lasts from start of A to end of B */
+		assertEquals(2910 + 1000 - timestamp - 3000, c.readDuration());
+
+		assertEquals(3, server.getClientCount());
+		assertEquals(8, server.getEventsIn());
+		assertEquals(10, server.getMessagesOut());
+		assertTrue(server.getAverageLatencyMicros() > 0.0);
+
+		/* Sender disconnecting while up ends its signal */
+		a.sendUp(4000);
+		b.readInt();
+		a.close();
+		waitClients(server, 2);
+		b.readDuration();
+
+		server.shutdown();
+		thread.join(2000);
+		assertFalse(thread.isAlive());
+
+		b.close();
+		c.close();
+	}
+
+	/* Collects received morse of one connection */
+	private static class MorseListener implements CWPEngineListener {
+		private boolean connected = false;
+		private String morse = "";
+
+		public synchronized void connectionStateChange(int connState) {
+			connected = connState == 3;
+			notifyAll();
+		}
+
+		public void connectionError(String reason) {
+		}
+
+		public void frequencyChange(long freq) {
+		}
+
+		public void stateChange(boolean recvStateUp, boolean sendStateUp) {
+		}
+
+		public synchronized void morseUpdates(String morse) {
+			this.morse = morse;
+			notifyAll();
+		}
+
+		public void morseMessageSendingState(boolean complete,
+				String sendMorse) {
+		}
+
+		private synchronized String waitMorse(String text, long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (morse.indexOf(text) < 0 && System.currentTimeMillis() < end)
+				wait(10);
+
+			return morse;
+		}
+
+		private synchronized void waitConnected(long timeout)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (!connected && System.currentTimeMillis() < end)
+				wait(10);
+		}
+	}
+
+	@Test
+	public void test2_CWPRelayServerWithEngine() throws Exception {
+		CWPRelayServer server = new CWPRelayServer(0);
+		Thread serverThread = new Thread(server, "CWPRelayServer");
+		CWPMultiEngine engine = new CWPMultiEngine();
+		Thread engineThread = new Thread(engine, "CWPMultiEngine");
+		MorseListener[] listeners = new MorseListener[4];
+		CWPEngineControl[] controls = new CWPEngineControl[4];
+
+		serverThread.start();
+		engineThread.start();
+
+		/* Sender and two listeners on frequency 5, one on frequency 6 */
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = new MorseListener();
+			controls[i] = engine.addConnection(listeners[i]);
+			controls[i].setFrequency(i < 3 ? 5 : 6);
+			controls[i].setNewConfiguration("localhost", server.getPort(),
+					20, false);
+		}
+
+		for (int i = 0; i < listeners.length; i++)
+			listeners[i].waitConnected(5000);
+		waitClients(server, listeners.length);
+
+		/* Let frequency changes reach server */
+		Thread.sleep(200);
+		controls[0].sendMorseMessage("relay");
+
+		assertTrue(listeners[1].waitMorse("relay", 10000).indexOf("relay") >= 0);
+		assertTrue(listeners[2].waitMorse("relay", 1000).indexOf("relay") >= 0);
+		assertTrue(listeners[0].waitMorse("relay", 100).indexOf("relay") < 0);
+		assertTrue(listeners[3].waitMorse("relay", 100).indexOf("relay") < 0);
+		assertEquals(0, server.getDroppedClients());
+
+		engine.shutdown();
+		engineThread.join(2000);
+		server.shutdown();
+		serverThread.join(2000);
+	}
+}